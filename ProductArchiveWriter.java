@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.product.product;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.List;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+
+/**
+ * Archive of removed values as entity engine XML, which can be imported again to restore them. The values are written and flushed before
+ * they are removed, and a failed write fails the removal; values whose removal is rolled back stay in the file, which does no harm as
+ * importing them again only restores rows that are still there. Thread safe.
+ */
+public class ProductArchiveWriter {
+
+    public static final String module = ProductArchiveWriter.class.getName();
+
+    protected final String fileName;
+    protected final PrintWriter writer;
+    protected long numWritten = 0;
+    protected boolean closed = false;
+
+    protected ProductArchiveWriter(String fileName, PrintWriter writer) {
+        this.fileName = fileName;
+        this.writer = writer;
+    }
+
+    /** Opens a new archive file in the productutil output directory (see ProductUtilServices.getOutputFile); an existing file is not overwritten */
+    public static ProductArchiveWriter open(String fileName) throws GenericEntityException {
+        File file = ProductUtilServices.getOutputFile(fileName);
+        if (file.exists()) {
+            throw new GenericEntityException("Archive file [" + fileName + "] already exists, not overwriting it");
+        }
+        try {
+            PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")));
+            writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            writer.println("<entity-engine-xml>");
+            return new ProductArchiveWriter(file.getPath(), writer);
+        } catch (IOException e) {
+            throw new GenericEntityException("Could not open archive file [" + fileName + "]", e);
+        }
+    }
+
+    /** Writes and flushes the values about to be removed; throws if they could not be written, so they are not removed */
+    public synchronized void archive(List<GenericValue> values) throws GenericEntityException {
+        if (values.size() == 0) {
+            return;
+        }
+        if (closed) {
+            throw new GenericEntityException("Archive file [" + fileName + "] is already closed, not removing " + values.size() + " values that are not archived");
+        }
+        for (GenericValue value: values) {
+            value.writeXmlText(writer, "");
+        }
+        // checkError flushes the writer first
+        if (writer.checkError()) {
+            throw new GenericEntityException("Error writing the archive file [" + fileName + "], not removing " + values.size() + " values that may not be archived");
+        }
+        numWritten += values.size();
+    }
+
+    /** Closes the file */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writer.println("</entity-engine-xml>");
+        writer.close();
+        if (writer.checkError()) {
+            Debug.logError("Error closing the archive file [" + fileName + "] of the removed values, its end tag may be missing", module);
+        }
+        Debug.logInfo("Archived " + numWritten + " removed values to [" + fileName + "]", module);
+    }
+}
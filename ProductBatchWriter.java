@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.product.product;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+
+import javolution.util.FastList;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericDataSourceException;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.datasource.GenericHelperInfo;
+import org.ofbiz.entity.jdbc.SQLProcessor;
+import org.ofbiz.entity.model.ModelEntity;
+import org.ofbiz.entity.model.ModelField;
+import org.ofbiz.entity.transaction.TransactionUtil;
+
+/**
+ * Writes many values of one entity with JDBC statement batches, one round trip per batch instead of one per value.
+ * NOTE: like the other low level writes this goes around the entity ECAs; the entity cache lines of the written values are cleared.
+ */
+public class ProductBatchWriter {
+
+    public static final String module = ProductBatchWriter.class.getName();
+
+    /**
+     * Updates the given fields (and the last updated stamps) of the values by primary key.
+     * @param values values of a single entity, all with a complete primary key
+     * @return the number of rows updated
+     */
+    public static int updateFields(Delegator delegator, List<GenericValue> values, List<String> fieldNames, int batchSize) throws GenericEntityException {
+        if (values.size() == 0) {
+            return 0;
+        }
+        ModelEntity modelEntity = values.get(0).getModelEntity();
+        String helperName = delegator.getEntityHelperName(modelEntity.getEntityName());
+
+        List<ModelField> setFields = FastList.newInstance();
+        for (String fieldName: fieldNames) {
+            setFields.add(modelEntity.getField(fieldName));
+        }
+        boolean stamped = !modelEntity.getNoAutoStamp() && modelEntity.isField(ModelEntity.STAMP_FIELD);
+        if (stamped) {
+            setFields.add(modelEntity.getField(ModelEntity.STAMP_FIELD));
+            setFields.add(modelEntity.getField(ModelEntity.STAMP_TX_FIELD));
+        }
+        List<ModelField> whereFields = modelEntity.getPkFieldsUnmodifiable();
+
+        StringBuilder sql = new StringBuilder("UPDATE ").append(modelEntity.getTableName(helperName)).append(" SET ");
+        for (int i = 0; i < setFields.size(); i++) {
+            sql.append(i == 0 ? "" : ", ").append(setFields.get(i).getColName()).append(" = ?");
+        }
+        sql.append(" WHERE ");
+        for (int i = 0; i < whereFields.size(); i++) {
+            sql.append(i == 0 ? "" : " AND ").append(whereFields.get(i).getColName()).append(" = ?");
+        }
+
+        if (stamped) {
+            Timestamp txStamp = TransactionUtil.getTransactionStartStamp();
+            for (GenericValue value: values) {
+                value.set(ModelEntity.STAMP_FIELD, TransactionUtil.getTransactionUniqueNowStamp());
+                value.set(ModelEntity.STAMP_TX_FIELD, txStamp);
+            }
+        }
+
+        List<ModelField> parameterFields = FastList.newInstance();
+        parameterFields.addAll(setFields);
+        parameterFields.addAll(whereFields);
+        int rowsUpdated = executeBatches(delegator, modelEntity, sql.toString(), parameterFields, values, batchSize);
+        for (GenericValue value: values) {
+            delegator.clearCacheLine(value);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Inserts the values, setting the created and last updated stamps like a create would.
+     * @param values values of a single entity, none of which may exist yet
+     * @return the number of rows inserted
+     */
+    public static int createAll(Delegator delegator, List<GenericValue> values, int batchSize) throws GenericEntityException {
+        if (values.size() == 0) {
+            return 0;
+        }
+        ModelEntity modelEntity = values.get(0).getModelEntity();
+        String helperName = delegator.getEntityHelperName(modelEntity.getEntityName());
+        List<ModelField> fields = modelEntity.getFieldsUnmodifiable();
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(modelEntity.getTableName(helperName)).append(" (");
+        StringBuilder parameters = new StringBuilder();
+        for (int i = 0; i < fields.size(); i++) {
+            sql.append(i == 0 ? "" : ", ").append(fields.get(i).getColName());
+            parameters.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(") VALUES (").append(parameters).append(")");
+
+        if (!modelEntity.getNoAutoStamp()) {
+            Timestamp txStamp = TransactionUtil.getTransactionStartStamp();
+            for (GenericValue value: values) {
+                Timestamp nowStamp = TransactionUtil.getTransactionUniqueNowStamp();
+                if (modelEntity.isField(ModelEntity.STAMP_FIELD)) {
+                    value.set(ModelEntity.STAMP_FIELD, nowStamp);
+                    value.set(ModelEntity.STAMP_TX_FIELD, txStamp);
+                }
+                if (modelEntity.isField(ModelEntity.CREATE_STAMP_FIELD)) {
+                    value.set(ModelEntity.CREATE_STAMP_FIELD, nowStamp);
+                    value.set(ModelEntity.CREATE_STAMP_TX_FIELD, txStamp);
+                }
+            }
+        }
+
+        int rowsCreated = executeBatches(delegator, modelEntity, sql.toString(), fields, values, batchSize);
+        for (GenericValue value: values) {
+            delegator.clearCacheLine(value);
+        }
+        return rowsCreated;
+    }
+
+    /** Runs the statement once per value, binding the parameter fields in order, sending the statements in batches of batchSize */
+    protected static int executeBatches(Delegator delegator, ModelEntity modelEntity, String sql, List<ModelField> parameterFields, List<GenericValue> values, int batchSize) throws GenericEntityException {
+        GenericHelperInfo helperInfo = delegator.getGroupHelperInfo(delegator.getEntityGroupName(modelEntity.getEntityName()));
+        SQLProcessor sqlP = new SQLProcessor(delegator, helperInfo);
+        PreparedStatement ps = null;
+        int rowsChanged = 0;
+        try {
+            Connection connection = sqlP.getConnection();
+            ps = connection.prepareStatement(sql);
+            int inBatch = 0;
+            for (GenericValue value: values) {
+                for (int i = 0; i < parameterFields.size(); i++) {
+                    ModelField modelField = parameterFields.get(i);
+                    Object fieldValue = value.get(modelField.getName());
+                    if (fieldValue == null) {
+                        ps.setNull(i + 1, getSqlType(delegator, modelEntity, modelField));
+                    } else {
+                        ps.setObject(i + 1, fieldValue);
+                    }
+                }
+                ps.addBatch();
+                inBatch++;
+                if (inBatch >= batchSize) {
+                    rowsChanged += sumUpdateCounts(ps.executeBatch());
+                    inBatch = 0;
+                }
+            }
+            if (inBatch > 0) {
+                rowsChanged += sumUpdateCounts(ps.executeBatch());
+            }
+        } catch (SQLException e) {
+            throw new GenericDataSourceException("SQL Exception while executing the following batch: " + sql, e);
+        } finally {
+            if (ps != null) {
+                try {
+                    ps.close();
+                } catch (SQLException e) {
+                    Debug.logWarning(e, "Error closing batch statement: " + sql, module);
+                }
+            }
+            sqlP.close();
+        }
+        return rowsChanged;
+    }
+
+    private static int sumUpdateCounts(int[] updateCounts) {
+        int rowsChanged = 0;
+        for (int updateCount: updateCounts) {
+            // some drivers only report that the statement worked, not how many rows it changed
+            rowsChanged += updateCount == PreparedStatement.SUCCESS_NO_INFO ? 1 : Math.max(0, updateCount);
+        }
+        return rowsChanged;
+    }
+
+    /** Gets the JDBC type to bind a null for the field with, from the java-type of its field type */
+    protected static int getSqlType(Delegator delegator, ModelEntity modelEntity, ModelField modelField) throws GenericEntityException {
+        String javaType = delegator.getModelFieldTypeReader(modelEntity).getModelFieldType(modelField.getType()).getJavaType();
+        if (javaType.endsWith("Timestamp")) {
+            return Types.TIMESTAMP;
+        } else if (javaType.endsWith("sql.Date")) {
+            return Types.DATE;
+        } else if (javaType.endsWith("Time")) {
+            return Types.TIME;
+        } else if (javaType.endsWith("BigDecimal")) {
+            return Types.DECIMAL;
+        } else if (javaType.endsWith("Long")) {
+            return Types.BIGINT;
+        } else if (javaType.endsWith("Integer")) {
+            return Types.INTEGER;
+        } else if (javaType.endsWith("Double")) {
+            return Types.DOUBLE;
+        } else if (javaType.endsWith("Float")) {
+            return Types.FLOAT;
+        } else if (javaType.endsWith("Boolean")) {
+            return Types.BOOLEAN;
+        } else if (javaType.endsWith("Blob") || javaType.endsWith("byte[]") || javaType.endsWith("Object")) {
+            return Types.BLOB;
+        }
+        return Types.VARCHAR;
+    }
+}
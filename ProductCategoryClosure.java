@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.product.product;
+
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+import javolution.util.FastSet;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityOperator;
+import org.ofbiz.entity.util.EntityFindOptions;
+import org.ofbiz.entity.util.EntityListIterator;
+import org.ofbiz.entity.util.EntityUtil;
+
+/**
+ * Snapshot of the whole ProductCategoryRollup hierarchy with its closure: the direct sub-categories and parents of every category and all
+ * of its descendants and ancestors, each a single Map lookup. Like the category walks it replaces it ignores the rollup dates. The
+ * snapshot is shared per delegator and read again when the number of rollups or their latest lastUpdatedStamp changed, which getInstance
+ * checks with two small queries; changes made without the entity engine stamps are only seen after clear. Immutable once loaded.
+ */
+public final class ProductCategoryClosure {
+
+    public static final String module = ProductCategoryClosure.class.getName();
+
+    private static final Map<String, ProductCategoryClosure> closureByDelegatorName = new ConcurrentHashMap<String, ProductCategoryClosure>();
+
+    private final long rollupCount;
+    private final Timestamp lastUpdatedStamp;
+    private final Map<String, List<String>> subCategoryIdsByParentId = FastMap.newInstance();
+    private final Map<String, List<String>> parentIdsByCategoryId = FastMap.newInstance();
+    private final Map<String, Set<String>> ancestorIdsByCategoryId = FastMap.newInstance();
+    private final Map<String, Set<String>> descendantIdsByCategoryId = FastMap.newInstance();
+
+    private ProductCategoryClosure(long rollupCount, Timestamp lastUpdatedStamp) {
+        this.rollupCount = rollupCount;
+        this.lastUpdatedStamp = lastUpdatedStamp;
+    }
+
+    /** Gets the current snapshot for the delegator, loading it if there is none yet or the rollups changed since it was loaded */
+    public static ProductCategoryClosure getInstance(Delegator delegator) throws GenericEntityException {
+        long rollupCount = delegator.findCountByCondition("ProductCategoryRollup", null, null, null);
+        Timestamp lastUpdatedStamp = getLastUpdatedStamp(delegator);
+        ProductCategoryClosure closure = closureByDelegatorName.get(delegator.getDelegatorName());
+        if (closure != null && closure.isCurrent(rollupCount, lastUpdatedStamp)) {
+            return closure;
+        }
+        synchronized (ProductCategoryClosure.class) {
+            closure = closureByDelegatorName.get(delegator.getDelegatorName());
+            if (closure == null || !closure.isCurrent(rollupCount, lastUpdatedStamp)) {
+                // read with the count and stamp from before loading, a change made while loading makes the next call load again
+                closure = load(delegator, rollupCount, lastUpdatedStamp);
+                closureByDelegatorName.put(delegator.getDelegatorName(), closure);
+            }
+            return closure;
+        }
+    }
+
+    /** Drops the snapshot of the delegator, for changes made around the entity engine */
+    public static void clear(Delegator delegator) {
+        closureByDelegatorName.remove(delegator.getDelegatorName());
+    }
+
+    /** Gets the direct sub-categories of the category, in sequenceNum order */
+    public List<String> getSubCategoryIds(String productCategoryId) {
+        List<String> subCategoryIds = subCategoryIdsByParentId.get(productCategoryId);
+        return subCategoryIds == null ? Collections.<String>emptyList() : subCategoryIds;
+    }
+
+    /** Gets the direct parents of the category */
+    public List<String> getParentCategoryIds(String productCategoryId) {
+        List<String> parentIds = parentIdsByCategoryId.get(productCategoryId);
+        return parentIds == null ? Collections.<String>emptyList() : parentIds;
+    }
+
+    /** Gets all categories under the category, not the category itself even if it is in a cycle */
+    public Set<String> getDescendantIds(String productCategoryId) {
+        Set<String> descendantIds = descendantIdsByCategoryId.get(productCategoryId);
+        return descendantIds == null ? Collections.<String>emptySet() : descendantIds;
+    }
+
+    /** Gets all categories above the category, not the category itself even if it is in a cycle */
+    public Set<String> getAncestorIds(String productCategoryId) {
+        Set<String> ancestorIds = ancestorIdsByCategoryId.get(productCategoryId);
+        return ancestorIds == null ? Collections.<String>emptySet() : ancestorIds;
+    }
+
+    public int getCategoryCount() {
+        Set<String> productCategoryIds = FastSet.newInstance();
+        productCategoryIds.addAll(subCategoryIdsByParentId.keySet());
+        productCategoryIds.addAll(parentIdsByCategoryId.keySet());
+        return productCategoryIds.size();
+    }
+
+    private boolean isCurrent(long rollupCount, Timestamp lastUpdatedStamp) {
+        return this.rollupCount == rollupCount && (this.lastUpdatedStamp == null ? lastUpdatedStamp == null : this.lastUpdatedStamp.equals(lastUpdatedStamp));
+    }
+
+    private static Timestamp getLastUpdatedStamp(Delegator delegator) throws GenericEntityException {
+        EntityFindOptions findOptions = new EntityFindOptions();
+        findOptions.setMaxRows(1);
+        EntityCondition condition = EntityCondition.makeCondition("lastUpdatedStamp", EntityOperator.NOT_EQUAL, null);
+        GenericValue latest = EntityUtil.getFirst(delegator.findList("ProductCategoryRollup", condition, UtilMisc.toSet("lastUpdatedStamp"), UtilMisc.toList("-lastUpdatedStamp"), findOptions, false));
+        return latest == null ? null : latest.getTimestamp("lastUpdatedStamp");
+    }
+
+    private static ProductCategoryClosure load(Delegator delegator, long rollupCount, Timestamp lastUpdatedStamp) throws GenericEntityException {
+        long startTime = System.currentTimeMillis();
+        ProductCategoryClosure closure = new ProductCategoryClosure(rollupCount, lastUpdatedStamp);
+        EntityListIterator eli = delegator.find("ProductCategoryRollup", null, null, UtilMisc.toSet("parentProductCategoryId", "productCategoryId"), UtilMisc.toList("parentProductCategoryId", "sequenceNum", "productCategoryId"), null);
+        try {
+            GenericValue productCategoryRollup = null;
+            while ((productCategoryRollup = eli.next()) != null) {
+                String parentProductCategoryId = productCategoryRollup.getString("parentProductCategoryId");
+                String productCategoryId = productCategoryRollup.getString("productCategoryId");
+                // a category can be under the same parent more than once, with different dates
+                if (addToList(closure.subCategoryIdsByParentId, parentProductCategoryId, productCategoryId)) {
+                    addToList(closure.parentIdsByCategoryId, productCategoryId, parentProductCategoryId);
+                }
+            }
+        } finally {
+            eli.close();
+        }
+
+        // the ancestors of each category by walking up its parents, the descendants are the same pairs the other way around
+        for (String productCategoryId: closure.parentIdsByCategoryId.keySet()) {
+            Set<String> ancestorIds = FastSet.newInstance();
+            List<String> toVisit = FastList.newInstance();
+            toVisit.addAll(closure.getParentCategoryIds(productCategoryId));
+            while (toVisit.size() > 0) {
+                String ancestorId = toVisit.remove(toVisit.size() - 1);
+                if (!ancestorId.equals(productCategoryId) && ancestorIds.add(ancestorId)) {
+                    toVisit.addAll(closure.getParentCategoryIds(ancestorId));
+                }
+            }
+            closure.ancestorIdsByCategoryId.put(productCategoryId, Collections.unmodifiableSet(ancestorIds));
+            for (String ancestorId: ancestorIds) {
+                Set<String> descendantIds = closure.descendantIdsByCategoryId.get(ancestorId);
+                if (descendantIds == null) {
+                    descendantIds = FastSet.newInstance();
+                    closure.descendantIdsByCategoryId.put(ancestorId, descendantIds);
+                }
+                descendantIds.add(productCategoryId);
+            }
+        }
+        for (Map.Entry<String, Set<String>> entry: closure.descendantIdsByCategoryId.entrySet()) {
+            entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+        }
+        for (Map.Entry<String, List<String>> entry: closure.subCategoryIdsByParentId.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        for (Map.Entry<String, List<String>> entry: closure.parentIdsByCategoryId.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        Debug.logInfo("Loaded the closure of " + rollupCount + " ProductCategoryRollups, " + closure.getCategoryCount() + " categories in " + (System.currentTimeMillis() - startTime) + "ms", module);
+        return closure;
+    }
+
+    /** Adds the value to the list of the key unless it is in it already; returns true if it was added */
+    private static boolean addToList(Map<String, List<String>> listByKey, String key, String value) {
+        List<String> list = listByKey.get(key);
+        if (list == null) {
+            list = FastList.newInstance();
+            listByKey.put(key, list);
+        }
+        if (list.contains(value)) {
+            return false;
+        }
+        list.add(value);
+        return true;
+    }
+}
@@ -0,0 +1,493 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.product.product;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+import javolution.util.FastSet;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.GeneralRuntimeException;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.base.util.UtilValidate;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityOperator;
+import org.ofbiz.entity.transaction.TransactionUtil;
+import org.ofbiz.entity.util.EntityListIterator;
+
+/**
+ * In-memory feature aggregation for attachProductFeaturesToCategory: takes the ProductCategoryRollup tree under a category from the
+ * ProductCategoryClosure, loads the ProductCategoryMembers of all its categories and the currently valid ProductFeatureAndAppls of all their products with IN
+ * queries of DEFAULT_CHUNK_SIZE ids, and builds the productFeatureTypeId to productFeatureIds Map of every category; apply then makes the
+ * feature groups category by category, sub-categories first, or applyInParallel does sibling sub-trees on a fork-join pool.
+ */
+public class ProductFeatureGroupWorker {
+
+    public static final String module = ProductFeatureGroupWorker.class.getName();
+
+    protected final Delegator delegator;
+    protected final Timestamp nowTimestamp;
+    protected final Set<String> productFeatureTypeIdsToInclude;
+    protected final Set<String> productFeatureTypeIdsToExclude;
+    protected String rootProductCategoryId = null;
+    /** parent productCategoryId -> the productCategoryIds of its sub-categories, for all categories loaded */
+    protected final Map<String, List<String>> subCategoryIdsByParentId = FastMap.newInstance();
+    /** productCategoryId of each category to make feature groups for -> productFeatureTypeId -> productFeatureIds */
+    protected final Map<String, Map<String, Set<String>>> featureIdsByTypeIdByCategoryId = FastMap.newInstance();
+    /** productCategoryId -> level under the root category (0): the longest path to it from the root, leaving out the rollups that close a cycle */
+    protected final Map<String, Integer> depthByCategoryId = FastMap.newInstance();
+    /** productCategoryId -> the parent it was first found under, which is the one that forks it in applyInParallel */
+    protected final Map<String, String> ownerIdByCategoryId = FastMap.newInstance();
+    /** for loadForProducts: the ancestors of the changed categories, which only need the groups of their sub-categories associated */
+    protected final Set<String> ancestorIds = FastSet.newInstance();
+
+    public ProductFeatureGroupWorker(Delegator delegator, Set<String> productFeatureTypeIdsToInclude, Set<String> productFeatureTypeIdsToExclude, Timestamp nowTimestamp) {
+        this.delegator = delegator;
+        this.productFeatureTypeIdsToInclude = productFeatureTypeIdsToInclude;
+        this.productFeatureTypeIdsToExclude = productFeatureTypeIdsToExclude;
+        this.nowTimestamp = nowTimestamp;
+    }
+
+    /** Loads the category, and all categories under it if doSubCategories is set, with the features of their products */
+    public void load(String productCategoryId, boolean doSubCategories) throws GenericEntityException {
+        this.rootProductCategoryId = productCategoryId;
+        long startTime = System.currentTimeMillis();
+        loadCategoryTree(productCategoryId, doSubCategories);
+        int numProducts = loadFeatures();
+        Debug.logInfo("Loaded " + featureIdsByTypeIdByCategoryId.size() + " categories with " + numProducts + " products under category [" + productCategoryId + "] in " + (System.currentTimeMillis() - startTime) + "ms", module);
+    }
+
+    /**
+     * Loads the categories of the products, plus the given categories, with the features of all of their members, their direct
+     * sub-categories and all of their ancestors, for applyIncremental.
+     */
+    public void loadForProducts(Collection<String> productIds, Collection<String> productCategoryIds) throws GenericEntityException {
+        long startTime = System.currentTimeMillis();
+        Set<String> changedCategoryIds = FastSet.newInstance();
+        changedCategoryIds.addAll(productCategoryIds);
+        for (List<String> idChunk: chunk(productIds)) {
+            EntityCondition condition = EntityCondition.makeCondition("productId", EntityOperator.IN, idChunk);
+            List<GenericValue> memberList = delegator.findList("ProductCategoryMember", condition, UtilMisc.toSet("productCategoryId"), null, null, false);
+            for (GenericValue productCategoryMember: memberList) {
+                changedCategoryIds.add(productCategoryMember.getString("productCategoryId"));
+            }
+        }
+        for (String productCategoryId: changedCategoryIds) {
+            featureIdsByTypeIdByCategoryId.put(productCategoryId, FastMap.<String, Set<String>>newInstance());
+        }
+
+        // all sub-categories of the changed categories, their groups are associated again with the rest
+        ProductCategoryClosure closure = ProductCategoryClosure.getInstance(delegator);
+        for (String productCategoryId: changedCategoryIds) {
+            for (String subProductCategoryId: closure.getSubCategoryIds(productCategoryId)) {
+                addSubCategoryId(productCategoryId, subProductCategoryId);
+            }
+        }
+        // all ancestors, with only the sub-categories on the way up
+        for (String productCategoryId: changedCategoryIds) {
+            ancestorIds.addAll(closure.getAncestorIds(productCategoryId));
+        }
+        ancestorIds.removeAll(changedCategoryIds);
+        List<String> upwardCategoryIds = FastList.newInstance();
+        upwardCategoryIds.addAll(changedCategoryIds);
+        upwardCategoryIds.addAll(ancestorIds);
+        for (String productCategoryId: upwardCategoryIds) {
+            for (String parentProductCategoryId: closure.getParentCategoryIds(productCategoryId)) {
+                addSubCategoryId(parentProductCategoryId, productCategoryId);
+            }
+        }
+
+        int numProducts = loadFeatures();
+        Debug.logInfo("Loaded " + changedCategoryIds.size() + " categories with " + numProducts + " products and " + ancestorIds.size() + " ancestor categories for " + productIds.size() + " changed products in " + (System.currentTimeMillis() - startTime) + "ms", module);
+    }
+
+    protected void addSubCategoryId(String parentProductCategoryId, String subProductCategoryId) {
+        List<String> subCategoryIds = subCategoryIdsByParentId.get(parentProductCategoryId);
+        if (subCategoryIds == null) {
+            subCategoryIds = FastList.newInstance();
+            subCategoryIdsByParentId.put(parentProductCategoryId, subCategoryIds);
+        }
+        if (!subCategoryIds.contains(subProductCategoryId)) {
+            subCategoryIds.add(subProductCategoryId);
+        }
+    }
+
+    /** Walks the sub-categories one level at a time in the closure; without doSubCategories only the direct sub-categories are taken, to link their groups */
+    protected void loadCategoryTree(String productCategoryId, boolean doSubCategories) throws GenericEntityException {
+        ProductCategoryClosure closure = ProductCategoryClosure.getInstance(delegator);
+        featureIdsByTypeIdByCategoryId.put(productCategoryId, FastMap.<String, Set<String>>newInstance());
+        depthByCategoryId.put(productCategoryId, Integer.valueOf(0));
+        List<String> levelCategoryIds = UtilMisc.toList(productCategoryId);
+        int depth = 0;
+        while (levelCategoryIds.size() > 0) {
+            depth++;
+            List<String> nextLevelCategoryIds = FastList.newInstance();
+            for (String parentProductCategoryId: levelCategoryIds) {
+                for (String subProductCategoryId: closure.getSubCategoryIds(parentProductCategoryId)) {
+                    addSubCategoryId(parentProductCategoryId, subProductCategoryId);
+                    // a category under more than one parent is done once
+                    if (doSubCategories && !featureIdsByTypeIdByCategoryId.containsKey(subProductCategoryId)) {
+                        featureIdsByTypeIdByCategoryId.put(subProductCategoryId, FastMap.<String, Set<String>>newInstance());
+                        depthByCategoryId.put(subProductCategoryId, Integer.valueOf(depth));
+                        ownerIdByCategoryId.put(subProductCategoryId, parentProductCategoryId);
+                        nextLevelCategoryIds.add(subProductCategoryId);
+                    }
+                }
+            }
+            levelCategoryIds = nextLevelCategoryIds;
+        }
+        if (doSubCategories) {
+            raiseToLongestDepths(productCategoryId);
+        }
+    }
+
+    /**
+     * Raises the depth of each loaded category from the level it was first found on to its longest path from the root: the categories are
+     * taken in topological order (reverse DFS post-order, where a rollup back to a category still being visited closes a cycle and is left
+     * out) and each one pushes its sub-categories below itself. Every sub-category is then deeper than all of its parents.
+     */
+    protected void raiseToLongestDepths(String productCategoryId) {
+        List<String> postOrder = FastList.newInstance();
+        visitPostOrder(productCategoryId, FastSet.<String>newInstance(), postOrder);
+        Map<String, Integer> orderByCategoryId = FastMap.newInstance();
+        for (int i = 0; i < postOrder.size(); i++) {
+            orderByCategoryId.put(postOrder.get(i), Integer.valueOf(postOrder.size() - 1 - i));
+        }
+        for (int i = postOrder.size() - 1; i >= 0; i--) {
+            String parentProductCategoryId = postOrder.get(i);
+            int order = orderByCategoryId.get(parentProductCategoryId).intValue();
+            int subDepth = depthByCategoryId.get(parentProductCategoryId).intValue() + 1;
+            for (String subProductCategoryId: getSubCategoryIds(parentProductCategoryId)) {
+                Integer subOrder = orderByCategoryId.get(subProductCategoryId);
+                if (subOrder != null && subOrder.intValue() > order && depthByCategoryId.get(subProductCategoryId).intValue() < subDepth) {
+                    depthByCategoryId.put(subProductCategoryId, Integer.valueOf(subDepth));
+                }
+            }
+        }
+    }
+
+    private void visitPostOrder(String productCategoryId, Set<String> visitedCategoryIds, List<String> postOrder) {
+        if (!visitedCategoryIds.add(productCategoryId)) {
+            return;
+        }
+        for (String subProductCategoryId: getSubCategoryIds(productCategoryId)) {
+            if (featureIdsByTypeIdByCategoryId.containsKey(subProductCategoryId)) {
+                visitPostOrder(subProductCategoryId, visitedCategoryIds, postOrder);
+            }
+        }
+        postOrder.add(productCategoryId);
+    }
+
+    /** Reads the members of the loaded categories and the valid features of those products into the per category Maps */
+    protected int loadFeatures() throws GenericEntityException {
+        Map<String, Set<String>> categoryIdsByProductId = FastMap.newInstance();
+        for (List<String> idChunk: chunk(featureIdsByTypeIdByCategoryId.keySet())) {
+            EntityCondition condition = EntityCondition.makeCondition("productCategoryId", EntityOperator.IN, idChunk);
+            List<GenericValue> memberList = delegator.findList("ProductCategoryMember", condition, UtilMisc.toSet("productCategoryId", "productId"), null, null, false);
+            for (GenericValue productCategoryMember: memberList) {
+                String productId = productCategoryMember.getString("productId");
+                Set<String> categoryIds = categoryIdsByProductId.get(productId);
+                if (categoryIds == null) {
+                    categoryIds = FastSet.newInstance();
+                    categoryIdsByProductId.put(productId, categoryIds);
+                }
+                categoryIds.add(productCategoryMember.getString("productCategoryId"));
+            }
+        }
+
+        for (List<String> idChunk: chunk(categoryIdsByProductId.keySet())) {
+            EntityCondition condition = EntityCondition.makeCondition(UtilMisc.toList(
+                    EntityCondition.makeCondition("productId", EntityOperator.IN, idChunk),
+                    EntityCondition.makeCondition("fromDate", EntityOperator.LESS_THAN_EQUAL_TO, nowTimestamp),
+                    EntityCondition.makeCondition(EntityCondition.makeCondition("thruDate", EntityOperator.EQUALS, null), EntityOperator.OR, EntityCondition.makeCondition("thruDate", EntityOperator.GREATER_THAN_EQUAL_TO, nowTimestamp))
+                   ), EntityOperator.AND);
+            EntityListIterator productFeatureAndApplEli = delegator.find("ProductFeatureAndAppl", condition, null, UtilMisc.toSet("productId", "productFeatureId", "productFeatureTypeId"), null, null);
+            try {
+                GenericValue productFeatureAndAppl = null;
+                while ((productFeatureAndAppl = productFeatureAndApplEli.next()) != null) {
+                    String productFeatureTypeId = productFeatureAndAppl.getString("productFeatureTypeId");
+                    if (UtilValidate.isNotEmpty(productFeatureTypeIdsToInclude) && !productFeatureTypeIdsToInclude.contains(productFeatureTypeId)) {
+                        continue;
+                    }
+                    if (productFeatureTypeIdsToExclude != null && productFeatureTypeIdsToExclude.contains(productFeatureTypeId)) {
+                        continue;
+                    }
+                    String productFeatureId = productFeatureAndAppl.getString("productFeatureId");
+                    for (String productCategoryId: categoryIdsByProductId.get(productFeatureAndAppl.getString("productId"))) {
+                        addFeature(featureIdsByTypeIdByCategoryId.get(productCategoryId), productFeatureTypeId, productFeatureId);
+                    }
+                }
+            } finally {
+                productFeatureAndApplEli.close();
+            }
+        }
+        return categoryIdsByProductId.size();
+    }
+
+    protected static void addFeature(Map<String, Set<String>> productFeatureIdByTypeIdSetMap, String productFeatureTypeId, String productFeatureId) {
+        Set<String> productFeatureIdSet = productFeatureIdByTypeIdSetMap.get(productFeatureTypeId);
+        if (productFeatureIdSet == null) {
+            productFeatureIdSet = FastSet.newInstance();
+            productFeatureIdByTypeIdSetMap.put(productFeatureTypeId, productFeatureIdSet);
+        }
+        productFeatureIdSet.add(productFeatureId);
+    }
+
+    /** Makes the feature groups of all loaded categories, each after its sub-categories so their feature groups are in place */
+    public void apply() throws GenericEntityException {
+        apply(rootProductCategoryId, FastSet.<String>newInstance());
+    }
+
+    protected void apply(String productCategoryId, Set<String> appliedCategoryIds) throws GenericEntityException {
+        if (!appliedCategoryIds.add(productCategoryId)) {
+            return;
+        }
+        for (String subProductCategoryId: getSubCategoryIds(productCategoryId)) {
+            if (featureIdsByTypeIdByCategoryId.containsKey(subProductCategoryId)) {
+                apply(subProductCategoryId, appliedCategoryIds);
+            }
+        }
+        ProductUtilServices.applyCategoryFeatureGroups(productCategoryId, getFeatureIdsByTypeId(productCategoryId), getSubCategoryIds(productCategoryId), delegator, nowTimestamp);
+    }
+
+    /**
+     * After loadForProducts: makes the feature groups of the changed categories again and associates the groups of the changed
+     * sub-categories with each ancestor, each category once all of its changed sub-categories are done. Categories in a rollup cycle are
+     * done last, in any order.
+     */
+    public void applyIncremental() throws GenericEntityException {
+        Set<String> categoryIds = FastSet.newInstance();
+        categoryIds.addAll(featureIdsByTypeIdByCategoryId.keySet());
+        categoryIds.addAll(ancestorIds);
+        // the number of changed sub-categories each category waits for, and the parents to tell when one is done
+        Map<String, Integer> pendingCountByCategoryId = FastMap.newInstance();
+        Map<String, List<String>> parentIdsByCategoryId = FastMap.newInstance();
+        for (String productCategoryId: categoryIds) {
+            int pendingCount = 0;
+            for (String subProductCategoryId: getSubCategoryIds(productCategoryId)) {
+                if (categoryIds.contains(subProductCategoryId)) {
+                    pendingCount++;
+                    List<String> parentIds = parentIdsByCategoryId.get(subProductCategoryId);
+                    if (parentIds == null) {
+                        parentIds = FastList.newInstance();
+                        parentIdsByCategoryId.put(subProductCategoryId, parentIds);
+                    }
+                    parentIds.add(productCategoryId);
+                }
+            }
+            pendingCountByCategoryId.put(productCategoryId, Integer.valueOf(pendingCount));
+        }
+
+        List<String> readyCategoryIds = FastList.newInstance();
+        for (Map.Entry<String, Integer> entry: pendingCountByCategoryId.entrySet()) {
+            if (entry.getValue().intValue() == 0) {
+                readyCategoryIds.add(entry.getKey());
+            }
+        }
+        Set<String> doneCategoryIds = FastSet.newInstance();
+        while (doneCategoryIds.size() < categoryIds.size()) {
+            if (readyCategoryIds.size() == 0) {
+                // only categories in a cycle left
+                for (String productCategoryId: categoryIds) {
+                    if (!doneCategoryIds.contains(productCategoryId)) {
+                        Debug.logWarning("Category [" + productCategoryId + "] is in a ProductCategoryRollup cycle, associating its feature groups in no particular order", module);
+                        readyCategoryIds.add(productCategoryId);
+                        break;
+                    }
+                }
+            }
+            String productCategoryId = readyCategoryIds.remove(0);
+            if (!doneCategoryIds.add(productCategoryId)) {
+                continue;
+            }
+            if (ancestorIds.contains(productCategoryId)) {
+                ProductUtilServices.linkSubCategoryFeatureGroups(productCategoryId, getSubCategoryIds(productCategoryId), delegator, nowTimestamp);
+            } else {
+                ProductUtilServices.applyCategoryFeatureGroups(productCategoryId, getFeatureIdsByTypeId(productCategoryId), getSubCategoryIds(productCategoryId), delegator, nowTimestamp);
+            }
+            List<String> parentIds = parentIdsByCategoryId.get(productCategoryId);
+            if (parentIds != null) {
+                for (String parentProductCategoryId: parentIds) {
+                    int pendingCount = pendingCountByCategoryId.get(parentProductCategoryId).intValue() - 1;
+                    pendingCountByCategoryId.put(parentProductCategoryId, Integer.valueOf(pendingCount));
+                    if (pendingCount == 0) {
+                        readyCategoryIds.add(parentProductCategoryId);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes the feature groups of all loaded categories on a fork-join pool: each category forks the sub-categories it owns, waits for all
+     * of its sub-categories, whichever parent forked them, and then makes its own feature groups in its own transaction, so sibling
+     * sub-trees run in parallel and no transaction is open while waiting. A failed category is rolled back and fails its ancestors once
+     * their other sub-categories are done; the categories already done stay committed. Returns once the pool has terminated.
+     */
+    public void applyInParallel(int threads) throws GenericEntityException {
+        Map<String, CategoryTask> taskByCategoryId = FastMap.newInstance();
+        for (String productCategoryId: featureIdsByTypeIdByCategoryId.keySet()) {
+            taskByCategoryId.put(productCategoryId, new CategoryTask(productCategoryId, taskByCategoryId));
+        }
+        long startTime = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(taskByCategoryId.get(rootProductCategoryId));
+        } catch (RuntimeException e) {
+            // the pool wraps what a task throws again, the GenericEntityException of the failed category is further down the causes
+            Throwable cause = e;
+            while (cause != null && !(cause instanceof GenericEntityException)) {
+                Throwable nested = cause instanceof GeneralRuntimeException ? ((GeneralRuntimeException) cause).getNested() : null;
+                cause = nested != null && nested != cause ? nested : cause.getCause();
+            }
+            if (cause != null) {
+                throw (GenericEntityException) cause;
+            }
+            throw new GenericEntityException("Error making the feature groups under category [" + rootProductCategoryId + "]", e);
+        } finally {
+            pool.shutdown();
+            try {
+                while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                    Debug.logWarning("Still waiting for the feature group tasks under category [" + rootProductCategoryId + "] to finish", module);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GenericEntityException("Interrupted waiting for the feature group tasks under category [" + rootProductCategoryId + "] to finish", e);
+            }
+        }
+        Debug.logInfo("Made the feature groups of " + taskByCategoryId.size() + " categories under category [" + rootProductCategoryId + "] with " + threads + " threads in " + (System.currentTimeMillis() - startTime) + "ms", module);
+    }
+
+    protected class CategoryTask extends RecursiveAction {
+        protected final String productCategoryId;
+        protected final Map<String, CategoryTask> taskByCategoryId;
+
+        protected CategoryTask(String productCategoryId, Map<String, CategoryTask> taskByCategoryId) {
+            this.productCategoryId = productCategoryId;
+            this.taskByCategoryId = taskByCategoryId;
+        }
+
+        @Override
+        protected void compute() {
+            int depth = depthByCategoryId.get(productCategoryId).intValue();
+            List<String> subCategoryIds = getSubCategoryIds(productCategoryId);
+            Set<String> forkedCategoryIds = FastSet.newInstance();
+            for (String subProductCategoryId: subCategoryIds) {
+                if (productCategoryId.equals(ownerIdByCategoryId.get(subProductCategoryId))) {
+                    taskByCategoryId.get(subProductCategoryId).fork();
+                    forkedCategoryIds.add(subProductCategoryId);
+                }
+            }
+            // every sub-category is deeper than all of its parents (see raiseToLongestDepths), except over a rollup that closes a cycle; the
+            // ones forked here are joined anyway, and all of them before a failure is passed on, so no task is left running behind it
+            RuntimeException subCategoryException = null;
+            for (String subProductCategoryId: subCategoryIds) {
+                CategoryTask subCategoryTask = taskByCategoryId.get(subProductCategoryId);
+                if (subCategoryTask != null && (forkedCategoryIds.contains(subProductCategoryId) || depthByCategoryId.get(subProductCategoryId).intValue() > depth)) {
+                    try {
+                        subCategoryTask.join();
+                    } catch (RuntimeException e) {
+                        if (subCategoryException == null) {
+                            subCategoryException = e;
+                        }
+                    }
+                }
+            }
+            if (subCategoryException != null) {
+                throw subCategoryException;
+            }
+
+            boolean beganTransaction = false;
+            try {
+                beganTransaction = TransactionUtil.begin();
+                ProductUtilServices.applyCategoryFeatureGroups(productCategoryId, getFeatureIdsByTypeId(productCategoryId), subCategoryIds, delegator, nowTimestamp);
+                TransactionUtil.commit(beganTransaction);
+            } catch (GenericEntityException e) {
+                String errMsg = "Error making the feature groups of category [" + productCategoryId + "], rolling back: " + e.toString();
+                Debug.logError(e, errMsg, module);
+                try {
+                    TransactionUtil.rollback(beganTransaction, errMsg, e);
+                } catch (GenericEntityException e2) {
+                    Debug.logError(e2, "Could not rollback the feature groups of category [" + productCategoryId + "]", module);
+                }
+                throw new GeneralRuntimeException(errMsg, e);
+            }
+        }
+    }
+
+    /** Gets the depth of the deepest loaded sub-category below the top category, 0 if there are none */
+    public int getMaxDepth() {
+        int maxDepth = 0;
+        for (Integer depth: depthByCategoryId.values()) {
+            maxDepth = Math.max(maxDepth, depth.intValue());
+        }
+        return maxDepth;
+    }
+
+    /** Gets the categories whose feature groups are made */
+    public Set<String> getCategoryIds() {
+        return featureIdsByTypeIdByCategoryId.keySet();
+    }
+
+    /** Gets the ancestors loaded by loadForProducts, that only get the groups of their sub-categories associated */
+    public Set<String> getAncestorIds() {
+        return ancestorIds;
+    }
+
+    public List<String> getSubCategoryIds(String productCategoryId) {
+        List<String> subCategoryIds = subCategoryIdsByParentId.get(productCategoryId);
+        if (subCategoryIds == null) {
+            return FastList.newInstance();
+        }
+        return subCategoryIds;
+    }
+
+    /** Gets the productFeatureTypeId to productFeatureIds Map of a loaded category */
+    public Map<String, Set<String>> getFeatureIdsByTypeId(String productCategoryId) {
+        return featureIdsByTypeIdByCategoryId.get(productCategoryId);
+    }
+
+    protected static List<List<String>> chunk(Collection<String> ids) {
+        List<List<String>> chunks = FastList.newInstance();
+        List<String> idChunk = FastList.newInstance();
+        for (String id: ids) {
+            idChunk.add(id);
+            if (idChunk.size() >= ProductUtilServices.DEFAULT_CHUNK_SIZE) {
+                chunks.add(idChunk);
+                idChunk = FastList.newInstance();
+            }
+        }
+        if (idChunk.size() > 0) {
+            chunks.add(idChunk);
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.product.product;
+
+import java.util.List;
+import java.util.Map;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.base.util.string.FlexibleStringExpander;
+
+/**
+ * Image URL pattern (ex: /images/products/${size}/${productId}.jpg) compiled once for repeated expansion. Patterns that only use the
+ * ${size} and ${productId} variables are split into literal parts with ${size} already filled in for each image size, so expanding is
+ * one StringBuilder per URL; any other pattern is expanded with FlexibleStringExpander as before. Instances are immutable and can be
+ * shared between threads.
+ */
+public final class ProductImageUrlTemplate {
+
+    public static final String module = ProductImageUrlTemplate.class.getName();
+    public static final List<String> IMAGE_SIZES = UtilMisc.toList("small", "medium", "large", "detail");
+
+    private final String pattern;
+    /** The pattern split on ${productId}/${size}, null when the pattern uses anything else */
+    private final List<Object> tokens;
+    private final Map<String, String[]> literalsBySize;
+    private final FlexibleStringExpander fallbackExpander;
+
+    private ProductImageUrlTemplate(String pattern) {
+        this.pattern = pattern;
+        this.tokens = tokenize(pattern);
+        if (tokens != null) {
+            this.fallbackExpander = null;
+            Map<String, String[]> literalsBySize = FastMap.newInstance();
+            for (String size: IMAGE_SIZES) {
+                literalsBySize.put(size, makeLiterals(size));
+            }
+            this.literalsBySize = literalsBySize;
+        } else {
+            Debug.logInfo("Image URL pattern [" + pattern + "] uses more than ${size} and ${productId}, expanding it with FlexibleStringExpander", module);
+            this.fallbackExpander = FlexibleStringExpander.getInstance(pattern);
+            this.literalsBySize = null;
+        }
+    }
+
+    public static ProductImageUrlTemplate compile(String pattern) {
+        return new ProductImageUrlTemplate(pattern);
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    /** Expands the pattern for the product and image size; a null productId expands to an empty string like a missing variable */
+    public String expand(String productId, String size) {
+        if (fallbackExpander != null) {
+            return fallbackExpander.expandString(UtilMisc.toMap("size", size, "productId", productId));
+        }
+        String[] literals = literalsBySize.get(size);
+        if (literals == null) {
+            literals = makeLiterals(size);
+        }
+        if (literals.length == 1) {
+            return literals[0];
+        }
+        String id = productId == null ? "" : productId;
+        int length = id.length() * (literals.length - 1);
+        for (String literal: literals) {
+            length += literal.length();
+        }
+        StringBuilder sb = new StringBuilder(length);
+        sb.append(literals[0]);
+        for (int i = 1; i < literals.length; i++) {
+            sb.append(id).append(literals[i]);
+        }
+        return sb.toString();
+    }
+
+    /** Splits the pattern into String literals and the Boolean markers TRUE for ${productId} and FALSE for ${size}; null if anything else is used */
+    private static List<Object> tokenize(String pattern) {
+        if (pattern.indexOf('\\') >= 0) {
+            // leave escaping to FlexibleStringExpander
+            return null;
+        }
+        List<Object> tokens = FastList.newInstance();
+        int pos = 0;
+        while (pos < pattern.length()) {
+            int start = pattern.indexOf("${", pos);
+            if (start < 0) {
+                tokens.add(pattern.substring(pos));
+                break;
+            }
+            int end = pattern.indexOf('}', start);
+            if (end < 0) {
+                return null;
+            }
+            String variable = pattern.substring(start + 2, end);
+            if (start > pos) {
+                tokens.add(pattern.substring(pos, start));
+            }
+            if ("productId".equals(variable)) {
+                tokens.add(Boolean.TRUE);
+            } else if ("size".equals(variable)) {
+                tokens.add(Boolean.FALSE);
+            } else {
+                return null;
+            }
+            pos = end + 1;
+        }
+        return tokens;
+    }
+
+    /** Fills the size into the tokens, giving the literals to put between the productIds */
+    private String[] makeLiterals(String size) {
+        List<String> literals = FastList.newInstance();
+        StringBuilder current = new StringBuilder();
+        for (Object token: tokens) {
+            if (Boolean.TRUE.equals(token)) {
+                literals.add(current.toString());
+                current.setLength(0);
+            } else if (Boolean.FALSE.equals(token)) {
+                current.append(size == null ? "" : size);
+            } else {
+                current.append((String) token);
+            }
+        }
+        literals.add(current.toString());
+        return literals.toArray(new String[literals.size()]);
+    }
+}
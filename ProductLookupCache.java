@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.product.product;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javolution.util.FastMap;
+
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+
+/**
+ * Read-through cache of Product rows and PRODUCT_VARIANT ProductAssocs for one run of a maintenance service, so the same virtual product
+ * and its variants are read once per run instead of once per variant. Holds at most maxSize entries, evicting the least recently used;
+ * unlike the entity cache it is never shared between runs. The cached values are immutable: to change one, change a copy and invalidate
+ * the entries it is in. Thread safe.
+ */
+public class ProductLookupCache {
+
+    public static final String module = ProductLookupCache.class.getName();
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    /** Stands for a product that doesn't exist, so misses aren't read again */
+    private static final Object NO_PRODUCT = new Object();
+
+    protected final Delegator delegator;
+    protected final int maxSize;
+    protected final Map<String, Object> entries;
+    protected final AtomicLong hits = new AtomicLong();
+    protected final AtomicLong misses = new AtomicLong();
+
+    public ProductLookupCache(Delegator delegator, final int maxSize) {
+        this.delegator = delegator;
+        this.maxSize = maxSize;
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<String, Object>(Math.min(maxSize, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    /** Gets the product, null if there is none */
+    public GenericValue getProduct(String productId) throws GenericEntityException {
+        String key = "Product:" + productId;
+        Object product = entries.get(key);
+        if (product != null) {
+            hits.incrementAndGet();
+            return product == NO_PRODUCT ? null : (GenericValue) product;
+        }
+        misses.incrementAndGet();
+        product = delegator.findOne("Product", UtilMisc.toMap("productId", productId), false);
+        if (product != null) {
+            ((GenericValue) product).setImmutable();
+        }
+        entries.put(key, product == null ? NO_PRODUCT : product);
+        return (GenericValue) product;
+    }
+
+    /** Gets all PRODUCT_VARIANT assocs from the virtual product, any dates; the List must not be changed */
+    public List<GenericValue> getVariantAssocs(String virtualProductId) throws GenericEntityException {
+        return getAssocs("VariantAssocs:" + virtualProductId, "productId", virtualProductId);
+    }
+
+    /** Gets all PRODUCT_VARIANT assocs to the variant product, any dates; the List must not be changed */
+    public List<GenericValue> getVirtualAssocs(String variantProductId) throws GenericEntityException {
+        return getAssocs("VirtualAssocs:" + variantProductId, "productIdTo", variantProductId);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected List<GenericValue> getAssocs(String key, String productIdField, String productId) throws GenericEntityException {
+        List<GenericValue> assocs = (List<GenericValue>) entries.get(key);
+        if (assocs != null) {
+            hits.incrementAndGet();
+            return assocs;
+        }
+        misses.incrementAndGet();
+        assocs = delegator.findByAnd("ProductAssoc", UtilMisc.toMap(productIdField, productId, "productAssocTypeId", "PRODUCT_VARIANT"), null, false);
+        for (GenericValue assoc: assocs) {
+            assoc.setImmutable();
+        }
+        assocs = Collections.unmodifiableList(assocs);
+        entries.put(key, assocs);
+        return assocs;
+    }
+
+    public void invalidateProduct(String productId) {
+        entries.remove("Product:" + productId);
+    }
+
+    /** Drops the cached assocs to the variant */
+    public void invalidateVirtualAssocs(String variantProductId) {
+        entries.remove("VirtualAssocs:" + variantProductId);
+    }
+
+    /** Drops the assoc lists the ProductAssoc is in, for when it is created, changed or removed */
+    public void invalidateAssoc(GenericValue productAssoc) {
+        entries.remove("VariantAssocs:" + productAssoc.getString("productId"));
+        entries.remove("VirtualAssocs:" + productAssoc.getString("productIdTo"));
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Gets the size, maxSize, hits, misses and hitRate (percent) */
+    public Map<String, Object> getStats() {
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        Map<String, Object> stats = FastMap.newInstance();
+        stats.put("size", Integer.valueOf(entries.size()));
+        stats.put("maxSize", Integer.valueOf(maxSize));
+        stats.put("hits", Long.valueOf(hitCount));
+        stats.put("misses", Long.valueOf(misses.get()));
+        stats.put("hitRate", Long.valueOf(lookups > 0 ? hitCount * 100 / lookups : 0));
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return "ProductLookupCache" + getStats();
+    }
+}
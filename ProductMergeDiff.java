@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.product.product;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Map;
+
+import javolution.util.FastMap;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.UtilValidate;
+import org.ofbiz.entity.GenericEntity;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.model.ModelEntity;
+
+/**
+ * Dry-run report of mergeVirtualWithSingleVariant: streams one tab separated line per change that would be made, with the operation
+ * (C for create, U for update, R for remove), the entity name, the primary key and for creates the other fields set, for updates only the
+ * fields that change as field=old>new, and an E line after the lines of a merge that failed part way. In the values a backslash, tab, newline,
+ * carriage return, comma, = and > are escaped with a backslash (\t, \n and \r for the control characters), so every line splits back
+ * into its fields. A summary of the counts per entity and operation is written when it is closed.
+ */
+public class ProductMergeDiff {
+
+    public static final String module = ProductMergeDiff.class.getName();
+
+    protected final String fileName;
+    protected final Writer writer;
+    /** entity name -> counts of creates, updates and removes */
+    protected final Map<String, long[]> countsByEntityName = FastMap.newInstance();
+
+    protected ProductMergeDiff(String fileName, Writer writer) {
+        this.fileName = fileName;
+        this.writer = writer;
+    }
+
+    /** Opens the report file in the productutil output directory (see ProductUtilServices.getOutputFile), appending to it if it exists */
+    public static ProductMergeDiff open(String fileName) throws GenericEntityException {
+        File file = ProductUtilServices.getOutputFile(fileName);
+        try {
+            return new ProductMergeDiff(file.getPath(), new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8")));
+        } catch (IOException e) {
+            throw new GenericEntityException("Could not open merge diff file [" + fileName + "]", e);
+        }
+    }
+
+    public synchronized void create(GenericEntity value) throws GenericEntityException {
+        StringBuilder line = startLine("C", value);
+        ModelEntity modelEntity = value.getModelEntity();
+        for (String fieldName: modelEntity.getNoPkFieldNames()) {
+            Object fieldValue = value.get(fieldName);
+            if (fieldValue != null && !isStampField(fieldName)) {
+                line.append('\t').append(fieldName).append('=').append(escape(fieldValue));
+            }
+        }
+        writeLine(line, value.getEntityName(), 0);
+    }
+
+    /** Writes the fields that differ between the stored value and the value that would be stored, nothing if none do */
+    public synchronized void update(GenericEntity oldValue, GenericEntity newValue) throws GenericEntityException {
+        StringBuilder line = startLine("U", newValue);
+        boolean changed = false;
+        for (String fieldName: newValue.getModelEntity().getNoPkFieldNames()) {
+            Object oldFieldValue = oldValue.get(fieldName);
+            Object newFieldValue = newValue.get(fieldName);
+            if (!isStampField(fieldName) && !UtilValidate.areEqual(oldFieldValue, newFieldValue)) {
+                line.append('\t').append(fieldName).append('=').append(escape(oldFieldValue)).append('>').append(escape(newFieldValue));
+                changed = true;
+            }
+        }
+        if (changed) {
+            writeLine(line, newValue.getEntityName(), 1);
+        }
+    }
+
+    public synchronized void remove(GenericEntity value) throws GenericEntityException {
+        writeLine(startLine("R", value), value.getEntityName(), 2);
+    }
+
+    public synchronized void removeAll(Collection<? extends GenericEntity> values) throws GenericEntityException {
+        for (GenericEntity value: values) {
+            remove(value);
+        }
+    }
+
+    /** Marks the merge of the virtual as failed; the lines written for it before the failure are incomplete */
+    public synchronized void failed(String productId, String message) throws GenericEntityException {
+        StringBuilder line = new StringBuilder("E\tProduct\tproductId=").append(escape(productId)).append('\t').append(escape(message)).append('\n');
+        try {
+            writer.write(line.toString());
+        } catch (IOException e) {
+            throw new GenericEntityException("Error writing merge diff file [" + fileName + "]", e);
+        }
+    }
+
+    /** Gets the counts per entity name as a Map of entity name to a Map with the created, updated and removed counts */
+    public synchronized Map<String, Object> getSummary() {
+        Map<String, Object> summary = FastMap.newInstance();
+        for (Map.Entry<String, long[]> entry: countsByEntityName.entrySet()) {
+            Map<String, Object> counts = FastMap.newInstance();
+            counts.put("created", Long.valueOf(entry.getValue()[0]));
+            counts.put("updated", Long.valueOf(entry.getValue()[1]));
+            counts.put("removed", Long.valueOf(entry.getValue()[2]));
+            summary.put(entry.getKey(), counts);
+        }
+        return summary;
+    }
+
+    /** Writes the summary lines (# entity created updated removed) and closes the file */
+    public synchronized void close() {
+        try {
+            for (Map.Entry<String, long[]> entry: countsByEntityName.entrySet()) {
+                long[] counts = entry.getValue();
+                writer.write("#\t" + entry.getKey() + "\t" + counts[0] + "\t" + counts[1] + "\t" + counts[2] + "\n");
+            }
+            writer.close();
+        } catch (IOException e) {
+            Debug.logError(e, "Error closing merge diff file [" + fileName + "]", module);
+        }
+        Debug.logInfo("Wrote merge diff to [" + fileName + "]: " + getSummary(), module);
+    }
+
+    protected StringBuilder startLine(String operation, GenericEntity value) {
+        StringBuilder line = new StringBuilder(operation).append('\t').append(value.getEntityName()).append('\t');
+        boolean first = true;
+        for (String pkFieldName: value.getModelEntity().getPkFieldNames()) {
+            if (!first) {
+                line.append(',');
+            }
+            line.append(pkFieldName).append('=').append(escape(value.get(pkFieldName)));
+            first = false;
+        }
+        return line;
+    }
+
+    protected void writeLine(StringBuilder line, String entityName, int operationIndex) throws GenericEntityException {
+        try {
+            writer.write(line.append('\n').toString());
+        } catch (IOException e) {
+            throw new GenericEntityException("Error writing merge diff file [" + fileName + "]", e);
+        }
+        long[] counts = countsByEntityName.get(entityName);
+        if (counts == null) {
+            counts = new long[3];
+            countsByEntityName.put(entityName, counts);
+        }
+        counts[operationIndex]++;
+    }
+
+    /** Escapes the characters that separate lines, fields, primary key fields and old from new values */
+    protected static String escape(Object value) {
+        String text = String.valueOf(value);
+        StringBuilder escaped = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String replacement = null;
+            switch (c) {
+                case '\\': replacement = "\\\\"; break;
+                case '\t': replacement = "\\t"; break;
+                case '\n': replacement = "\\n"; break;
+                case '\r': replacement = "\\r"; break;
+                case ',': replacement = "\\,"; break;
+                case '=': replacement = "\\="; break;
+                case '>': replacement = "\\>"; break;
+            }
+            if (replacement != null && escaped == null) {
+                escaped = new StringBuilder(text.length() + 16).append(text, 0, i);
+            }
+            if (escaped != null) {
+                if (replacement != null) {
+                    escaped.append(replacement);
+                } else {
+                    escaped.append(c);
+                }
+            }
+        }
+        return escaped == null ? text : escaped.toString();
+    }
+
+    private static boolean isStampField(String fieldName) {
+        return ModelEntity.STAMP_FIELD.equals(fieldName) || ModelEntity.STAMP_TX_FIELD.equals(fieldName)
+                || ModelEntity.CREATE_STAMP_FIELD.equals(fieldName) || ModelEntity.CREATE_STAMP_TX_FIELD.equals(fieldName);
+    }
+}
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.product.product;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+import javolution.util.FastSet;
+
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericPK;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityOperator;
+import org.ofbiz.entity.util.EntityUtil;
+
+/**
+ * Everything the mergeVirtualWithSingleVariant dry runs of a set of virtual products read, loaded up front with a few IN queries per
+ * entity: the virtual products, their currently valid variants, and the related rows of both. The dry run reports its would-be removes
+ * and stores of the variant ProductAssocs back here so later reads see them. Not thread safe.
+ */
+public class ProductMergePrefetch {
+
+    public static final String module = ProductMergePrefetch.class.getName();
+
+    protected final Delegator delegator;
+    protected final Timestamp nowTimestamp;
+    protected final Set<String> productIds = FastSet.newInstance();
+    protected final Map<String, GenericValue> productById = FastMap.newInstance();
+    /** entity name + "." + productId field name -> productId -> rows */
+    protected final Map<String, Map<String, List<GenericValue>>> relatedByEntityField = FastMap.newInstance();
+
+    protected ProductMergePrefetch(Delegator delegator, Timestamp nowTimestamp) {
+        this.delegator = delegator;
+        this.nowTimestamp = nowTimestamp;
+    }
+
+    /**
+     * Loads the virtual products, their currently valid variants and for each relation ({title, related entity name, productId field})
+     * the related rows of all of them.
+     */
+    public static ProductMergePrefetch load(Delegator delegator, Collection<String> virtualProductIds, String[][] relations, Timestamp nowTimestamp) throws GenericEntityException {
+        ProductMergePrefetch prefetch = new ProductMergePrefetch(delegator, nowTimestamp);
+        prefetch.productIds.addAll(virtualProductIds);
+        // the variant assocs first, they are needed to know which variants to read
+        prefetch.loadRelated("ProductAssoc", "productId", virtualProductIds);
+        Set<String> variantProductIds = FastSet.newInstance();
+        for (String virtualProductId: virtualProductIds) {
+            for (GenericValue productAssoc: prefetch.getValidVariantAssocs(virtualProductId)) {
+                String variantProductId = productAssoc.getString("productIdTo");
+                if (prefetch.productIds.add(variantProductId)) {
+                    variantProductIds.add(variantProductId);
+                }
+            }
+        }
+        prefetch.loadRelated("ProductAssoc", "productId", variantProductIds);
+
+        for (List<String> idChunk: chunk(prefetch.productIds)) {
+            for (GenericValue product: delegator.findList("Product", EntityCondition.makeCondition("productId", EntityOperator.IN, idChunk), null, null, null, false)) {
+                prefetch.productById.put(product.getString("productId"), product);
+            }
+        }
+        for (String[] relation: relations) {
+            if (!prefetch.relatedByEntityField.containsKey(relation[1] + "." + relation[2])) {
+                prefetch.loadRelated(relation[1], relation[2], prefetch.productIds);
+            }
+        }
+        return prefetch;
+    }
+
+    /** Loads the rows of the entity with the productId field set to any of the productIds */
+    public void loadRelated(String entityName, String productIdField, Collection<String> productIds) throws GenericEntityException {
+        Map<String, List<GenericValue>> relatedByProductId = relatedByEntityField.get(entityName + "." + productIdField);
+        if (relatedByProductId == null) {
+            relatedByProductId = FastMap.newInstance();
+            relatedByEntityField.put(entityName + "." + productIdField, relatedByProductId);
+        }
+        for (List<String> idChunk: chunk(productIds)) {
+            for (GenericValue value: delegator.findList(entityName, EntityCondition.makeCondition(productIdField, EntityOperator.IN, idChunk), null, null, null, false)) {
+                List<GenericValue> relatedList = relatedByProductId.get(value.getString(productIdField));
+                if (relatedList == null) {
+                    relatedList = FastList.newInstance();
+                    relatedByProductId.put(value.getString(productIdField), relatedList);
+                }
+                relatedList.add(value);
+            }
+        }
+    }
+
+    public GenericValue getProduct(String productId) {
+        return productById.get(productId);
+    }
+
+    /** Gets the currently valid PRODUCT_VARIANT assocs of the virtual product */
+    public List<GenericValue> getValidVariantAssocs(String productId) {
+        List<GenericValue> variantAssocs = EntityUtil.filterByAnd(getRelated("ProductAssoc", "productId", productId), UtilMisc.toMap("productAssocTypeId", "PRODUCT_VARIANT"));
+        return EntityUtil.filterByDate(variantAssocs, nowTimestamp);
+    }
+
+    /** Gets all rows of the entity with the productId field set to the productId; the relation must have been loaded */
+    public List<GenericValue> getRelated(String entityName, String productIdField, String productId) {
+        Map<String, List<GenericValue>> relatedByProductId = relatedByEntityField.get(entityName + "." + productIdField);
+        if (relatedByProductId == null) {
+            throw new IllegalStateException("The " + entityName + " rows by " + productIdField + " were not loaded");
+        }
+        List<GenericValue> relatedList = relatedByProductId.get(productId);
+        if (relatedList == null) {
+            return FastList.newInstance();
+        }
+        return relatedList;
+    }
+
+    /** Drops a would-be removed row so it isn't read again, from every relation of its entity it was loaded for */
+    public void removeValue(GenericValue value) {
+        replaceValue(value, null);
+    }
+
+    /** Replaces the loaded copies of a would-be stored row with the changed value */
+    public void storeValue(GenericValue value) {
+        replaceValue(value, value);
+    }
+
+    protected void replaceValue(GenericValue value, GenericValue replacement) {
+        GenericPK primaryKey = value.getPrimaryKey();
+        for (Map.Entry<String, Map<String, List<GenericValue>>> entry: relatedByEntityField.entrySet()) {
+            if (!entry.getKey().startsWith(value.getEntityName() + ".")) {
+                continue;
+            }
+            String productIdField = entry.getKey().substring(value.getEntityName().length() + 1);
+            List<GenericValue> relatedList = entry.getValue().get(value.getString(productIdField));
+            if (relatedList == null) {
+                continue;
+            }
+            ListIterator<GenericValue> relatedIter = relatedList.listIterator();
+            while (relatedIter.hasNext()) {
+                if (primaryKey.equals(relatedIter.next().getPrimaryKey())) {
+                    if (replacement == null) {
+                        relatedIter.remove();
+                    } else {
+                        relatedIter.set(replacement);
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<List<String>> chunk(Collection<String> productIds) {
+        List<List<String>> chunks = FastList.newInstance();
+        List<String> idChunk = FastList.newInstance();
+        for (String productId: productIds) {
+            idChunk.add(productId);
+            if (idChunk.size() >= ProductUtilServices.DEFAULT_CHUNK_SIZE) {
+                chunks.add(idChunk);
+                idChunk = FastList.newInstance();
+            }
+        }
+        if (idChunk.size() > 0) {
+            chunks.add(idChunk);
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.product.product;
+
+import java.util.Collection;
+import java.util.List;
+
+import javax.transaction.Transaction;
+
+import javolution.util.FastList;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityOperator;
+import org.ofbiz.entity.model.DynamicViewEntity;
+import org.ofbiz.entity.transaction.GenericTransactionException;
+import org.ofbiz.entity.transaction.TransactionUtil;
+import org.ofbiz.entity.util.EntityFindOptions;
+import org.ofbiz.entity.util.EntityListIterator;
+
+/**
+ * Checkpointed scan ordered by a single String key (productId by default): the rows are read in pages of about commitSize rows using
+ * the last processed key as a cursor, each page is handled and committed in its own transaction together with the cursor, and the cursor
+ * is kept as a SystemProperty so a failed or timed out run continues after the last committed page when it is run again.
+ */
+public class ProductScanCheckpoint {
+
+    public static final String module = ProductScanCheckpoint.class.getName();
+    /** SystemProperty.systemResourceId the resume cursors are stored under, the systemPropertyId is the checkpoint name */
+    public static final String CHECKPOINT_RESOURCE_ID = "ProductUtilServices";
+
+    protected final Delegator delegator;
+    protected final String checkpointName;
+    protected final String entityName;
+    protected final DynamicViewEntity dynamicViewEntity;
+    protected final EntityCondition condition;
+    protected final EntityCondition havingCondition;
+    protected final Collection<String> fieldsToSelect;
+    protected String keyFieldName = "productId";
+    protected int commitSize = 1000;
+    protected int transactionTimeout = 0;
+    /** the metrics of the run when the delegator is a metered one, to record the page transactions in */
+    protected final ProductUtilMetrics metrics;
+
+    public ProductScanCheckpoint(Delegator delegator, String checkpointName, String entityName, EntityCondition condition, Collection<String> fieldsToSelect) {
+        this(delegator, checkpointName, entityName, null, condition, null, fieldsToSelect);
+    }
+
+    public ProductScanCheckpoint(Delegator delegator, String checkpointName, DynamicViewEntity dynamicViewEntity, EntityCondition condition, EntityCondition havingCondition, Collection<String> fieldsToSelect) {
+        this(delegator, checkpointName, null, dynamicViewEntity, condition, havingCondition, fieldsToSelect);
+    }
+
+    protected ProductScanCheckpoint(Delegator delegator, String checkpointName, String entityName, DynamicViewEntity dynamicViewEntity, EntityCondition condition, EntityCondition havingCondition, Collection<String> fieldsToSelect) {
+        this.delegator = delegator;
+        this.checkpointName = checkpointName;
+        this.entityName = entityName;
+        this.dynamicViewEntity = dynamicViewEntity;
+        this.condition = condition;
+        this.havingCondition = havingCondition;
+        this.fieldsToSelect = fieldsToSelect;
+        this.metrics = ProductUtilMetrics.getMetrics(delegator);
+    }
+
+    public void setKeyFieldName(String keyFieldName) {
+        this.keyFieldName = keyFieldName;
+    }
+
+    /** Sets the number of rows per transaction; a page is extended past this to keep all rows with the same key together */
+    public void setCommitSize(int commitSize) {
+        this.commitSize = Math.max(1, commitSize);
+    }
+
+    /** Transaction timeout in seconds for each page, 0 for the default */
+    public void setTransactionTimeout(int transactionTimeout) {
+        this.transactionTimeout = transactionTimeout;
+    }
+
+    /**
+     * Runs the scan from the saved cursor, if there is one, to the end and removes the cursor once done. Any transaction of the caller
+     * is suspended while running so the pages really are committed one by one.
+     * @return the sum of the rows processed as returned by the handler, for this run only
+     */
+    public int run(ProductScanExecutor.ChunkHandler handler) throws GenericEntityException {
+        Transaction parentTransaction = TransactionUtil.suspend();
+        try {
+            String cursor = getCursor();
+            if (cursor != null) {
+                Debug.logInfo("Resuming " + checkpointName + " after " + keyFieldName + " [" + cursor + "]", module);
+            }
+            int rowsRead = 0;
+            int rowsProcessed = 0;
+            List<GenericValue> page = FastList.newInstance();
+            while (true) {
+                boolean beganTransaction = false;
+                long transactionStartNanos = System.nanoTime();
+                try {
+                    beganTransaction = TransactionUtil.begin(transactionTimeout);
+                    readPage(cursor, page);
+                    if (page.size() == 0) {
+                        TransactionUtil.commit(beganTransaction);
+                        recordTransaction(transactionStartNanos, true);
+                        break;
+                    }
+                    rowsProcessed += handler.handleChunk(page);
+                    rowsRead += page.size();
+                    cursor = page.get(page.size() - 1).getString(keyFieldName);
+                    storeCursor(cursor);
+                    TransactionUtil.commit(beganTransaction);
+                    recordTransaction(transactionStartNanos, true);
+                } catch (Throwable t) {
+                    // roll back for runtime exceptions too, the parent transaction is resumed below and must not find this one still open
+                    String errMsg = "Error in " + checkpointName + " after " + keyFieldName + " [" + cursor + "], rolling back the current page; the next run will resume from there: " + t.toString();
+                    Debug.logError(t, errMsg, module);
+                    try {
+                        TransactionUtil.rollback(beganTransaction, errMsg, t);
+                    } catch (GenericTransactionException e) {
+                        Debug.logError(e, "Could not roll back the current page of " + checkpointName, module);
+                    }
+                    recordTransaction(transactionStartNanos, false);
+                    throw t;
+                }
+                Debug.logInfo("Committed " + rowsRead + " rows for " + checkpointName + ", processed " + rowsProcessed + ", resume cursor is [" + cursor + "]", module);
+                page.clear();
+            }
+            clearCheckpoint();
+            Debug.logInfo("Completed " + checkpointName + " - read " + rowsRead + " rows, processed " + rowsProcessed, module);
+            return rowsProcessed;
+        } finally {
+            TransactionUtil.resume(parentTransaction);
+        }
+    }
+
+    private void recordTransaction(long transactionStartNanos, boolean committed) {
+        if (metrics != null) {
+            metrics.recordTransaction(System.nanoTime() - transactionStartNanos, committed);
+        }
+    }
+
+    /**
+     * Reads the next page after the cursor: at most commitSize rows, so each page query stops early instead of running over the rest of
+     * the table; when the page is full the rows of its last key are read again on their own, to keep all rows with the same key together.
+     */
+    protected void readPage(String cursor, List<GenericValue> page) throws GenericEntityException {
+        EntityCondition pageCondition = condition;
+        if (cursor != null) {
+            pageCondition = andCondition(EntityCondition.makeCondition(keyFieldName, EntityOperator.GREATER_THAN, cursor));
+        }
+        readRows(pageCondition, commitSize, page);
+        if (page.size() < commitSize) {
+            return;
+        }
+        String lastKey = page.get(page.size() - 1).getString(keyFieldName);
+        while (page.size() > 0 && lastKey.equals(page.get(page.size() - 1).getString(keyFieldName))) {
+            page.remove(page.size() - 1);
+        }
+        readRows(andCondition(EntityCondition.makeCondition(keyFieldName, EntityOperator.EQUALS, lastKey)), 0, page);
+    }
+
+    private EntityCondition andCondition(EntityCondition keyCondition) {
+        return condition == null ? keyCondition : EntityCondition.makeCondition(condition, EntityOperator.AND, keyCondition);
+    }
+
+    /** Adds the rows matching the condition, in key order and at most maxRows of them if maxRows is positive, to the list */
+    private void readRows(EntityCondition rowCondition, int maxRows, List<GenericValue> rows) throws GenericEntityException {
+        EntityFindOptions findOptions = new EntityFindOptions();
+        findOptions.setFetchSize(commitSize);
+        if (maxRows > 0) {
+            findOptions.setMaxRows(maxRows);
+        }
+        EntityListIterator eli = null;
+        if (dynamicViewEntity != null) {
+            eli = delegator.findListIteratorByCondition(dynamicViewEntity, rowCondition, havingCondition, fieldsToSelect, UtilMisc.toList(keyFieldName), findOptions);
+        } else {
+            eli = delegator.find(entityName, rowCondition, havingCondition, fieldsToSelect == null ? null : UtilMisc.makeSetWritable(fieldsToSelect), UtilMisc.toList(keyFieldName), findOptions);
+        }
+        try {
+            GenericValue value = null;
+            while ((value = eli.next()) != null) {
+                rows.add(value);
+            }
+        } finally {
+            eli.close();
+        }
+    }
+
+    /** Gets the saved resume cursor, null if the last run completed or there was none */
+    public String getCursor() throws GenericEntityException {
+        GenericValue systemProperty = delegator.findOne("SystemProperty", UtilMisc.toMap("systemResourceId", CHECKPOINT_RESOURCE_ID, "systemPropertyId", checkpointName), false);
+        if (systemProperty == null) {
+            return null;
+        }
+        return systemProperty.getString("systemPropertyValue");
+    }
+
+    protected void storeCursor(String cursor) throws GenericEntityException {
+        GenericValue systemProperty = delegator.makeValue("SystemProperty", UtilMisc.toMap("systemResourceId", CHECKPOINT_RESOURCE_ID, "systemPropertyId", checkpointName));
+        systemProperty.set("systemPropertyValue", cursor);
+        systemProperty.set("description", "Resume cursor (last committed " + keyFieldName + ") of " + checkpointName);
+        delegator.createOrStore(systemProperty);
+    }
+
+    /** Removes the saved cursor so the next run starts from the beginning */
+    public void clearCheckpoint() throws GenericEntityException {
+        delegator.removeByAnd("SystemProperty", UtilMisc.toMap("systemResourceId", CHECKPOINT_RESOURCE_ID, "systemPropertyId", checkpointName));
+    }
+}
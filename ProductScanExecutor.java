@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.product.product;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityOperator;
+import org.ofbiz.entity.transaction.GenericTransactionException;
+import org.ofbiz.entity.transaction.TransactionUtil;
+import org.ofbiz.entity.util.EntityListIterator;
+
+/**
+ * Partitioned scan of an entity keyed by a single String field (productId by default): the key space of the rows matching a condition
+ * is split into ranges of about the same size and the ranges are processed on a bounded worker pool, each range in its own transaction.
+ */
+public class ProductScanExecutor {
+
+    public static final String module = ProductScanExecutor.class.getName();
+
+    /** Processes the rows of a scan one chunk at a time; the chunk list is reused by the caller so it must not be kept */
+    public interface ChunkHandler {
+        /** @return the number of rows in the chunk that were actually processed (changed, removed, etc) */
+        int handleChunk(List<GenericValue> chunk) throws GenericEntityException;
+    }
+
+    protected final Delegator delegator;
+    protected final String entityName;
+    protected final EntityCondition condition;
+    protected final Set<String> fieldsToSelect;
+    protected String keyFieldName = "productId";
+    protected int threads = 1;
+    protected int partitions = 1;
+    protected int chunkSize = ProductUtilServices.DEFAULT_CHUNK_SIZE;
+    protected int transactionTimeout = 0;
+    /** the metrics of the run when the delegator is a metered one, to record the partition transactions in */
+    protected final ProductUtilMetrics metrics;
+
+    public ProductScanExecutor(Delegator delegator, String entityName, EntityCondition condition, Set<String> fieldsToSelect) {
+        this.delegator = delegator;
+        this.metrics = ProductUtilMetrics.getMetrics(delegator);
+        this.entityName = entityName;
+        this.condition = condition;
+        this.fieldsToSelect = fieldsToSelect;
+    }
+
+    public void setKeyFieldName(String keyFieldName) {
+        this.keyFieldName = keyFieldName;
+    }
+
+    /** Sets the size of the worker pool and the number of key ranges; partitions below threads are raised to threads */
+    public void setThreads(int threads, int partitions) {
+        this.threads = Math.max(1, threads);
+        this.partitions = Math.max(this.threads, partitions);
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /** Transaction timeout in seconds for each partition, 0 for the default */
+    public void setTransactionTimeout(int transactionTimeout) {
+        this.transactionTimeout = transactionTimeout;
+    }
+
+    /**
+     * Runs the scan, waits for all partitions and returns one statistics Map per partition (partition, lowKey, highKey, rowsRead,
+     * rowsProcessed, elapsedMillis, rowsPerSecond). Partitions that fail are rolled back; the first failure is thrown once all
+     * partitions are done, the work of the others stays committed.
+     */
+    public List<Map<String, Object>> run(final String scanName, final ChunkHandler handler) throws GenericEntityException {
+        final List<String> boundaries = findKeyBoundaries();
+        Debug.logInfo("Starting " + scanName + " on " + entityName + " with " + (boundaries.size() + 1) + " partitions and " + threads + " threads", module);
+
+        ThreadPoolExecutor executor = newWorkerPool(scanName, threads, boundaries.size() + 1);
+        List<Future<Map<String, Object>>> futureList = FastList.newInstance();
+        try {
+            for (int i = 0; i <= boundaries.size(); i++) {
+                final int index = i;
+                final String lowKey = i == 0 ? null : boundaries.get(i - 1);
+                final String highKey = i == boundaries.size() ? null : boundaries.get(i);
+                futureList.add(executor.submit(new Callable<Map<String, Object>>() {
+                    public Map<String, Object> call() throws GenericEntityException {
+                        return runPartition(scanName, index, lowKey, highKey, handler);
+                    }
+                }));
+            }
+
+            List<Map<String, Object>> statsList = FastList.newInstance();
+            GenericEntityException firstError = null;
+            for (Future<Map<String, Object>> future: futureList) {
+                try {
+                    statsList.add(future.get());
+                } catch (ExecutionException e) {
+                    if (firstError == null) {
+                        Throwable cause = e.getCause();
+                        firstError = cause instanceof GenericEntityException ? (GenericEntityException) cause : new GenericEntityException("Error in partition of " + scanName, cause);
+                    }
+                } catch (InterruptedException e) {
+                    throw new GenericEntityException("Interrupted while waiting for the partitions of " + scanName, e);
+                }
+            }
+            if (firstError != null) {
+                throw firstError;
+            }
+            return statsList;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Gets the keys that start each partition but the first, by stepping through the ordered keys of the matching rows */
+    protected List<String> findKeyBoundaries() throws GenericEntityException {
+        List<String> boundaries = FastList.newInstance();
+        if (partitions <= 1) {
+            return boundaries;
+        }
+        long count = delegator.findCountByCondition(entityName, condition, null, null);
+        long step = (count + partitions - 1) / partitions;
+        if (step == 0) {
+            return boundaries;
+        }
+        EntityListIterator eli = delegator.find(entityName, condition, null, UtilMisc.toSet(keyFieldName), UtilMisc.toList(keyFieldName), null);
+        try {
+            GenericValue value = null;
+            long rowNum = 0;
+            while ((value = eli.next()) != null) {
+                if (rowNum > 0 && rowNum % step == 0) {
+                    boundaries.add(value.getString(keyFieldName));
+                }
+                rowNum++;
+            }
+        } finally {
+            eli.close();
+        }
+        return boundaries;
+    }
+
+    protected Map<String, Object> runPartition(String scanName, int index, String lowKey, String highKey, ChunkHandler handler) throws GenericEntityException {
+        List<EntityCondition> conditionList = FastList.newInstance();
+        if (condition != null) {
+            conditionList.add(condition);
+        }
+        if (lowKey != null) {
+            conditionList.add(EntityCondition.makeCondition(keyFieldName, EntityOperator.GREATER_THAN_EQUAL_TO, lowKey));
+        }
+        if (highKey != null) {
+            conditionList.add(EntityCondition.makeCondition(keyFieldName, EntityOperator.LESS_THAN, highKey));
+        }
+
+        long startTime = System.currentTimeMillis();
+        int rowsRead = 0;
+        int rowsProcessed = 0;
+        boolean beganTransaction = false;
+        long transactionStartNanos = System.nanoTime();
+        try {
+            beganTransaction = TransactionUtil.begin(transactionTimeout);
+            EntityListIterator eli = delegator.find(entityName, EntityCondition.makeCondition(conditionList, EntityOperator.AND), null, fieldsToSelect, UtilMisc.toList(keyFieldName), null);
+            try {
+                List<GenericValue> chunk = FastList.newInstance();
+                GenericValue value = null;
+                while ((value = eli.next()) != null) {
+                    rowsRead++;
+                    chunk.add(value);
+                    if (chunk.size() >= chunkSize) {
+                        rowsProcessed += handler.handleChunk(chunk);
+                        chunk.clear();
+                    }
+                }
+                if (chunk.size() > 0) {
+                    rowsProcessed += handler.handleChunk(chunk);
+                }
+            } finally {
+                eli.close();
+            }
+            TransactionUtil.commit(beganTransaction);
+            recordTransaction(transactionStartNanos, true);
+        } catch (Throwable t) {
+            // anything a handler throws, runtime exceptions included, must not leave the transaction of the worker thread open
+            String errMsg = "Error in partition " + index + " [" + lowKey + ", " + highKey + ") of " + scanName + ", rolling back: " + t.toString();
+            Debug.logError(t, errMsg, module);
+            try {
+                TransactionUtil.rollback(beganTransaction, errMsg, t);
+            } catch (GenericTransactionException e) {
+                Debug.logError(e, "Could not roll back partition " + index + " of " + scanName, module);
+            }
+            recordTransaction(transactionStartNanos, false);
+            throw t;
+        }
+
+        long elapsedMillis = System.currentTimeMillis() - startTime;
+        long rowsPerSecond = elapsedMillis > 0 ? rowsRead * 1000L / elapsedMillis : rowsRead;
+        Debug.logInfo("Completed partition " + index + " [" + lowKey + ", " + highKey + ") of " + scanName + " - read " + rowsRead + " rows, processed " + rowsProcessed + " in " + elapsedMillis + "ms (" + rowsPerSecond + " rows/s)", module);
+
+        Map<String, Object> stats = FastMap.newInstance();
+        stats.put("partition", Integer.valueOf(index));
+        stats.put("lowKey", lowKey);
+        stats.put("highKey", highKey);
+        stats.put("rowsRead", Integer.valueOf(rowsRead));
+        stats.put("rowsProcessed", Integer.valueOf(rowsProcessed));
+        stats.put("elapsedMillis", Long.valueOf(elapsedMillis));
+        stats.put("rowsPerSecond", Long.valueOf(rowsPerSecond));
+        return stats;
+    }
+
+    private void recordTransaction(long transactionStartNanos, boolean committed) {
+        if (metrics != null) {
+            metrics.recordTransaction(System.nanoTime() - transactionStartNanos, committed);
+        }
+    }
+
+    /** Sums the rowsProcessed of the statistics returned by run */
+    public static int getRowsProcessed(List<Map<String, Object>> statsList) {
+        int rowsProcessed = 0;
+        for (Map<String, Object> stats: statsList) {
+            rowsProcessed += ((Integer) stats.get("rowsProcessed")).intValue();
+        }
+        return rowsProcessed;
+    }
+
+    /**
+     * Makes a pool of daemon worker threads with a bounded queue; when the queue is full the submitting thread runs the task itself,
+     * which keeps a producer from reading ahead of the workers.
+     */
+    public static ThreadPoolExecutor newWorkerPool(final String name, int threads, int queueCapacity) {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)), threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+}
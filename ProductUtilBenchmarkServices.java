@@ -0,0 +1,384 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.product.product;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.UtilDateTime;
+import org.ofbiz.base.util.UtilGenerics;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.base.util.UtilProperties;
+import org.ofbiz.base.util.UtilValidate;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityOperator;
+import org.ofbiz.service.DispatchContext;
+import org.ofbiz.service.GenericServiceException;
+import org.ofbiz.service.LocalDispatcher;
+import org.ofbiz.service.ModelService;
+import org.ofbiz.service.ServiceUtil;
+
+/**
+ * Repeatable measurements of the ProductUtilServices jobs: seeds a synthetic catalog (virtuals with variants, a category tree, feature
+ * appls) whose ids all start with a prefix, runs the jobs against it a number of times and reports the run times, products per second and
+ * the bytes allocated by the calling thread per run. Runs on whatever database the delegator uses, the embedded Derby one of a fresh
+ * checkout included. The jobs change every product they select, not only the seeded ones, so runProductUtilBenchmark refuses to run when
+ * there are products other than the seeded ones; never run it on a production database.
+ */
+public class ProductUtilBenchmarkServices {
+
+    public static final String module = ProductUtilBenchmarkServices.class.getName();
+    public static final String resourceError = "ProductErrorUiLabels";
+
+    public static final String DEFAULT_ID_PREFIX = "BENCH";
+    public static final List<String> DEFAULT_SERVICE_NAMES = UtilMisc.toList("discVirtualsWithDiscVariants", "setAllProductImageNames", "attachProductFeaturesToCategory", "mergeVirtualWithSingleVariant");
+
+    /** Entities of the seeded catalog and the field holding the prefixed id, in the order they can be removed */
+    protected static final String[][] SEEDED_ENTITIES = {
+        {"ProductFeatureAppl", "productId"},
+        {"ProductCategoryMember", "productCategoryId"},
+        {"ProductCategoryRollup", "productCategoryId"},
+        {"ProductAssoc", "productId"},
+        {"ProductFeature", "productFeatureId"},
+        {"ProductFeatureType", "productFeatureTypeId"},
+        {"ProductCategory", "productCategoryId"},
+        {"Product", "productId"}
+    };
+
+    /**
+     * Seeds the synthetic catalog: numVirtuals virtuals with variantsPerVirtual variants each, every tenth with a single variant, every
+     * seventh with all variants sales discontinued and every fifth variant assoc expired; a category tree categoryDepth levels deep with
+     * categoryFanout children per category, the products being members of the leaf categories; numFeatureTypes feature types with
+     * featuresPerType features, one of each type applied to every variant; and a _MERGE virtual with a single valid variant for the merge
+     * runs. The same seed gives the same catalog.
+     */
+    public static Map<String, Object> seedBenchmarkCatalog(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        Locale locale = (Locale) context.get("locale");
+        String idPrefix = getIdPrefix(context);
+        int numVirtuals = getInt(context, "numVirtuals", 1000);
+        int variantsPerVirtual = getInt(context, "variantsPerVirtual", 4);
+        int categoryDepth = getInt(context, "categoryDepth", 3);
+        int categoryFanout = getInt(context, "categoryFanout", 5);
+        int numFeatureTypes = getInt(context, "numFeatureTypes", 3);
+        int featuresPerType = getInt(context, "featuresPerType", 10);
+        Random random = new Random(getInt(context, "seed", 1));
+        Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
+        Timestamp fromDate = UtilDateTime.adjustTimestamp(nowTimestamp, Calendar.DATE, -30);
+        Timestamp pastDate = UtilDateTime.adjustTimestamp(nowTimestamp, Calendar.DATE, -1);
+
+        try {
+            List<GenericValue> toStore = FastList.newInstance();
+
+            // the category tree, level by level
+            String rootCategoryId = idPrefix + "_CAT";
+            toStore.add(delegator.makeValue("ProductCategory", UtilMisc.toMap("productCategoryId", rootCategoryId, "productCategoryTypeId", "CATALOG_CATEGORY", "categoryName", "Benchmark root")));
+            List<String> level = UtilMisc.toList(rootCategoryId);
+            for (int depth = 1; depth <= categoryDepth; depth++) {
+                List<String> nextLevel = FastList.newInstance();
+                for (String parentCategoryId: level) {
+                    for (int i = 0; i < categoryFanout; i++) {
+                        String productCategoryId = parentCategoryId + "_" + i;
+                        toStore.add(delegator.makeValue("ProductCategory", UtilMisc.toMap("productCategoryId", productCategoryId, "productCategoryTypeId", "CATALOG_CATEGORY", "categoryName", "Benchmark " + productCategoryId)));
+                        toStore.add(delegator.makeValue("ProductCategoryRollup", UtilMisc.toMap("productCategoryId", productCategoryId, "parentProductCategoryId", parentCategoryId, "fromDate", fromDate, "sequenceNum", Long.valueOf(i))));
+                        nextLevel.add(productCategoryId);
+                    }
+                }
+                level = nextLevel;
+            }
+            List<String> leafCategoryIds = level;
+            storeAll(delegator, toStore);
+
+            for (int t = 0; t < numFeatureTypes; t++) {
+                String productFeatureTypeId = idPrefix + "_FT" + t;
+                toStore.add(delegator.makeValue("ProductFeatureType", UtilMisc.toMap("productFeatureTypeId", productFeatureTypeId, "description", "Benchmark feature type " + t)));
+                for (int f = 0; f < featuresPerType; f++) {
+                    toStore.add(delegator.makeValue("ProductFeature", UtilMisc.toMap("productFeatureId", idPrefix + "_F" + t + "_" + f, "productFeatureTypeId", productFeatureTypeId, "description", "Benchmark feature " + t + "/" + f)));
+                }
+            }
+            storeAll(delegator, toStore);
+
+            int numProducts = 0;
+            for (int v = 0; v < numVirtuals; v++) {
+                String virtualProductId = idPrefix + "_V" + v;
+                String productCategoryId = leafCategoryIds.get(v % leafCategoryIds.size());
+                int numVariants = v % 10 == 0 ? 1 : variantsPerVirtual;
+                boolean discVariants = v % 7 == 0;
+                toStore.add(makeProduct(delegator, virtualProductId, "Y", "N", null));
+                toStore.add(delegator.makeValue("ProductCategoryMember", UtilMisc.toMap("productCategoryId", productCategoryId, "productId", virtualProductId, "fromDate", fromDate)));
+                for (int i = 0; i < numVariants; i++) {
+                    String variantProductId = virtualProductId + "_" + i;
+                    toStore.add(makeProduct(delegator, variantProductId, "N", "Y", discVariants ? pastDate : null));
+                    toStore.add(delegator.makeValue("ProductAssoc", UtilMisc.toMap("productId", virtualProductId, "productIdTo", variantProductId, "productAssocTypeId", "PRODUCT_VARIANT",
+                            "fromDate", fromDate, "thruDate", numVariants > 1 && (v * variantsPerVirtual + i) % 5 == 0 ? pastDate : null, "sequenceNum", Long.valueOf(i))));
+                    toStore.add(delegator.makeValue("ProductCategoryMember", UtilMisc.toMap("productCategoryId", productCategoryId, "productId", variantProductId, "fromDate", fromDate)));
+                    for (int t = 0; t < numFeatureTypes; t++) {
+                        toStore.add(delegator.makeValue("ProductFeatureAppl", UtilMisc.toMap("productId", variantProductId, "productFeatureId", idPrefix + "_F" + t + "_" + random.nextInt(featuresPerType),
+                                "productFeatureApplTypeId", "STANDARD_FEATURE", "fromDate", fromDate)));
+                    }
+                }
+                numProducts += 1 + numVariants;
+                if (toStore.size() >= ProductUtilServices.DEFAULT_CHUNK_SIZE) {
+                    storeAll(delegator, toStore);
+                }
+            }
+            // a virtual with one variant that none of the other jobs changes, for the mergeVirtualWithSingleVariant runs
+            String mergeVirtualId = idPrefix + "_MERGE";
+            toStore.add(makeProduct(delegator, mergeVirtualId, "Y", "N", null));
+            toStore.add(makeProduct(delegator, mergeVirtualId + "_0", "N", "Y", null));
+            toStore.add(delegator.makeValue("ProductAssoc", UtilMisc.toMap("productId", mergeVirtualId, "productIdTo", mergeVirtualId + "_0", "productAssocTypeId", "PRODUCT_VARIANT",
+                    "fromDate", fromDate, "sequenceNum", Long.valueOf(0))));
+            numProducts += 2;
+            storeAll(delegator, toStore);
+            Debug.logInfo("Seeded benchmark catalog [" + idPrefix + "]: " + numProducts + " products, " + leafCategoryIds.size() + " leaf categories", module);
+
+            Map<String, Object> result = ServiceUtil.returnSuccess();
+            result.put("numProducts", Integer.valueOf(numProducts));
+            result.put("productCategoryId", rootCategoryId);
+            return result;
+        } catch (GenericEntityException e) {
+            Map<String, String> messageMap = UtilMisc.toMap("errMessage", e.toString());
+            String errMsg = UtilProperties.getMessage(resourceError, "productutilservices.entity_error_running_seedBenchmarkCatalog", messageMap, locale);
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        }
+    }
+
+    /** Removes the seeded catalog with the given prefix, and the feature groups attachProductFeaturesToCategory generated for it */
+    public static Map<String, Object> removeBenchmarkCatalog(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        LocalDispatcher dispatcher = dctx.getDispatcher();
+        Locale locale = (Locale) context.get("locale");
+        String idPrefix = getIdPrefix(context);
+
+        try {
+            Map<String, Object> groupsResult = dispatcher.runSync("removeAllFeatureGroupsForCategory", UtilMisc.<String, Object>toMap("productCategoryId", idPrefix + "_CAT",
+                    "doSubCategories", Boolean.TRUE, "userLogin", context.get("userLogin")));
+            if (ServiceUtil.isError(groupsResult)) {
+                return ServiceUtil.returnError(ServiceUtil.getErrorMessage(groupsResult));
+            }
+            int numRemoved = 0;
+            for (String[] seededEntity: SEEDED_ENTITIES) {
+                numRemoved += delegator.removeByCondition(seededEntity[0], makePrefixCondition(seededEntity[1], idPrefix));
+            }
+            Debug.logInfo("Removed benchmark catalog [" + idPrefix + "]: " + numRemoved + " rows", module);
+        } catch (GenericEntityException e) {
+            Map<String, String> messageMap = UtilMisc.toMap("errMessage", e.toString());
+            String errMsg = UtilProperties.getMessage(resourceError, "productutilservices.entity_error_running_removeBenchmarkCatalog", messageMap, locale);
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        } catch (GenericServiceException e) {
+            Map<String, String> messageMap = UtilMisc.toMap("errMessage", e.toString());
+            String errMsg = UtilProperties.getMessage(resourceError, "productutilservices.entity_error_running_removeBenchmarkCatalog", messageMap, locale);
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        }
+        return ServiceUtil.returnSuccess();
+    }
+
+    /**
+     * Runs each of the serviceNames (by default all four jobs) warmupIterations times untimed and then iterations times timed against the
+     * seeded catalog, each run in its own transaction; mergeVirtualWithSingleVariant runs as a dry run on the seeded _MERGE virtual so it
+     * can be repeated, the error it ends with in test mode counting as success. The jobs change the catalog on their first run, later runs measure the steady state unless reseed is true, which
+     * removes and seeds the catalog again, untimed, before every run. serviceParameters (service name to Map) adds parameters to the runs
+     * of a service, to compare bulkMode, threads and the like.
+     * @return benchmarkResults: service name to a Map with iterations, minMillis, avgMillis, maxMillis, productsPerSecond,
+     * allocatedBytesPerRun (-1 where the JVM can't tell) and queriesPerRun (-1 for services that don't return metrics)
+     */
+    public static Map<String, Object> runProductUtilBenchmark(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        LocalDispatcher dispatcher = dctx.getDispatcher();
+        Locale locale = (Locale) context.get("locale");
+        GenericValue userLogin = (GenericValue) context.get("userLogin");
+        String idPrefix = getIdPrefix(context);
+        int iterations = getInt(context, "iterations", 3);
+        int warmupIterations = getInt(context, "warmupIterations", 1);
+        Boolean reseedBool = (Boolean) context.get("reseed");
+        boolean reseed = reseedBool != null && reseedBool.booleanValue();
+        List<String> serviceNames = UtilGenerics.checkList(context.get("serviceNames"));
+        if (UtilValidate.isEmpty(serviceNames)) {
+            serviceNames = DEFAULT_SERVICE_NAMES;
+        }
+        Map<String, Map<String, Object>> serviceParameters = UtilGenerics.checkMap(context.get("serviceParameters"));
+
+        try {
+            EntityCondition otherProductsCondition = EntityCondition.makeCondition(UtilMisc.toList(
+                    EntityCondition.makeCondition("productId", EntityOperator.LESS_THAN, idPrefix + "_"),
+                    EntityCondition.makeCondition("productId", EntityOperator.GREATER_THAN_EQUAL_TO, idPrefix + "`")
+                   ), EntityOperator.OR);
+            long numOtherProducts = delegator.findCountByCondition("Product", otherProductsCondition, null, null);
+            if (numOtherProducts > 0) {
+                Map<String, Object> messageMap = UtilMisc.<String, Object>toMap("numOtherProducts", Long.valueOf(numOtherProducts), "idPrefix", idPrefix);
+                String errMsg = UtilProperties.getMessage(resourceError, "productutilservices.benchmark_catalog_has_other_products", messageMap, locale);
+                Debug.logError(errMsg, module);
+                return ServiceUtil.returnError(errMsg);
+            }
+            Map<String, Object> seedContext = dctx.makeValidContext("seedBenchmarkCatalog", ModelService.IN_PARAM, context);
+            Map<String, Object> seedResult = dispatcher.runSync("seedBenchmarkCatalog", seedContext);
+            if (ServiceUtil.isError(seedResult)) {
+                return ServiceUtil.returnError(ServiceUtil.getErrorMessage(seedResult));
+            }
+            long numProducts = delegator.findCountByCondition("Product", makePrefixCondition("productId", idPrefix), null, null);
+
+            Map<String, Object> benchmarkResults = FastMap.newInstance();
+            for (String serviceName: serviceNames) {
+                Map<String, Object> serviceContext = FastMap.newInstance();
+                if ("attachProductFeaturesToCategory".equals(serviceName)) {
+                    serviceContext.put("productCategoryId", idPrefix + "_CAT");
+                    serviceContext.put("doSubCategories", Boolean.TRUE);
+                } else if ("mergeVirtualWithSingleVariant".equals(serviceName)) {
+                    serviceContext.put("productId", idPrefix + "_MERGE");
+                    serviceContext.put("removeOld", Boolean.TRUE);
+                    serviceContext.put("test", Boolean.TRUE);
+                }
+                if (serviceParameters != null && serviceParameters.get(serviceName) != null) {
+                    serviceContext.putAll(serviceParameters.get(serviceName));
+                }
+                serviceContext.put("userLogin", userLogin);
+                serviceContext.put("locale", locale);
+
+                long minNanos = Long.MAX_VALUE;
+                long maxNanos = 0;
+                long totalNanos = 0;
+                long totalAllocatedBytes = 0;
+                long totalQueries = 0;
+                for (int i = 0; i < warmupIterations + iterations; i++) {
+                    if (reseed) {
+                        Map<String, Object> removeResult = dispatcher.runSync("removeBenchmarkCatalog", UtilMisc.<String, Object>toMap("idPrefix", idPrefix, "userLogin", userLogin));
+                        if (ServiceUtil.isError(removeResult)) {
+                            return ServiceUtil.returnError(ServiceUtil.getErrorMessage(removeResult));
+                        }
+                        seedResult = dispatcher.runSync("seedBenchmarkCatalog", seedContext);
+                        if (ServiceUtil.isError(seedResult)) {
+                            return ServiceUtil.returnError(ServiceUtil.getErrorMessage(seedResult));
+                        }
+                    }
+                    long allocatedBytesBefore = getAllocatedBytes();
+                    long startNanos = System.nanoTime();
+                    Map<String, Object> serviceResult = dispatcher.runSync(serviceName, serviceContext);
+                    long elapsedNanos = System.nanoTime() - startNanos;
+                    long allocatedBytes = allocatedBytesBefore < 0 ? -1 : getAllocatedBytes() - allocatedBytesBefore;
+                    // in test mode mergeVirtualWithSingleVariant ends with an error to roll back, that is the expected result
+                    boolean testModeRollback = "mergeVirtualWithSingleVariant".equals(serviceName) && Boolean.TRUE.equals(serviceContext.get("test"))
+                            && ProductUtilServices.isTestModeRollback(serviceResult, locale);
+                    if (ServiceUtil.isError(serviceResult) && !testModeRollback) {
+                        Map<String, String> messageMap = UtilMisc.toMap("serviceName", serviceName, "errMessage", ServiceUtil.getErrorMessage(serviceResult));
+                        String errMsg = UtilProperties.getMessage(resourceError, "productutilservices.benchmark_run_failed", messageMap, locale);
+                        Debug.logError(errMsg, module);
+                        return ServiceUtil.returnError(errMsg);
+                    }
+                    if (i < warmupIterations) {
+                        continue;
+                    }
+                    minNanos = Math.min(minNanos, elapsedNanos);
+                    maxNanos = Math.max(maxNanos, elapsedNanos);
+                    totalNanos += elapsedNanos;
+                    totalAllocatedBytes = allocatedBytes < 0 || totalAllocatedBytes < 0 ? -1 : totalAllocatedBytes + allocatedBytes;
+                    Map<String, Object> metrics = UtilGenerics.checkMap(serviceResult.get("metrics"));
+                    totalQueries = metrics == null || totalQueries < 0 ? -1 : totalQueries + ((Long) metrics.get("queries")).longValue();
+                }
+
+                Map<String, Object> serviceResults = FastMap.newInstance();
+                long avgNanos = iterations > 0 ? totalNanos / iterations : 0;
+                serviceResults.put("iterations", Integer.valueOf(iterations));
+                serviceResults.put("minMillis", Long.valueOf(iterations > 0 ? minNanos / 1000000 : 0));
+                serviceResults.put("avgMillis", Long.valueOf(avgNanos / 1000000));
+                serviceResults.put("maxMillis", Long.valueOf(maxNanos / 1000000));
+                serviceResults.put("productsPerSecond", Double.valueOf(avgNanos > 0 ? numProducts * 1000000000.0 / avgNanos : 0));
+                serviceResults.put("allocatedBytesPerRun", Long.valueOf(totalAllocatedBytes < 0 || iterations == 0 ? -1 : totalAllocatedBytes / iterations));
+                serviceResults.put("queriesPerRun", Long.valueOf(totalQueries < 0 || iterations == 0 ? -1 : totalQueries / iterations));
+                benchmarkResults.put(serviceName, serviceResults);
+                Debug.logInfo("Benchmark of " + serviceName + " on " + numProducts + " products: " + serviceResults, module);
+            }
+
+            Map<String, Object> result = ServiceUtil.returnSuccess();
+            result.put("benchmarkResults", benchmarkResults);
+            return result;
+        } catch (GenericEntityException e) {
+            Map<String, String> messageMap = UtilMisc.toMap("errMessage", e.toString());
+            String errMsg = UtilProperties.getMessage(resourceError, "productutilservices.entity_error_running_runProductUtilBenchmark", messageMap, locale);
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        } catch (GenericServiceException e) {
+            Map<String, String> messageMap = UtilMisc.toMap("errMessage", e.toString());
+            String errMsg = UtilProperties.getMessage(resourceError, "productutilservices.entity_error_running_runProductUtilBenchmark", messageMap, locale);
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        }
+    }
+
+    /**
+     * Matches the ids starting with the prefix and '_' as a range, prefix + "_" up to prefix + "`" ('_' + 1), rather than a LIKE in
+     * which the '_' is a single character wildcard, so BENCH_ doesn't match BENCHX; the range can also use the primary key index.
+     */
+    protected static EntityCondition makePrefixCondition(String fieldName, String idPrefix) {
+        return EntityCondition.makeCondition(
+                EntityCondition.makeCondition(fieldName, EntityOperator.GREATER_THAN_EQUAL_TO, idPrefix + "_"),
+                EntityOperator.AND,
+                EntityCondition.makeCondition(fieldName, EntityOperator.LESS_THAN, idPrefix + "`"));
+    }
+
+    protected static GenericValue makeProduct(Delegator delegator, String productId, String isVirtual, String isVariant, Timestamp salesDiscontinuationDate) {
+        return delegator.makeValue("Product", UtilMisc.toMap("productId", productId, "productTypeId", "FINISHED_GOOD", "internalName", "Benchmark " + productId,
+                "isVirtual", isVirtual, "isVariant", isVariant, "salesDiscontinuationDate", salesDiscontinuationDate));
+    }
+
+    /** Stores (creating or updating) the values and clears the list */
+    private static void storeAll(Delegator delegator, List<GenericValue> values) throws GenericEntityException {
+        if (values.size() > 0) {
+            delegator.storeAll(values);
+            values.clear();
+        }
+    }
+
+    /** Gets the bytes allocated so far by the current thread, -1 if the JVM doesn't support measuring it */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotSpotThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+            if (hotSpotThreadBean.isThreadAllocatedMemorySupported() && hotSpotThreadBean.isThreadAllocatedMemoryEnabled()) {
+                return hotSpotThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static String getIdPrefix(Map<String, ? extends Object> context) {
+        String idPrefix = (String) context.get("idPrefix");
+        return UtilValidate.isEmpty(idPrefix) ? DEFAULT_ID_PREFIX : idPrefix;
+    }
+
+    private static int getInt(Map<String, ? extends Object> context, String name, int defaultValue) {
+        Integer value = (Integer) context.get(name);
+        return value == null || value.intValue() < 0 ? defaultValue : value.intValue();
+    }
+}
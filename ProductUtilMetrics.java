@@ -0,0 +1,482 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.product.product;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import javolution.util.FastMap;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntity;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.model.DynamicViewEntity;
+import org.ofbiz.service.ServiceUtil;
+
+/**
+ * Counts and timings of one run of a ProductUtilServices job: the queries and writes per entity with the rows they read and wrote, going
+ * through the Delegator returned by meter, the times of the transactions ProductScanExecutor and ProductScanCheckpoint run with that
+ * Delegator, and the time, rows, rows per second and chunk times (one chunk per transaction in the threads and commitSize modes) of each
+ * phase. The summary is returned in the result of the service as metrics, and the totals per service are kept
+ * for JMX under OBJECT_NAME.
+ * The mutable values the metered Delegator returns are bound to it, so the stores, removes and getRelated calls done on a value itself
+ * (value.store()) are counted too.
+ * NOTE: the values read from EntityListIterators and the immutable ones from the cache stay bound to the real delegator, and the rows read
+ * from EntityListIterators are not counted; each of those queries is.
+ */
+public class ProductUtilMetrics {
+
+    public static final String module = ProductUtilMetrics.class.getName();
+    public static final String OBJECT_NAME = "org.ofbiz.product:type=ProductUtilMetrics";
+
+    /** Upper bounds of the histogram buckets in milliseconds, the last bucket takes everything above */
+    protected static final long[] BUCKET_BOUNDS_MILLIS = {1, 4, 16, 64, 256, 1024, 4096, 16384, 65536};
+    protected static final Set<String> WRITE_METHODS = UtilMisc.toSet("create", "createOrStore", "createSetNextSeqId", "store", "storeAll", "storeByCondition",
+            "removeValue", "removeByAnd", "removeByCondition", "removeByPrimaryKey", "removeAll", "removeRelated");
+
+    protected static final Statistics statistics = new Statistics();
+
+    static {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(new StandardMBean(statistics, StatisticsMXBean.class, true), objectName);
+        } catch (JMException e) {
+            Debug.logWarning(e, "Could not register the ProductUtilServices statistics as " + OBJECT_NAME, module);
+        }
+    }
+
+    protected final String serviceName;
+    protected final long startNanos = System.nanoTime();
+    protected final ConcurrentMap<String, AtomicLong> queriesByEntity = new ConcurrentHashMap<String, AtomicLong>();
+    protected final ConcurrentMap<String, AtomicLong> rowsReadByEntity = new ConcurrentHashMap<String, AtomicLong>();
+    protected final ConcurrentMap<String, AtomicLong> writesByEntity = new ConcurrentHashMap<String, AtomicLong>();
+    protected final ConcurrentMap<String, AtomicLong> rowsWrittenByEntity = new ConcurrentHashMap<String, AtomicLong>();
+    protected final Histogram queryMillis = new Histogram();
+    protected final Histogram writeMillis = new Histogram();
+    protected final Histogram transactionMillis = new Histogram();
+    protected final AtomicLong transactionsRolledBack = new AtomicLong();
+    protected final Map<String, Phase> phases = Collections.synchronizedMap(new LinkedHashMap<String, Phase>());
+    protected final ConcurrentMap<String, Long> values = new ConcurrentHashMap<String, Long>();
+
+    protected ProductUtilMetrics(String serviceName) {
+        this.serviceName = serviceName;
+    }
+
+    public static ProductUtilMetrics start(String serviceName) {
+        return new ProductUtilMetrics(serviceName);
+    }
+
+    public static StatisticsMXBean getStatistics() {
+        return statistics;
+    }
+
+    /** Gets a Delegator that counts and times the queries and writes of this run and passes everything on to the given one */
+    public Delegator meter(Delegator delegator) {
+        return (Delegator) Proxy.newProxyInstance(Delegator.class.getClassLoader(), new Class<?>[] {Delegator.class}, new MeteringHandler(delegator));
+    }
+
+    /** Gets the metrics of the run the Delegator was metered for, null if it isn't a Delegator returned by meter */
+    public static ProductUtilMetrics getMetrics(Delegator delegator) {
+        if (delegator != null && Proxy.isProxyClass(delegator.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(delegator);
+            if (handler instanceof MeteringHandler) {
+                return ((MeteringHandler) handler).getMetrics();
+            }
+        }
+        return null;
+    }
+
+    public Phase startPhase(String name) {
+        Phase phase = new Phase(name);
+        phases.put(name, phase);
+        return phase;
+    }
+
+    /** Sets a value describing the run, ex: the number of categories it went through */
+    public void setValue(String name, long value) {
+        values.put(name, Long.valueOf(value));
+    }
+
+    /** Ends the run: puts the summary in the service result as metrics, adds the run to the statistics and logs it; returns the result */
+    public Map<String, Object> finish(Map<String, Object> result) {
+        boolean success = !ServiceUtil.isError(result) && !ServiceUtil.isFailure(result);
+        Map<String, Object> summary = getSummary();
+        summary.put("success", Boolean.valueOf(success));
+        result.put("metrics", summary);
+        statistics.addRun(this, success, summary);
+        Debug.logInfo("Metrics of " + serviceName + ": " + summary, module);
+        return result;
+    }
+
+    /** Gets the counts and timings so far as a Map of plain Strings, Longs, Doubles and Maps */
+    public Map<String, Object> getSummary() {
+        Map<String, Object> summary = FastMap.newInstance();
+        summary.put("serviceName", serviceName);
+        summary.put("elapsedMillis", Long.valueOf((System.nanoTime() - startNanos) / 1000000));
+        summary.put("queries", Long.valueOf(sum(queriesByEntity)));
+        summary.put("queriesByEntity", toMap(queriesByEntity));
+        summary.put("rowsRead", Long.valueOf(sum(rowsReadByEntity)));
+        summary.put("rowsReadByEntity", toMap(rowsReadByEntity));
+        summary.put("writes", Long.valueOf(sum(writesByEntity)));
+        summary.put("writesByEntity", toMap(writesByEntity));
+        summary.put("rowsWritten", Long.valueOf(sum(rowsWrittenByEntity)));
+        summary.put("rowsWrittenByEntity", toMap(rowsWrittenByEntity));
+        summary.put("queryMillis", queryMillis.toMap());
+        summary.put("writeMillis", writeMillis.toMap());
+        summary.put("transactionMillis", transactionMillis.toMap());
+        summary.put("transactionsRolledBack", Long.valueOf(transactionsRolledBack.get()));
+        Map<String, Object> phaseSummaries = new LinkedHashMap<String, Object>();
+        synchronized (phases) {
+            for (Phase phase: phases.values()) {
+                phaseSummaries.put(phase.name, phase.toMap());
+            }
+        }
+        summary.put("phases", phaseSummaries);
+        summary.putAll(values);
+        return summary;
+    }
+
+    protected void recordQuery(String entityName, long nanos, long rows) {
+        increment(queriesByEntity, entityName, 1);
+        increment(rowsReadByEntity, entityName, rows);
+        queryMillis.record(nanos);
+    }
+
+    protected void recordWrite(String entityName, long nanos, long rows) {
+        increment(writesByEntity, entityName, 1);
+        increment(rowsWrittenByEntity, entityName, rows);
+        writeMillis.record(nanos);
+    }
+
+    /** Records a transaction of a scan from its begin to its commit or rollback */
+    public void recordTransaction(long nanos, boolean committed) {
+        transactionMillis.record(nanos);
+        if (!committed) {
+            transactionsRolledBack.incrementAndGet();
+        }
+    }
+
+    private static void increment(ConcurrentMap<String, AtomicLong> counters, String key, long delta) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(key, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.addAndGet(delta);
+    }
+
+    private static long sum(Map<String, AtomicLong> counters) {
+        long sum = 0;
+        for (AtomicLong counter: counters.values()) {
+            sum += counter.get();
+        }
+        return sum;
+    }
+
+    private static Map<String, Long> toMap(Map<String, AtomicLong> counters) {
+        Map<String, Long> map = FastMap.newInstance();
+        for (Map.Entry<String, AtomicLong> entry: counters.entrySet()) {
+            map.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+        }
+        return map;
+    }
+
+    /** One step of a run, ex: reading the candidates, or expiring the assocs */
+    public static class Phase {
+        protected final String name;
+        protected final long startNanos = System.nanoTime();
+        protected final AtomicLong rows = new AtomicLong();
+        protected final Histogram chunkMillis = new Histogram();
+        protected volatile long elapsedNanos = -1;
+
+        protected Phase(String name) {
+            this.name = name;
+        }
+
+        public void addRows(long numRows) {
+            rows.addAndGet(numRows);
+        }
+
+        /** Ends the phase, adding the rows it processed */
+        public void end(long numRows) {
+            addRows(numRows);
+            elapsedNanos = System.nanoTime() - startNanos;
+        }
+
+        /** Wraps the handler to time each chunk; the rows are still added with end */
+        public ProductScanExecutor.ChunkHandler meter(final ProductScanExecutor.ChunkHandler handler) {
+            return new ProductScanExecutor.ChunkHandler() {
+                public int handleChunk(List<GenericValue> chunk) throws GenericEntityException {
+                    long chunkStartNanos = System.nanoTime();
+                    try {
+                        return handler.handleChunk(chunk);
+                    } finally {
+                        chunkMillis.record(System.nanoTime() - chunkStartNanos);
+                    }
+                }
+            };
+        }
+
+        protected Map<String, Object> toMap() {
+            long nanos = elapsedNanos >= 0 ? elapsedNanos : System.nanoTime() - startNanos;
+            Map<String, Object> map = FastMap.newInstance();
+            map.put("elapsedMillis", Long.valueOf(nanos / 1000000));
+            map.put("rows", Long.valueOf(rows.get()));
+            map.put("rowsPerSecond", Double.valueOf(nanos > 0 ? rows.get() * 1000000000.0 / nanos : 0));
+            if (chunkMillis.getCount() > 0) {
+                map.put("chunkMillis", chunkMillis.toMap());
+            }
+            return map;
+        }
+    }
+
+    /** Counts of durations per BUCKET_BOUNDS_MILLIS bucket, with the total and maximum */
+    protected static class Histogram {
+        protected final AtomicLongArray counts = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+        protected final AtomicLong totalNanos = new AtomicLong();
+        protected final AtomicLong maxNanos = new AtomicLong();
+
+        public void record(long nanos) {
+            long millis = nanos / 1000000;
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        /** Gets count, totalMillis, maxMillis and the count per bucket, as le1, le4 ... and gt65536 */
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("count", Long.valueOf(getCount()));
+            map.put("totalMillis", Long.valueOf(totalNanos.get() / 1000000));
+            map.put("maxMillis", Long.valueOf(maxNanos.get() / 1000000));
+            for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+                map.put("le" + BUCKET_BOUNDS_MILLIS[i], Long.valueOf(counts.get(i)));
+            }
+            map.put("gt" + BUCKET_BOUNDS_MILLIS[BUCKET_BOUNDS_MILLIS.length - 1], Long.valueOf(counts.get(BUCKET_BOUNDS_MILLIS.length)));
+            return map;
+        }
+    }
+
+    /** Passes every call on to the delegator, counting and timing the find* and getRelated* reads and the writes */
+    protected class MeteringHandler implements InvocationHandler {
+        protected final Delegator delegator;
+
+        protected MeteringHandler(Delegator delegator) {
+            this.delegator = delegator;
+        }
+
+        protected ProductUtilMetrics getMetrics() {
+            return ProductUtilMetrics.this;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String methodName = method.getName();
+            boolean isRead = methodName.startsWith("find") || methodName.startsWith("getRelated") || methodName.equals("getMultiRelation");
+            boolean isWrite = !isRead && WRITE_METHODS.contains(methodName);
+            long callStartNanos = System.nanoTime();
+            Object result;
+            try {
+                result = method.invoke(delegator, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (isRead) {
+                recordQuery(getEntityName(args), System.nanoTime() - callStartNanos, getRowCount(result));
+            } else if (isWrite) {
+                recordWrite(getEntityName(args), System.nanoTime() - callStartNanos, getRowCount(result));
+            }
+            bindToProxy(result, (Delegator) proxy);
+            return result;
+        }
+
+        /** Binds the mutable values of a result, a value or a List of them, to the metered Delegator; shared immutable ones are left alone */
+        protected void bindToProxy(Object result, Delegator proxy) {
+            if (result instanceof GenericEntity) {
+                GenericEntity value = (GenericEntity) result;
+                if (value.isMutable()) {
+                    value.setDelegator(proxy);
+                }
+            } else if (result instanceof List<?>) {
+                for (Object element: (List<?>) result) {
+                    if (!(element instanceof GenericEntity)) {
+                        return;
+                    }
+                    bindToProxy(element, proxy);
+                }
+            }
+        }
+
+        /** The entity of the call from its first argument: an entity name, a value, a view entity or a list of values */
+        protected String getEntityName(Object[] args) {
+            Object first = args == null || args.length == 0 ? null : args[0];
+            if (first instanceof Collection<?> && !((Collection<?>) first).isEmpty()) {
+                first = ((Collection<?>) first).iterator().next();
+            }
+            if (first instanceof String) {
+                return (String) first;
+            } else if (first instanceof GenericEntity) {
+                return ((GenericEntity) first).getEntityName();
+            } else if (first instanceof DynamicViewEntity) {
+                return ((DynamicViewEntity) first).getEntityName();
+            }
+            return "(unknown)";
+        }
+
+        /** The rows read or written by a call from its result: the size of a List, 1 for a value, the count of a write */
+        protected long getRowCount(Object result) {
+            if (result instanceof List<?>) {
+                return ((List<?>) result).size();
+            } else if (result instanceof GenericEntity) {
+                return 1;
+            } else if (result instanceof Integer) {
+                return ((Integer) result).intValue();
+            }
+            return 0;
+        }
+    }
+
+    /** Totals of the runs per service, for JMX */
+    public interface StatisticsMXBean {
+        long getRunCount();
+        long getFailedRunCount();
+        Map<String, Long> getRunCountByService();
+        Map<String, Long> getTotalMillisByService();
+        Map<String, Long> getLastRunMillisByService();
+        Map<String, Long> getQueryCountByService();
+        Map<String, Long> getRowsWrittenByService();
+        String getLastRunSummary();
+        void reset();
+    }
+
+    protected static class Statistics implements StatisticsMXBean {
+        protected long runCount = 0;
+        protected long failedRunCount = 0;
+        protected final Map<String, Long> runCountByService = FastMap.newInstance();
+        protected final Map<String, Long> totalMillisByService = FastMap.newInstance();
+        protected final Map<String, Long> lastRunMillisByService = FastMap.newInstance();
+        protected final Map<String, Long> queryCountByService = FastMap.newInstance();
+        protected final Map<String, Long> rowsWrittenByService = FastMap.newInstance();
+        protected String lastRunSummary = null;
+
+        protected synchronized void addRun(ProductUtilMetrics metrics, boolean success, Map<String, Object> summary) {
+            runCount++;
+            if (!success) {
+                failedRunCount++;
+            }
+            long elapsedMillis = ((Long) summary.get("elapsedMillis")).longValue();
+            add(runCountByService, metrics.serviceName, 1);
+            add(totalMillisByService, metrics.serviceName, elapsedMillis);
+            lastRunMillisByService.put(metrics.serviceName, Long.valueOf(elapsedMillis));
+            add(queryCountByService, metrics.serviceName, ((Long) summary.get("queries")).longValue());
+            add(rowsWrittenByService, metrics.serviceName, ((Long) summary.get("rowsWritten")).longValue());
+            lastRunSummary = summary.toString();
+        }
+
+        private static void add(Map<String, Long> totals, String serviceName, long delta) {
+            Long total = totals.get(serviceName);
+            totals.put(serviceName, Long.valueOf(total == null ? delta : total.longValue() + delta));
+        }
+
+        public synchronized long getRunCount() {
+            return runCount;
+        }
+
+        public synchronized long getFailedRunCount() {
+            return failedRunCount;
+        }
+
+        public synchronized Map<String, Long> getRunCountByService() {
+            return UtilMisc.makeMapWritable(runCountByService);
+        }
+
+        public synchronized Map<String, Long> getTotalMillisByService() {
+            return UtilMisc.makeMapWritable(totalMillisByService);
+        }
+
+        public synchronized Map<String, Long> getLastRunMillisByService() {
+            return UtilMisc.makeMapWritable(lastRunMillisByService);
+        }
+
+        public synchronized Map<String, Long> getQueryCountByService() {
+            return UtilMisc.makeMapWritable(queryCountByService);
+        }
+
+        public synchronized Map<String, Long> getRowsWrittenByService() {
+            return UtilMisc.makeMapWritable(rowsWrittenByService);
+        }
+
+        public synchronized String getLastRunSummary() {
+            return lastRunSummary;
+        }
+
+        public synchronized void reset() {
+            runCount = 0;
+            failedRunCount = 0;
+            runCountByService.clear();
+            totalMillisByService.clear();
+            lastRunMillisByService.clear();
+            queryCountByService.clear();
+            rowsWrittenByService.clear();
+            lastRunSummary = null;
+        }
+    }
+}
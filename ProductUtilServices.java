@@ -18,11 +18,23 @@
  *******************************************************************************/
 package org.ofbiz.product.product;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javolution.util.FastList;
 import javolution.util.FastMap;
@@ -31,6 +43,7 @@ import javolution.util.FastSet;
 import org.ofbiz.base.util.Debug;
 import org.ofbiz.base.util.StringUtil;
 import org.ofbiz.base.util.UtilDateTime;
+import org.ofbiz.base.util.UtilGenerics;
 import org.ofbiz.base.util.UtilMisc;
 import org.ofbiz.base.util.UtilProperties;
 import org.ofbiz.base.util.UtilValidate;
@@ -62,36 +75,119 @@ public class ProductUtilServices {
     public static final String resource = "ProductUiLabels";
     public static final String resourceError = "ProductErrorUiLabels";
 
+    /** Number of rows handled per set-based statement in the bulk modes; also keeps IN lists below common database parameter limits */
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+    /** Start of the hashed ids of generated feature groups, see makeGeneratedFeatureGroupId */
+    public static final String GENERATED_GROUP_ID_PREFIX = "FG";
+    /** Most failed merges listed by message in the errorList of a parallel merge phase, the others are only counted */
+    public static final int MAX_MERGE_ERRORS = 100;
+    /** The Product fields maintained by setAllProductImageNames */
+    public static final List<String> IMAGE_URL_FIELDS = UtilMisc.toList("smallImageUrl", "mediumImageUrl", "largeImageUrl", "detailImageUrl");
+
     /** First expire all ProductAssocs for all disc variants, then disc all virtuals that have all expired variant ProductAssocs */
     public static Map<String, Object> discVirtualsWithDiscVariants(DispatchContext dctx, Map<String, ? extends Object> context) {
-        Delegator delegator = dctx.getDelegator();
-        Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
+        ProductUtilMetrics metrics = ProductUtilMetrics.start("discVirtualsWithDiscVariants");
+        return metrics.finish(discVirtualsWithDiscVariants(dctx, context, metrics));
+    }
+
+    private static Map<String, Object> discVirtualsWithDiscVariants(DispatchContext dctx, Map<String, ? extends Object> context, ProductUtilMetrics metrics) {
+        final Delegator delegator = metrics.meter(dctx.getDelegator());
+        final Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
         Locale locale = (Locale) context.get("locale");
         String errMsg = null;
 
+        Boolean bulkModeBool = (Boolean) context.get("bulkMode");
+        final boolean bulkMode = bulkModeBool != null && bulkModeBool.booleanValue();
+        int chunkSize = getChunkSize(context);
+        int threads = getThreads(context);
+        // the virtual of each disc variant is looked up once per variant, and its variant assocs again when checking the virtual
+        final ProductLookupCache lookupCache = new ProductLookupCache(delegator, getCacheSize(context));
+
         try {
+            final ProductVariantIndex variantIndex = bulkMode ? null : loadVariantIndex(delegator, context);
             EntityCondition conditionOne = EntityCondition.makeCondition(UtilMisc.toList(
                     EntityCondition.makeCondition("isVariant", EntityOperator.EQUALS, "Y"),
                     EntityCondition.makeCondition("salesDiscontinuationDate", EntityOperator.NOT_EQUAL, null),
                     EntityCondition.makeCondition("salesDiscontinuationDate", EntityOperator.LESS_THAN_EQUAL_TO, nowTimestamp)
                    ), EntityOperator.AND);
+            // get all non-discontinued virtuals, see if all variant ProductAssocs are expired, if discontinue
+            EntityCondition condition = EntityCondition.makeCondition(UtilMisc.toList(
+                    EntityCondition.makeCondition("isVirtual", EntityOperator.EQUALS, "Y"),
+                    EntityCondition.makeCondition(EntityCondition.makeCondition("salesDiscontinuationDate", EntityOperator.EQUALS, null), EntityOperator.OR, EntityCondition.makeCondition("salesDiscontinuationDate", EntityOperator.GREATER_THAN_EQUAL_TO, nowTimestamp))
+                   ), EntityOperator.AND);
+
+            ProductScanExecutor.ChunkHandler expireAssocsHandler = new ProductScanExecutor.ChunkHandler() {
+                public int handleChunk(List<GenericValue> chunk) throws GenericEntityException {
+                    if (bulkMode) {
+                        return expireVariantAssocsOfDiscVariants(delegator, chunk, nowTimestamp);
+                    }
+                    int numProcessed = 0;
+                    for (GenericValue product: chunk) {
+                        if (expireVariantAssocsOfDiscVariant(delegator, product, nowTimestamp, lookupCache, variantIndex)) {
+                            numProcessed++;
+                        }
+                    }
+                    return numProcessed;
+                }
+            };
+            ProductScanExecutor.ChunkHandler discVirtualsHandler = new ProductScanExecutor.ChunkHandler() {
+                public int handleChunk(List<GenericValue> chunk) throws GenericEntityException {
+                    if (bulkMode) {
+                        List<String> virtualProductIds = EntityUtil.getFieldListFromEntityList(chunk, "productId", false);
+                        return discVirtualsWithNoValidVariants(delegator, virtualProductIds, nowTimestamp);
+                    }
+                    int numProcessed = 0;
+                    for (GenericValue product: chunk) {
+                        if (discVirtualIfNoValidVariants(delegator, product, nowTimestamp, lookupCache, variantIndex)) {
+                            numProcessed++;
+                        }
+                    }
+                    return numProcessed;
+                }
+            };
+            Set<String> fieldsToSelect = bulkMode ? UtilMisc.toSet("productId") : null;
+
+            if (getCommitSize(context) > 0) {
+                ProductUtilMetrics.Phase expirePhase = metrics.startPhase("expireAssocs");
+                int numSoFarOne = makeScanCheckpoint(delegator, "discVirtualsWithDiscVariants.expireAssocs", "Product", conditionOne, fieldsToSelect, context).run(expirePhase.meter(expireAssocsHandler));
+                expirePhase.end(numSoFarOne);
+                ProductUtilMetrics.Phase discPhase = metrics.startPhase("discVirtuals");
+                int numSoFar = makeScanCheckpoint(delegator, "discVirtualsWithDiscVariants.discVirtuals", "Product", condition, fieldsToSelect, context).run(discPhase.meter(discVirtualsHandler));
+                discPhase.end(numSoFar);
+                Debug.logInfo("Completed - Expired variant ProductAssocs for " + numSoFarOne + " sales discontinued variant products, sales discontinued " + numSoFar + " virtual products that have no valid variants.", module);
+                return ServiceUtil.returnSuccess();
+            }
+
+            if (threads > 1) {
+                ProductUtilMetrics.Phase expirePhase = metrics.startPhase("expireAssocs");
+                ProductScanExecutor scanOne = makeScanExecutor(delegator, "Product", conditionOne, fieldsToSelect, context);
+                int numSoFarOne = ProductScanExecutor.getRowsProcessed(scanOne.run("discVirtualsWithDiscVariants-expireAssocs", expirePhase.meter(expireAssocsHandler)));
+                expirePhase.end(numSoFarOne);
+                ProductUtilMetrics.Phase discPhase = metrics.startPhase("discVirtuals");
+                ProductScanExecutor scan = makeScanExecutor(delegator, "Product", condition, fieldsToSelect, context);
+                int numSoFar = ProductScanExecutor.getRowsProcessed(scan.run("discVirtualsWithDiscVariants-discVirtuals", discPhase.meter(discVirtualsHandler)));
+                discPhase.end(numSoFar);
+                Debug.logInfo("Completed - Expired variant ProductAssocs for " + numSoFarOne + " sales discontinued variant products, sales discontinued " + numSoFar + " virtual products that have no valid variants.", module);
+                return ServiceUtil.returnSuccess();
+            }
+
+            if (bulkMode) {
+                ProductUtilMetrics.Phase expirePhase = metrics.startPhase("expireAssocs");
+                int numSoFarOne = expireVariantAssocsOfDiscVariants(delegator, nowTimestamp, chunkSize);
+                expirePhase.end(numSoFarOne);
+                ProductUtilMetrics.Phase discPhase = metrics.startPhase("discVirtuals");
+                int numSoFar = discVirtualsWithNoValidVariants(delegator, nowTimestamp, chunkSize);
+                discPhase.end(numSoFar);
+                Debug.logInfo("Completed - Expired variant ProductAssocs for " + numSoFarOne + " sales discontinued variant products, sales discontinued " + numSoFar + " virtual products that have no valid variants.", module);
+                return ServiceUtil.returnSuccess();
+            }
+
+            ProductUtilMetrics.Phase expirePhase = metrics.startPhase("expireAssocs");
             EntityListIterator eliOne = delegator.find("Product", conditionOne, null, null, null, null);
             GenericValue productOne = null;
             int numSoFarOne = 0;
             while ((productOne = eliOne.next()) != null) {
-                String virtualProductId = ProductWorker.getVariantVirtualId(productOne);
-                GenericValue virtualProduct = delegator.findOne("Product", UtilMisc.toMap("productId", virtualProductId), false);
-                if (virtualProduct == null) {
-                    continue;
-                }
-                List<GenericValue> passocList = delegator.findByAnd("ProductAssoc", UtilMisc.toMap("productId", virtualProductId, "productIdTo", productOne.get("productId"), "productAssocTypeId", "PRODUCT_VARIANT"), null, false);
-                passocList = EntityUtil.filterByDate(passocList);
-                if (passocList.size() > 0) {
-                    for (GenericValue passoc: passocList) {
-                        passoc.set("thruDate", nowTimestamp);
-                        passoc.store();
-                    }
-
+                if (expireVariantAssocsOfDiscVariant(delegator, productOne, nowTimestamp, lookupCache, variantIndex)) {
                     numSoFarOne++;
                     if (numSoFarOne % 500 == 0) {
                         Debug.logInfo("Expired variant ProductAssocs for " + numSoFarOne + " sales discontinued variant products.", module);
@@ -99,22 +195,14 @@ public class ProductUtilServices {
                 }
             }
             eliOne.close();
+            expirePhase.end(numSoFarOne);
 
-            // get all non-discontinued virtuals, see if all variant ProductAssocs are expired, if discontinue
-            EntityCondition condition = EntityCondition.makeCondition(UtilMisc.toList(
-                    EntityCondition.makeCondition("isVirtual", EntityOperator.EQUALS, "Y"),
-                    EntityCondition.makeCondition(EntityCondition.makeCondition("salesDiscontinuationDate", EntityOperator.EQUALS, null), EntityOperator.OR, EntityCondition.makeCondition("salesDiscontinuationDate", EntityOperator.GREATER_THAN_EQUAL_TO, nowTimestamp))
-                   ), EntityOperator.AND);
+            ProductUtilMetrics.Phase discPhase = metrics.startPhase("discVirtuals");
             EntityListIterator eli = delegator.find("Product", condition, null, null, null, null);
             GenericValue product = null;
             int numSoFar = 0;
             while ((product = eli.next()) != null) {
-                List<GenericValue> passocList = delegator.findByAnd("ProductAssoc", UtilMisc.toMap("productId", product.get("productId"), "productAssocTypeId", "PRODUCT_VARIANT"), null, false);
-                passocList = EntityUtil.filterByDate(passocList);
-                if (passocList.size() == 0) {
-                    product.set("salesDiscontinuationDate", nowTimestamp);
-                    delegator.store(product);
-
+                if (discVirtualIfNoValidVariants(delegator, product, nowTimestamp, lookupCache, variantIndex)) {
                     numSoFar++;
                     if (numSoFar % 500 == 0) {
                         Debug.logInfo("Sales discontinued " + numSoFar + " virtual products that have no valid variants.", module);
@@ -122,6 +210,8 @@ public class ProductUtilServices {
                 }
             }
             eli.close();
+            discPhase.end(numSoFar);
+            Debug.logInfo("Completed - Expired variant ProductAssocs for " + numSoFarOne + " sales discontinued variant products, sales discontinued " + numSoFar + " virtual products that have no valid variants; " + lookupCache, module);
         } catch (GenericEntityException e) {
             Map<String, String> messageMap = UtilMisc.toMap("errMessage", e.toString());
             errMsg = UtilProperties.getMessage(resourceError,"productutilservices.entity_error_running_discVirtualsWithDiscVariants", messageMap, locale);
@@ -132,29 +222,362 @@ public class ProductUtilServices {
         return ServiceUtil.returnSuccess();
     }
 
-    /** for all disc products, remove from category memberships */
+    /**
+     * Expires the valid variant ProductAssocs from the virtual of the given disc variant; returns true if any were expired. The virtual
+     * and its variant assocs are read through the lookup cache, the cached assocs are immutable so copies are expired. With a variant index the
+     * variants without a valid virtual are skipped without reading anything.
+     */
+    private static boolean expireVariantAssocsOfDiscVariant(Delegator delegator, GenericValue variantProduct, Timestamp nowTimestamp, ProductLookupCache lookupCache, ProductVariantIndex variantIndex) throws GenericEntityException {
+        String variantProductId = variantProduct.getString("productId");
+        String virtualProductId = null;
+        if (variantIndex != null) {
+            virtualProductId = variantIndex.getFirstValidVirtualId(variantProductId, nowTimestamp);
+        } else {
+            // the virtual as ProductWorker.getVariantVirtualId finds it
+            GenericValue virtualAssoc = EntityUtil.getFirst(EntityUtil.filterByDate(lookupCache.getVirtualAssocs(variantProductId)));
+            if (virtualAssoc != null) {
+                virtualProductId = virtualAssoc.getString("productId");
+            }
+        }
+        if (virtualProductId == null) {
+            return false;
+        }
+        GenericValue virtualProduct = lookupCache.getProduct(virtualProductId);
+        if (virtualProduct == null) {
+            return false;
+        }
+        List<GenericValue> passocList = EntityUtil.filterByAnd(lookupCache.getVariantAssocs(virtualProductId), UtilMisc.toMap("productIdTo", variantProductId));
+        passocList = EntityUtil.filterByDate(passocList);
+        if (passocList.size() == 0) {
+            return false;
+        }
+        for (GenericValue passoc: passocList) {
+            GenericValue expiredAssoc = GenericValue.create(passoc);
+            expiredAssoc.set("thruDate", nowTimestamp);
+            expiredAssoc.store();
+            lookupCache.invalidateAssoc(passoc);
+        }
+        if (variantIndex != null) {
+            variantIndex.expireVariantAssocs(virtualProductId, variantProductId, nowTimestamp);
+        }
+        return true;
+    }
+
+    /** Sales discontinues the given virtual if it has no valid variant ProductAssocs; returns true if it was discontinued */
+    private static boolean discVirtualIfNoValidVariants(Delegator delegator, GenericValue product, Timestamp nowTimestamp, ProductLookupCache lookupCache, ProductVariantIndex variantIndex) throws GenericEntityException {
+        if (variantIndex != null) {
+            if (variantIndex.countValidVariants(product.getString("productId"), nowTimestamp) > 0) {
+                return false;
+            }
+        } else if (EntityUtil.filterByDate(lookupCache.getVariantAssocs(product.getString("productId"))).size() > 0) {
+            return false;
+        }
+        // a copy, the product may be the instance the lookup cache holds for the virtual
+        GenericValue discProduct = GenericValue.create(product);
+        discProduct.set("salesDiscontinuationDate", nowTimestamp);
+        delegator.store(discProduct);
+        lookupCache.invalidateProduct(product.getString("productId"));
+        return true;
+    }
+
+    /** Set-based version of the first discVirtualsWithDiscVariants pass: finds the sales discontinued variants that still have valid
+     * PRODUCT_VARIANT assocs with a single joined query and expires those assocs with one storeByCondition per chunk of variants.
+     * NOTE: this expires all valid PRODUCT_VARIANT assocs pointing to a disc variant, not only the one from the first virtual found
+     * @return the number of variants whose assocs were expired
+     */
+    protected static int expireVariantAssocsOfDiscVariants(Delegator delegator, Timestamp nowTimestamp, int chunkSize) throws GenericEntityException {
+        DynamicViewEntity dve = new DynamicViewEntity();
+        dve.addMemberEntity("PVAR", "Product");
+        dve.addMemberEntity("PVA", "ProductAssoc");
+        dve.addViewLink("PVAR", "PVA", Boolean.FALSE, UtilMisc.toList(new ModelKeyMap("productId", "productIdTo")));
+        dve.addAlias("PVAR", "productId", null, null, null, Boolean.TRUE, null);
+        dve.addAlias("PVAR", "isVariant", null, null, null, null, null);
+        dve.addAlias("PVAR", "salesDiscontinuationDate", null, null, null, null, null);
+        dve.addAlias("PVA", "productAssocTypeId", null, null, null, null, null);
+        dve.addAlias("PVA", "fromDate", null, null, null, null, null);
+        dve.addAlias("PVA", "thruDate", null, null, null, null, null);
+
+        EntityCondition condition = EntityCondition.makeCondition(UtilMisc.toList(
+                EntityCondition.makeCondition("isVariant", EntityOperator.EQUALS, "Y"),
+                EntityCondition.makeCondition("salesDiscontinuationDate", EntityOperator.NOT_EQUAL, null),
+                EntityCondition.makeCondition("salesDiscontinuationDate", EntityOperator.LESS_THAN_EQUAL_TO, nowTimestamp),
+                EntityCondition.makeCondition("productAssocTypeId", EntityOperator.EQUALS, "PRODUCT_VARIANT"),
+                EntityUtil.getFilterByDateExpr(nowTimestamp)
+               ), EntityOperator.AND);
+        EntityListIterator eli = delegator.findListIteratorByCondition(dve, condition, null, UtilMisc.toList("productId"), UtilMisc.toList("productId"), null);
+        List<String> variantProductIds = FastList.newInstance();
+        int numSoFar = 0;
+        try {
+            GenericValue value = null;
+            while ((value = eli.next()) != null) {
+                variantProductIds.add(value.getString("productId"));
+                if (variantProductIds.size() >= chunkSize) {
+                    numSoFar += expireVariantAssocs(delegator, variantProductIds, nowTimestamp);
+                    Debug.logInfo("Expired variant ProductAssocs for " + numSoFar + " sales discontinued variant products.", module);
+                }
+            }
+        } finally {
+            eli.close();
+        }
+        numSoFar += expireVariantAssocs(delegator, variantProductIds, nowTimestamp);
+        return numSoFar;
+    }
+
+    /** Chunk version of the first bulk pass for partitioned and checkpointed scans: per DEFAULT_CHUNK_SIZE disc variants of the chunk one
+     * query finds which still have valid PRODUCT_VARIANT assocs and one statement expires them; returns the number of variants whose assocs
+     * were expired
+     */
+    private static int expireVariantAssocsOfDiscVariants(Delegator delegator, List<GenericValue> variantProductChunk, Timestamp nowTimestamp) throws GenericEntityException {
+        List<String> variantProductIds = EntityUtil.getFieldListFromEntityList(variantProductChunk, "productId", false);
+        int numExpired = 0;
+        for (int i = 0; i < variantProductIds.size(); i += DEFAULT_CHUNK_SIZE) {
+            numExpired += expireVariantAssocsOfDiscVariantIds(delegator, variantProductIds.subList(i, Math.min(i + DEFAULT_CHUNK_SIZE, variantProductIds.size())), nowTimestamp);
+        }
+        return numExpired;
+    }
+
+    private static int expireVariantAssocsOfDiscVariantIds(Delegator delegator, List<String> variantProductIdChunk, Timestamp nowTimestamp) throws GenericEntityException {
+        EntityCondition condition = EntityCondition.makeCondition(UtilMisc.toList(
+                EntityCondition.makeCondition("productIdTo", EntityOperator.IN, variantProductIdChunk),
+                EntityCondition.makeCondition("productAssocTypeId", EntityOperator.EQUALS, "PRODUCT_VARIANT"),
+                EntityUtil.getFilterByDateExpr(nowTimestamp)
+               ), EntityOperator.AND);
+        EntityFindOptions findOptions = new EntityFindOptions();
+        findOptions.setDistinct(true);
+        List<GenericValue> withAssocList = delegator.findList("ProductAssoc", condition, UtilMisc.toSet("productIdTo"), null, findOptions, false);
+        List<String> variantProductIds = EntityUtil.getFieldListFromEntityList(withAssocList, "productIdTo", true);
+        return expireVariantAssocs(delegator, variantProductIds, nowTimestamp);
+    }
+
+    /** Expires the valid PRODUCT_VARIANT assocs pointing to the given variants with one statement and clears the list; returns the number of variants passed in */
+    private static int expireVariantAssocs(Delegator delegator, List<String> variantProductIds, Timestamp nowTimestamp) throws GenericEntityException {
+        int numVariants = variantProductIds.size();
+        if (numVariants == 0) {
+            return 0;
+        }
+        EntityCondition condition = EntityCondition.makeCondition(UtilMisc.toList(
+                EntityCondition.makeCondition("productIdTo", EntityOperator.IN, variantProductIds),
+                EntityCondition.makeCondition("productAssocTypeId", EntityOperator.EQUALS, "PRODUCT_VARIANT"),
+                EntityUtil.getFilterByDateExpr(nowTimestamp)
+               ), EntityOperator.AND);
+        delegator.storeByCondition("ProductAssoc", UtilMisc.toMap("thruDate", nowTimestamp), condition);
+        variantProductIds.clear();
+        return numVariants;
+    }
+
+    /** Set-based version of the second discVirtualsWithDiscVariants pass: for each chunk of non-discontinued virtuals one query finds the
+     * ones that still have a valid variant and one storeByCondition discontinues the rest
+     * @return the number of virtuals that were sales discontinued
+     */
+    protected static int discVirtualsWithNoValidVariants(Delegator delegator, Timestamp nowTimestamp, int chunkSize) throws GenericEntityException {
+        EntityCondition condition = EntityCondition.makeCondition(UtilMisc.toList(
+                EntityCondition.makeCondition("isVirtual", EntityOperator.EQUALS, "Y"),
+                EntityCondition.makeCondition(EntityCondition.makeCondition("salesDiscontinuationDate", EntityOperator.EQUALS, null), EntityOperator.OR, EntityCondition.makeCondition("salesDiscontinuationDate", EntityOperator.GREATER_THAN_EQUAL_TO, nowTimestamp))
+               ), EntityOperator.AND);
+        EntityListIterator eli = delegator.find("Product", condition, null, UtilMisc.toSet("productId"), UtilMisc.toList("productId"), null);
+        List<String> virtualProductIds = FastList.newInstance();
+        int numSoFar = 0;
+        int numLogged = 0;
+        try {
+            GenericValue value = null;
+            while ((value = eli.next()) != null) {
+                virtualProductIds.add(value.getString("productId"));
+                if (virtualProductIds.size() >= chunkSize) {
+                    numSoFar += discVirtualsWithNoValidVariants(delegator, virtualProductIds, nowTimestamp);
+                    if (numSoFar - numLogged >= 500) {
+                        numLogged = numSoFar;
+                        Debug.logInfo("Sales discontinued " + numSoFar + " virtual products that have no valid variants.", module);
+                    }
+                }
+            }
+        } finally {
+            eli.close();
+        }
+        numSoFar += discVirtualsWithNoValidVariants(delegator, virtualProductIds, nowTimestamp);
+        return numSoFar;
+    }
+
+    /**
+     * Discontinues the virtuals in the list that have no valid PRODUCT_VARIANT assoc, DEFAULT_CHUNK_SIZE virtuals per query, and clears
+     * the list; returns the number discontinued
+     */
+    private static int discVirtualsWithNoValidVariants(Delegator delegator, List<String> virtualProductIds, Timestamp nowTimestamp) throws GenericEntityException {
+        int numDiscontinued = 0;
+        for (int i = 0; i < virtualProductIds.size(); i += DEFAULT_CHUNK_SIZE) {
+            numDiscontinued += discVirtualIdsWithNoValidVariants(delegator, virtualProductIds.subList(i, Math.min(i + DEFAULT_CHUNK_SIZE, virtualProductIds.size())), nowTimestamp);
+        }
+        virtualProductIds.clear();
+        return numDiscontinued;
+    }
+
+    private static int discVirtualIdsWithNoValidVariants(Delegator delegator, List<String> virtualProductIdChunk, Timestamp nowTimestamp) throws GenericEntityException {
+        EntityCondition assocCondition = EntityCondition.makeCondition(UtilMisc.toList(
+                EntityCondition.makeCondition("productId", EntityOperator.IN, virtualProductIdChunk),
+                EntityCondition.makeCondition("productAssocTypeId", EntityOperator.EQUALS, "PRODUCT_VARIANT"),
+                EntityUtil.getFilterByDateExpr(nowTimestamp)
+               ), EntityOperator.AND);
+        EntityFindOptions findOptions = new EntityFindOptions();
+        findOptions.setDistinct(true);
+        List<GenericValue> withVariantList = delegator.findList("ProductAssoc", assocCondition, UtilMisc.toSet("productId"), null, findOptions, false);
+
+        Set<String> orphanProductIds = FastSet.newInstance();
+        orphanProductIds.addAll(virtualProductIdChunk);
+        orphanProductIds.removeAll(EntityUtil.getFieldListFromEntityList(withVariantList, "productId", true));
+        if (orphanProductIds.size() > 0) {
+            delegator.storeByCondition("Product", UtilMisc.toMap("salesDiscontinuationDate", nowTimestamp), EntityCondition.makeCondition("productId", EntityOperator.IN, orphanProductIds));
+        }
+        return orphanProductIds.size();
+    }
+
+    /** Gets the chunkSize service parameter, falling back to DEFAULT_CHUNK_SIZE if it is missing or not positive */
+    protected static int getChunkSize(Map<String, ? extends Object> context) {
+        Integer chunkSize = (Integer) context.get("chunkSize");
+        if (chunkSize == null || chunkSize.intValue() <= 0) {
+            return DEFAULT_CHUNK_SIZE;
+        }
+        return chunkSize.intValue();
+    }
+
+    /** Gets the cacheSize service parameter, the maximum entries of the run's ProductLookupCache */
+    protected static int getCacheSize(Map<String, ? extends Object> context) {
+        Integer cacheSize = (Integer) context.get("cacheSize");
+        if (cacheSize == null || cacheSize.intValue() < 0) {
+            return ProductLookupCache.DEFAULT_MAX_SIZE;
+        }
+        return cacheSize.intValue();
+    }
+
+    /** Loads the ProductVariantIndex if the useVariantIndex service parameter is true, null otherwise */
+    protected static ProductVariantIndex loadVariantIndex(Delegator delegator, Map<String, ? extends Object> context) throws GenericEntityException {
+        Boolean useVariantIndex = (Boolean) context.get("useVariantIndex");
+        if (useVariantIndex == null || !useVariantIndex.booleanValue()) {
+            return null;
+        }
+        return ProductVariantIndex.load(delegator);
+    }
+
+    /** Gets the threads service parameter, 1 (run in the calling thread and transaction) if it is missing */
+    protected static int getThreads(Map<String, ? extends Object> context) {
+        Integer threads = (Integer) context.get("threads");
+        if (threads == null || threads.intValue() < 1) {
+            return 1;
+        }
+        return threads.intValue();
+    }
+
+    /** Makes a partitioned scan over the rows matching the condition, configured from the threads, partitions and chunkSize service parameters;
+     * partitions defaults to four per thread so a slow key range doesn't hold up the others
+     */
+    protected static ProductScanExecutor makeScanExecutor(Delegator delegator, String entityName, EntityCondition condition, Set<String> fieldsToSelect, Map<String, ? extends Object> context) {
+        int threads = getThreads(context);
+        Integer partitions = (Integer) context.get("partitions");
+        ProductScanExecutor scanExecutor = new ProductScanExecutor(delegator, entityName, condition, fieldsToSelect);
+        scanExecutor.setThreads(threads, partitions != null ? partitions.intValue() : threads * 4);
+        scanExecutor.setChunkSize(getChunkSize(context));
+        return scanExecutor;
+    }
+
+    /** Gets the commitSize service parameter, 0 if missing; when set the maintenance services run as a checkpointed scan */
+    protected static int getCommitSize(Map<String, ? extends Object> context) {
+        Integer commitSize = (Integer) context.get("commitSize");
+        if (commitSize == null || commitSize.intValue() < 0) {
+            return 0;
+        }
+        return commitSize.intValue();
+    }
+
+    /** Makes a checkpointed scan committing every commitSize rows; with the restart service parameter set to true a saved cursor is discarded first */
+    protected static ProductScanCheckpoint makeScanCheckpoint(Delegator delegator, String checkpointName, String entityName, EntityCondition condition, Set<String> fieldsToSelect, Map<String, ? extends Object> context) throws GenericEntityException {
+        ProductScanCheckpoint scanCheckpoint = new ProductScanCheckpoint(delegator, checkpointName, entityName, condition, fieldsToSelect);
+        scanCheckpoint.setCommitSize(getCommitSize(context));
+        if (Boolean.TRUE.equals(context.get("restart"))) {
+            scanCheckpoint.clearCheckpoint();
+        }
+        return scanCheckpoint;
+    }
+
+    /**
+     * Removes all category memberships of sales discontinued products. With bulkMode the memberships of each chunk of products are removed
+     * with one statement; with archiveFile the removed rows are written to that file, in the productutil output directory, as entity engine
+     * XML before they are removed.
+     */
     public static Map<String, Object> removeCategoryMembersOfDiscProducts(DispatchContext dctx, Map<String, ? extends Object> context) {
-        Delegator delegator = dctx.getDelegator();
+        final Delegator delegator = dctx.getDelegator();
         Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
         Locale locale = (Locale) context.get("locale");
         String errMsg = null;
 
+        Boolean bulkModeBool = (Boolean) context.get("bulkMode");
+        final boolean bulkMode = bulkModeBool != null && bulkModeBool.booleanValue();
+        String archiveFile = (String) context.get("archiveFile");
+        ProductArchiveWriter archiveWriter = null;
+
         try {
+            if (UtilValidate.isNotEmpty(archiveFile)) {
+                archiveWriter = ProductArchiveWriter.open(archiveFile);
+            }
+            final ProductArchiveWriter finalArchiveWriter = archiveWriter;
             EntityCondition condition = EntityCondition.makeCondition(UtilMisc.toList(
                     EntityCondition.makeCondition("salesDiscontinuationDate", EntityOperator.NOT_EQUAL, null),
                     EntityCondition.makeCondition("salesDiscontinuationDate", EntityOperator.LESS_THAN_EQUAL_TO, nowTimestamp)
                    ), EntityOperator.AND);
+            ProductScanExecutor.ChunkHandler removeMembersHandler = new ProductScanExecutor.ChunkHandler() {
+                public int handleChunk(List<GenericValue> chunk) throws GenericEntityException {
+                    if (bulkMode) {
+                        List<String> productIds = EntityUtil.getFieldListFromEntityList(chunk, "productId", false);
+                        return removeCategoryMembersOfProducts(delegator, productIds, finalArchiveWriter);
+                    }
+                    int numProcessed = 0;
+                    for (GenericValue product: chunk) {
+                        if (removeCategoryMembersOfProduct(delegator, product.getString("productId"), finalArchiveWriter)) {
+                            numProcessed++;
+                        }
+                    }
+                    return numProcessed;
+                }
+            };
+            if (getCommitSize(context) > 0) {
+                int numSoFar = makeScanCheckpoint(delegator, "removeCategoryMembersOfDiscProducts", "Product", condition, UtilMisc.toSet("productId"), context).run(removeMembersHandler);
+                Debug.logInfo("Completed - Removed category members for " + numSoFar + " sales discontinued products.", module);
+                return ServiceUtil.returnSuccess();
+            }
+            if (getThreads(context) > 1) {
+                ProductScanExecutor scanExecutor = makeScanExecutor(delegator, "Product", condition, UtilMisc.toSet("productId"), context);
+                int numSoFar = ProductScanExecutor.getRowsProcessed(scanExecutor.run("removeCategoryMembersOfDiscProducts", removeMembersHandler));
+                Debug.logInfo("Completed - Removed category members for " + numSoFar + " sales discontinued products.", module);
+                return ServiceUtil.returnSuccess();
+            }
+
+            if (bulkMode) {
+                int chunkSize = getChunkSize(context);
+                EntityListIterator eli = delegator.find("Product", condition, null, UtilMisc.toSet("productId"), null, null);
+                int numSoFar = 0;
+                try {
+                    List<GenericValue> chunk = FastList.newInstance();
+                    GenericValue product = null;
+                    while ((product = eli.next()) != null) {
+                        chunk.add(product);
+                        if (chunk.size() >= chunkSize) {
+                            numSoFar += removeMembersHandler.handleChunk(chunk);
+                            chunk.clear();
+                            Debug.logInfo("Removed category members for " + numSoFar + " sales discontinued products.", module);
+                        }
+                    }
+                    if (chunk.size() > 0) {
+                        numSoFar += removeMembersHandler.handleChunk(chunk);
+                    }
+                } finally {
+                    eli.close();
+                }
+                Debug.logInfo("Completed - Removed category members for " + numSoFar + " sales discontinued products.", module);
+                return ServiceUtil.returnSuccess();
+            }
+
             EntityListIterator eli = delegator.find("Product", condition, null, null, null, null);
             GenericValue product = null;
             int numSoFar = 0;
             while ((product = eli.next()) != null) {
-                String productId = product.getString("productId");
-                List<GenericValue> productCategoryMemberList = delegator.findByAnd("ProductCategoryMember", UtilMisc.toMap("productId", productId), null, false);
-                if (productCategoryMemberList.size() > 0) {
-                    for (GenericValue productCategoryMember: productCategoryMemberList) {
-                        // coded this way rather than a removeByAnd so it can be easily changed...
-                        productCategoryMember.remove();
-                    }
+                if (removeCategoryMembersOfProduct(delegator, product.getString("productId"), archiveWriter)) {
                     numSoFar++;
                     if (numSoFar % 500 == 0) {
                         Debug.logInfo("Removed category members for " + numSoFar + " sales discontinued products.", module);
@@ -168,17 +591,105 @@ public class ProductUtilServices {
             errMsg = UtilProperties.getMessage(resourceError,"productutilservices.entity_error_running_removeCategoryMembersOfDiscProducts", messageMap, locale);
             Debug.logError(e, errMsg, module);
             return ServiceUtil.returnError(errMsg);
+        } finally {
+            if (archiveWriter != null) {
+                archiveWriter.close();
+            }
         }
 
         return ServiceUtil.returnSuccess();
     }
 
+    /** Removes all category memberships of the product, archiving them if there is an archive writer; returns true if it had any */
+    private static boolean removeCategoryMembersOfProduct(Delegator delegator, String productId, ProductArchiveWriter archiveWriter) throws GenericEntityException {
+        List<GenericValue> productCategoryMemberList = delegator.findByAnd("ProductCategoryMember", UtilMisc.toMap("productId", productId), null, false);
+        if (productCategoryMemberList.size() == 0) {
+            return false;
+        }
+        if (archiveWriter != null) {
+            archiveWriter.archive(productCategoryMemberList);
+        }
+        for (GenericValue productCategoryMember: productCategoryMemberList) {
+            // coded this way rather than a removeByAnd so it can be easily changed...
+            productCategoryMember.remove();
+        }
+        return true;
+    }
+
+    /**
+     * Removes all category memberships of the products with one removeByCondition per DEFAULT_CHUNK_SIZE products; the memberships are
+     * read first, all fields if they are to be archived, only the productId otherwise, for the per product counts.
+     * @return the number of products that had memberships
+     */
+    private static int removeCategoryMembersOfProducts(Delegator delegator, List<String> productIds, ProductArchiveWriter archiveWriter) throws GenericEntityException {
+        int numProducts = 0;
+        for (int i = 0; i < productIds.size(); i += DEFAULT_CHUNK_SIZE) {
+            numProducts += removeCategoryMembersOfProductChunk(delegator, productIds.subList(i, Math.min(i + DEFAULT_CHUNK_SIZE, productIds.size())), archiveWriter);
+        }
+        return numProducts;
+    }
+
+    private static int removeCategoryMembersOfProductChunk(Delegator delegator, List<String> productIdChunk, ProductArchiveWriter archiveWriter) throws GenericEntityException {
+        EntityCondition condition = EntityCondition.makeCondition("productId", EntityOperator.IN, productIdChunk);
+        List<GenericValue> productCategoryMemberList = delegator.findList("ProductCategoryMember", condition, archiveWriter != null ? null : UtilMisc.toSet("productId"), null, null, false);
+        if (productCategoryMemberList.size() == 0) {
+            return 0;
+        }
+        Map<String, Integer> countByProductId = FastMap.newInstance();
+        for (GenericValue productCategoryMember: productCategoryMemberList) {
+            String productId = productCategoryMember.getString("productId");
+            Integer count = countByProductId.get(productId);
+            countByProductId.put(productId, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+        }
+        if (archiveWriter != null) {
+            archiveWriter.archive(productCategoryMemberList);
+        }
+        int numRemoved = delegator.removeByCondition("ProductCategoryMember", condition);
+        if (Debug.verboseOn()) {
+            for (Map.Entry<String, Integer> entry: countByProductId.entrySet()) {
+                Debug.logVerbose("Removed " + entry.getValue() + " category members of sales discontinued product [" + entry.getKey() + "]", module);
+            }
+            Debug.logVerbose("Removed " + numRemoved + " category members of " + countByProductId.size() + " sales discontinued products.", module);
+        }
+        return countByProductId.size();
+    }
+
+    /**
+     * Gets the file a service writes a report or archive to: the name is taken relative to the productutil.output.dir property of
+     * product.properties (runtime/productutil under ofbiz.home by default), and names that would end up outside of it are refused.
+     */
+    protected static File getOutputFile(String fileName) throws GenericEntityException {
+        String outputDirName = UtilProperties.getPropertyValue("product", "productutil.output.dir", System.getProperty("ofbiz.home") + "/runtime/productutil");
+        try {
+            File outputDir = new File(outputDirName).getCanonicalFile();
+            File file = new File(outputDir, fileName).getCanonicalFile();
+            if (!outputDir.equals(file.getParentFile()) && !file.getPath().startsWith(outputDir.getPath() + File.separator)) {
+                throw new GenericEntityException("File [" + fileName + "] is not in the output directory [" + outputDir + "] (productutil.output.dir)");
+            }
+            File parentDir = file.getParentFile();
+            if (!parentDir.isDirectory() && !parentDir.mkdirs()) {
+                throw new GenericEntityException("Could not make the directory [" + parentDir + "] for file [" + fileName + "]");
+            }
+            return file;
+        } catch (IOException e) {
+            throw new GenericEntityException("Could not resolve file [" + fileName + "] in the output directory [" + outputDirName + "]", e);
+        }
+    }
+
+    /**
+     * Removes duplicate open-ended memberships of a product in a category. With bulkMode the open-ended members are read once in
+     * order and of each product and category the one with the earliest fromDate is kept, see DuplicateCategoryMemberRemover; with a
+     * commitSize as well that is done page by page in the checkpointed scan.
+     */
     public static Map<String, Object> removeDuplicateOpenEndedCategoryMembers(DispatchContext dctx, Map<String, ? extends Object> context) {
-        Delegator delegator = dctx.getDelegator();
+        final Delegator delegator = dctx.getDelegator();
         Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
         Locale locale = (Locale) context.get("locale");
         String errMsg = null;
 
+        Boolean bulkModeBool = (Boolean) context.get("bulkMode");
+        boolean bulkMode = bulkModeBool != null && bulkModeBool.booleanValue();
+
         try {
             DynamicViewEntity dve = new DynamicViewEntity();
             dve.addMemberEntity("PCM", "ProductCategoryMember");
@@ -193,17 +704,60 @@ public class ProductUtilServices {
                     EntityCondition.makeCondition("thruDate", EntityOperator.EQUALS, null)
                    ), EntityOperator.AND);
             EntityCondition havingCond = EntityCondition.makeCondition("productIdCount", EntityOperator.GREATER_THAN, Long.valueOf(1));
+
+            int commitSize = getCommitSize(context);
+            if (commitSize > 0 && bulkMode) {
+                final int chunkSize = getChunkSize(context);
+                ProductScanCheckpoint scanCheckpoint = new ProductScanCheckpoint(delegator, "removeDuplicateOpenEndedCategoryMembers", "ProductCategoryMember", condition, UtilMisc.toList("productId", "productCategoryId", "fromDate"));
+                scanCheckpoint.setCommitSize(commitSize);
+                if (Boolean.TRUE.equals(context.get("restart"))) {
+                    scanCheckpoint.clearCheckpoint();
+                }
+                int numSoFar = scanCheckpoint.run(new ProductScanExecutor.ChunkHandler() {
+                    public int handleChunk(List<GenericValue> chunk) throws GenericEntityException {
+                        // a page holds all members of its products, only ordered by productId
+                        DuplicateCategoryMemberRemover remover = new DuplicateCategoryMemberRemover(delegator, chunkSize);
+                        for (GenericValue pcm: EntityUtil.orderBy(chunk, UtilMisc.toList("productId", "productCategoryId", "fromDate"))) {
+                            remover.add(pcm);
+                        }
+                        return remover.finish();
+                    }
+                });
+                Debug.logInfo("Completed - Removed category members for " + numSoFar + " products with duplicate category members.", module);
+                return ServiceUtil.returnSuccess();
+            }
+            if (commitSize > 0) {
+                ProductScanCheckpoint scanCheckpoint = new ProductScanCheckpoint(delegator, "removeDuplicateOpenEndedCategoryMembers", dve, condition, havingCond, UtilMisc.toList("productId", "productCategoryId", "productIdCount"));
+                scanCheckpoint.setCommitSize(commitSize);
+                if (Boolean.TRUE.equals(context.get("restart"))) {
+                    scanCheckpoint.clearCheckpoint();
+                }
+                int numSoFar = scanCheckpoint.run(new ProductScanExecutor.ChunkHandler() {
+                    public int handleChunk(List<GenericValue> chunk) throws GenericEntityException {
+                        int numProcessed = 0;
+                        for (GenericValue pcm: chunk) {
+                            if (removeDuplicateCategoryMembers(delegator, pcm.getString("productId"), pcm.getString("productCategoryId"))) {
+                                numProcessed++;
+                            }
+                        }
+                        return numProcessed;
+                    }
+                });
+                Debug.logInfo("Completed - Removed category members for " + numSoFar + " products with duplicate category members.", module);
+                return ServiceUtil.returnSuccess();
+            }
+
+            if (bulkMode) {
+                int numSoFar = removeDuplicateOpenEndedCategoryMembers(delegator, condition, getChunkSize(context));
+                Debug.logInfo("Completed - Removed category members for " + numSoFar + " products with duplicate category members.", module);
+                return ServiceUtil.returnSuccess();
+            }
+
             EntityListIterator eli = delegator.findListIteratorByCondition(dve, condition, havingCond, UtilMisc.toList("productId", "productCategoryId", "productIdCount"), null, null);
             GenericValue pcm = null;
             int numSoFar = 0;
             while ((pcm = eli.next()) != null) {
-                List<GenericValue> productCategoryMemberList = delegator.findByAnd("ProductCategoryMember", UtilMisc.toMap("productId", pcm.get("productId"), "productCategoryId", pcm.get("productCategoryId")), null, false);
-                if (productCategoryMemberList.size() > 1) {
-                    // remove all except the first...
-                    productCategoryMemberList.remove(0);
-                    for (GenericValue productCategoryMember: productCategoryMemberList) {
-                        productCategoryMember.remove();
-                    }
+                if (removeDuplicateCategoryMembers(delegator, pcm.getString("productId"), pcm.getString("productCategoryId"))) {
                     numSoFar++;
                     if (numSoFar % 500 == 0) {
                         Debug.logInfo("Removed category members for " + numSoFar + " products with duplicate category members.", module);
@@ -222,8 +776,102 @@ public class ProductUtilServices {
         return ServiceUtil.returnSuccess();
     }
 
+    /**
+     * The bulkMode of the removeDuplicateOpenEndedCategoryMembers service: one pass over the open-ended category members ordered by
+     * productId, productCategoryId and fromDate. Unlike the grouped query this doesn't touch the members that are not open-ended.
+     * @return the number of product and category pairs that had duplicates
+     */
+    private static int removeDuplicateOpenEndedCategoryMembers(Delegator delegator, EntityCondition openEndedCondition, int chunkSize) throws GenericEntityException {
+        DuplicateCategoryMemberRemover remover = new DuplicateCategoryMemberRemover(delegator, chunkSize);
+        EntityListIterator eli = delegator.find("ProductCategoryMember", openEndedCondition, null, UtilMisc.toSet("productId", "productCategoryId", "fromDate"), UtilMisc.toList("productId", "productCategoryId", "fromDate"), null);
+        try {
+            GenericValue pcm = null;
+            while ((pcm = eli.next()) != null) {
+                remover.add(pcm);
+            }
+        } finally {
+            eli.close();
+        }
+        int numPairs = remover.finish();
+        Debug.logInfo("Removed " + remover.numRemoved + " duplicate category members of " + numPairs + " products.", module);
+        return numPairs;
+    }
+
+    /**
+     * Takes category members ordered by productId, productCategoryId and fromDate, holding only the current product and category: the
+     * member with the earliest fromDate is kept, the later ones are removed by primary key, chunkSize per statement.
+     */
+    private static class DuplicateCategoryMemberRemover {
+        private final Delegator delegator;
+        private final int chunkSize;
+        private final List<EntityCondition> toRemoveConditions = FastList.newInstance();
+        private int numPairs = 0;
+        private int numRemoved = 0;
+        private String keptProductId = null;
+        private String keptProductCategoryId = null;
+        private boolean keptCounted = false;
+
+        private DuplicateCategoryMemberRemover(Delegator delegator, int chunkSize) {
+            this.delegator = delegator;
+            this.chunkSize = Math.max(1, chunkSize);
+        }
+
+        private void add(GenericValue pcm) throws GenericEntityException {
+            String productId = pcm.getString("productId");
+            String productCategoryId = pcm.getString("productCategoryId");
+            if (!productId.equals(keptProductId) || !productCategoryId.equals(keptProductCategoryId)) {
+                // the first of a new pair, keep it
+                keptProductId = productId;
+                keptProductCategoryId = productCategoryId;
+                keptCounted = false;
+                return;
+            }
+            if (!keptCounted) {
+                numPairs++;
+                keptCounted = true;
+            }
+            toRemoveConditions.add(EntityCondition.makeCondition(UtilMisc.toMap("productId", productId, "productCategoryId", productCategoryId, "fromDate", pcm.getTimestamp("fromDate"))));
+            if (toRemoveConditions.size() >= chunkSize) {
+                removePending();
+                Debug.logInfo("Removed " + numRemoved + " duplicate category members of " + numPairs + " products.", module);
+            }
+        }
+
+        /** Removes the members still pending; returns the number of product and category pairs that had duplicates */
+        private int finish() throws GenericEntityException {
+            if (toRemoveConditions.size() > 0) {
+                removePending();
+            }
+            return numPairs;
+        }
+
+        private void removePending() throws GenericEntityException {
+            numRemoved += delegator.removeByCondition("ProductCategoryMember", EntityCondition.makeCondition(toRemoveConditions, EntityOperator.OR));
+            toRemoveConditions.clear();
+        }
+    }
+
+    /** Removes all but the first membership of the product in the category; returns true if there was more than one */
+    private static boolean removeDuplicateCategoryMembers(Delegator delegator, String productId, String productCategoryId) throws GenericEntityException {
+        List<GenericValue> productCategoryMemberList = delegator.findByAnd("ProductCategoryMember", UtilMisc.toMap("productId", productId, "productCategoryId", productCategoryId), null, false);
+        if (productCategoryMemberList.size() <= 1) {
+            return false;
+        }
+        // remove all except the first...
+        productCategoryMemberList.remove(0);
+        for (GenericValue productCategoryMember: productCategoryMemberList) {
+            productCategoryMember.remove();
+        }
+        return true;
+    }
+
     public static Map<String, Object> makeStandAloneFromSingleVariantVirtuals(DispatchContext dctx, Map<String, ? extends Object> context) {
-        Delegator delegator = dctx.getDelegator();
+        ProductUtilMetrics metrics = ProductUtilMetrics.start("makeStandAloneFromSingleVariantVirtuals");
+        return metrics.finish(makeStandAloneFromSingleVariantVirtuals(dctx, context, metrics));
+    }
+
+    private static Map<String, Object> makeStandAloneFromSingleVariantVirtuals(DispatchContext dctx, Map<String, ? extends Object> context, ProductUtilMetrics metrics) {
+        Delegator delegator = metrics.meter(dctx.getDelegator());
         LocalDispatcher dispatcher = dctx.getDispatcher();
         GenericValue userLogin = (GenericValue) context.get("userLogin");
         Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
@@ -252,68 +900,140 @@ public class ProductUtilServices {
                     EntityCondition.makeCondition(EntityCondition.makeCondition("salesDiscontinuationDate", EntityOperator.EQUALS, null), EntityOperator.OR, EntityCondition.makeCondition("salesDiscontinuationDate", EntityOperator.GREATER_THAN, nowTimestamp))
                    ), EntityOperator.AND);
             EntityCondition havingCond = EntityCondition.makeCondition("productIdToCount", EntityOperator.EQUALS, Long.valueOf(1));
-            EntityListIterator eliOne = delegator.findListIteratorByCondition(dve, condition, havingCond, UtilMisc.toList("productId", "productIdToCount"), null, null);
-            List<GenericValue> valueList = eliOne.getCompleteList();
-            eliOne.close();
-
-            Debug.logInfo("Found " + valueList.size() + " virtual products with one variant to turn into a stand alone product.", module);
-
-            int numWithOneOnly = 0;
-            for (GenericValue value: valueList) {
-                // has only one variant period, is it valid? should already be discontinued if not
-                String productId = value.getString("productId");
-                List<GenericValue> paList = delegator.findByAnd("ProductAssoc", UtilMisc.toMap("productId", productId, "productAssocTypeId", "PRODUCT_VARIANT"), null, false);
-                paList = EntityUtil.filterByDate(paList);
-                // verify the query; tested on a bunch, looks good
-                if (paList.size() != 1) {
-                    Debug.logInfo("Virtual product with ID " + productId + " should have 1 assoc, has " + paList.size(), module);
-                } else {
-                    //if (numWithOneOnly < 100) {
-                    //    Debug.logInfo("Virtual product ID to make stand-alone: " + productId, module);
-                    //}
-                    // for all virtuals with one variant move all info from virtual to variant and remove virtual, make variant as not a variant
-                    dispatcher.runSync("mergeVirtualWithSingleVariant", UtilMisc.<String, Object>toMap("productId", productId, "removeOld", Boolean.TRUE, "userLogin", userLogin));
-
-                    numWithOneOnly++;
-                    if (numWithOneOnly % 100 == 0) {
-                        Debug.logInfo("Made " + numWithOneOnly + " virtual products with only one valid variant stand-alone products.", module);
-                    }
-                }
-            }
-
             EntityCondition conditionWithDates = EntityCondition.makeCondition(UtilMisc.toList(
                     EntityCondition.makeCondition("productAssocTypeId", EntityOperator.EQUALS, "PRODUCT_VARIANT"),
                     EntityCondition.makeCondition(EntityCondition.makeCondition("salesDiscontinuationDate", EntityOperator.EQUALS, null), EntityOperator.OR, EntityCondition.makeCondition("salesDiscontinuationDate", EntityOperator.GREATER_THAN, nowTimestamp)),
                     EntityCondition.makeCondition("fromDate", EntityOperator.LESS_THAN_EQUAL_TO, nowTimestamp),
                     EntityCondition.makeCondition(EntityCondition.makeCondition("thruDate", EntityOperator.EQUALS, null), EntityOperator.OR, EntityCondition.makeCondition("thruDate", EntityOperator.GREATER_THAN_EQUAL_TO, nowTimestamp))
                    ), EntityOperator.AND);
-            EntityListIterator eliMulti = delegator.findListIteratorByCondition(dve, conditionWithDates, havingCond, UtilMisc.toList("productId", "productIdToCount"), null, null);
-            List<GenericValue> valueMultiList = eliMulti.getCompleteList();
-            eliMulti.close();
 
-            Debug.logInfo("Found " + valueMultiList.size() + " virtual products with one VALID variant to pull the variant from to make a stand alone product.", module);
+            Boolean testBool = (Boolean) context.get("test");
+            if (testBool != null && testBool.booleanValue()) {
+                // dry run: nothing is changed, the merges are written to the diffFile (or the log) and the reads are shared per chunk of candidates
+                String diffFile = (String) context.get("diffFile");
+                ProductMergeDiff diff = UtilValidate.isNotEmpty(diffFile) ? ProductMergeDiff.open(diffFile) : null;
+                try {
+                    Set<String> mergedProductIds = FastSet.newInstance();
+                    AtomicInteger numFailed = new AtomicInteger();
+                    List<String> errorList = FastList.newInstance();
+                    ProductUtilMetrics.Phase onePhase = metrics.startPhase("oneVariantOnly");
+                    int numWithOneOnly = dryRunMerges(delegator, dve, condition, havingCond, true, mergedProductIds, diff, numFailed, errorList, nowTimestamp, locale);
+                    onePhase.end(numWithOneOnly);
+                    ProductUtilMetrics.Phase oneValidPhase = metrics.startPhase("oneValidVariant");
+                    int numWithOneValid = dryRunMerges(delegator, dve, conditionWithDates, havingCond, false, mergedProductIds, diff, numFailed, errorList, nowTimestamp, locale);
+                    oneValidPhase.end(numWithOneValid);
+                    Debug.logInfo("Test mode, would make stand-alone virtual products with one valid variant: " + numWithOneValid + ", with one variant only: " + numWithOneOnly + "; " + numFailed + " merges failed", module);
+                    if (numFailed.get() > errorList.size()) {
+                        errorList.add((numFailed.get() - errorList.size()) + " more failed merges, not listed");
+                    }
+                    Map<String, Object> result = ServiceUtil.returnSuccess();
+                    result.put("numMerged", Integer.valueOf(numWithOneOnly + numWithOneValid));
+                    result.put("numFailed", Integer.valueOf(numFailed.get()));
+                    result.put("errorList", errorList);
+                    if (diff != null) {
+                        result.put("diffSummary", diff.getSummary());
+                    }
+                    return result;
+                } finally {
+                    if (diff != null) {
+                        diff.close();
+                    }
+                }
+            }
 
-            int numWithOneValid = 0;
-            for (GenericValue value: valueMultiList) {
-                // has only one valid variant
-                String productId = value.getString("productId");
+            int threads = getThreads(context);
+            if (threads > 1) {
+                // stream the candidates straight to the workers instead of loading them all first
+                Map<String, Object> result = ServiceUtil.returnSuccess();
+                ProductUtilMetrics.Phase onePhase = metrics.startPhase("oneVariantOnly");
+                EntityListIterator eliOne = delegator.findListIteratorByCondition(dve, condition, havingCond, UtilMisc.toList("productId", "productIdToCount"), null, null);
+                try {
+                    Map<String, Object> mergeResults = mergeSingleVariantVirtualsInParallel(delegator, dispatcher, eliOne, true, userLogin, threads);
+                    addMergeResults(result, mergeResults);
+                    onePhase.end(((Integer) mergeResults.get("numMerged")).intValue());
+                } finally {
+                    eliOne.close();
+                }
+                ProductUtilMetrics.Phase oneValidPhase = metrics.startPhase("oneValidVariant");
+                EntityListIterator eliMulti = delegator.findListIteratorByCondition(dve, conditionWithDates, havingCond, UtilMisc.toList("productId", "productIdToCount"), null, null);
+                try {
+                    Map<String, Object> mergeResults = mergeSingleVariantVirtualsInParallel(delegator, dispatcher, eliMulti, false, userLogin, threads);
+                    addMergeResults(result, mergeResults);
+                    oneValidPhase.end(((Integer) mergeResults.get("numMerged")).intValue());
+                } finally {
+                    eliMulti.close();
+                }
+                Debug.logInfo("Completed makeStandAloneFromSingleVariantVirtuals - merged " + result.get("numMerged") + " virtual products, " + result.get("numFailed") + " merges failed.", module);
+                return result;
+            }
 
-                List<GenericValue> paList = EntityUtil.filterByDate(delegator.findByAnd("ProductAssoc", UtilMisc.toMap("productId", productId, "productAssocTypeId", "PRODUCT_VARIANT"), null, false));
+            // only used to verify the candidates, the merges change the assocs of the virtuals that were already checked
+            ProductVariantIndex variantIndex = loadVariantIndex(delegator, context);
+            // the candidates are read a page at a time so only one page is ever held, however many there are
+            int pageSize = getChunkSize(context);
+            ProductUtilMetrics.Phase onePhase = metrics.startPhase("oneVariantOnly");
+            int numWithOneOnly = 0;
+            int numCandidatesOne = 0;
+            List<String> page = null;
+            String afterProductId = null;
+            do {
+                page = readCandidatePage(delegator, dve, condition, havingCond, afterProductId, pageSize);
+                for (String productId: page) {
+                    // has only one variant period, is it valid? should already be discontinued if not
+                    int numValidVariants = countValidVariants(delegator, variantIndex, productId, nowTimestamp);
+                    // verify the query; tested on a bunch, looks good
+                    if (numValidVariants != 1) {
+                        Debug.logInfo("Virtual product with ID " + productId + " should have 1 assoc, has " + numValidVariants, module);
+                    } else {
+                        //if (numWithOneOnly < 100) {
+                        //    Debug.logInfo("Virtual product ID to make stand-alone: " + productId, module);
+                        //}
+                        // for all virtuals with one variant move all info from virtual to variant and remove virtual, make variant as not a variant
+                        dispatcher.runSync("mergeVirtualWithSingleVariant", UtilMisc.<String, Object>toMap("productId", productId, "removeOld", Boolean.TRUE, "userLogin", userLogin));
+
+                        numWithOneOnly++;
+                        if (numWithOneOnly % 100 == 0) {
+                            Debug.logInfo("Made " + numWithOneOnly + " virtual products with only one valid variant stand-alone products.", module);
+                        }
+                    }
+                }
+                numCandidatesOne += page.size();
+                afterProductId = page.isEmpty() ? null : page.get(page.size() - 1);
+            } while (page.size() >= pageSize);
 
-                // verify the query; tested on a bunch, looks good
-                if (paList.size() != 1) {
-                    Debug.logInfo("Virtual product with ID " + productId + " should have 1 assoc, has " + paList.size(), module);
-                } else {
-                    // for all virtuals with one valid variant move info from virtual to variant, put variant in categories from virtual, remove virtual from all categories but leave "family" otherwise intact, mark variant as not a variant
-                    dispatcher.runSync("mergeVirtualWithSingleVariant", UtilMisc.<String, Object>toMap("productId", productId, "removeOld", Boolean.FALSE, "userLogin", userLogin));
+            Debug.logInfo("Went through " + numCandidatesOne + " virtual products with one variant to turn into a stand alone product.", module);
+            onePhase.end(numWithOneOnly);
+
+            ProductUtilMetrics.Phase oneValidPhase = metrics.startPhase("oneValidVariant");
+            int numWithOneValid = 0;
+            int numCandidatesMulti = 0;
+            afterProductId = null;
+            do {
+                page = readCandidatePage(delegator, dve, conditionWithDates, havingCond, afterProductId, pageSize);
+                for (String productId: page) {
+                    // has only one valid variant
+                    int numValidVariants = countValidVariants(delegator, variantIndex, productId, nowTimestamp);
+
+                    // verify the query; tested on a bunch, looks good
+                    if (numValidVariants != 1) {
+                        Debug.logInfo("Virtual product with ID " + productId + " should have 1 assoc, has " + numValidVariants, module);
+                    } else {
+                        // for all virtuals with one valid variant move info from virtual to variant, put variant in categories from virtual, remove virtual from all categories but leave "family" otherwise intact, mark variant as not a variant
+                        dispatcher.runSync("mergeVirtualWithSingleVariant", UtilMisc.<String, Object>toMap("productId", productId, "removeOld", Boolean.FALSE, "userLogin", userLogin));
 
-                    numWithOneValid++;
-                    if (numWithOneValid % 100 == 0) {
-                        Debug.logInfo("Made " + numWithOneValid + " virtual products with one valid variant stand-alone products.", module);
+                        numWithOneValid++;
+                        if (numWithOneValid % 100 == 0) {
+                            Debug.logInfo("Made " + numWithOneValid + " virtual products with one valid variant stand-alone products.", module);
+                        }
                     }
                 }
-            }
+                numCandidatesMulti += page.size();
+                afterProductId = page.isEmpty() ? null : page.get(page.size() - 1);
+            } while (page.size() >= pageSize);
 
+            Debug.logInfo("Went through " + numCandidatesMulti + " virtual products with one VALID variant to pull the variant from to make a stand alone product.", module);
+
+            oneValidPhase.end(numWithOneValid);
             Debug.logInfo("Found virtual products with one valid variant: " + numWithOneValid + ", with one variant only: " + numWithOneOnly, module);
         } catch (GenericEntityException e) {
             Map<String, String> messageMap = UtilMisc.toMap("errMessage", e.toString());
@@ -330,6 +1050,222 @@ public class ProductUtilServices {
         return ServiceUtil.returnSuccess();
     }
 
+    /**
+     * Reads the next page of candidate virtual productIds from the grouped view: keyset paginated on productId, so each page is its own
+     * query of at most pageSize rows after the last productId of the page before, which stays correct when merges remove virtuals.
+     * @param afterProductId the last productId of the previous page, null for the first page
+     */
+    protected static List<String> readCandidatePage(Delegator delegator, DynamicViewEntity dve, EntityCondition condition, EntityCondition havingCond, String afterProductId, int pageSize) throws GenericEntityException {
+        EntityCondition pageCondition = condition;
+        if (afterProductId != null) {
+            pageCondition = EntityCondition.makeCondition(condition, EntityOperator.AND, EntityCondition.makeCondition("productId", EntityOperator.GREATER_THAN, afterProductId));
+        }
+        EntityFindOptions findOptions = new EntityFindOptions();
+        findOptions.setMaxRows(pageSize);
+        findOptions.setFetchSize(pageSize);
+        List<String> productIds = FastList.newInstance();
+        EntityListIterator eli = delegator.findListIteratorByCondition(dve, pageCondition, havingCond, UtilMisc.toList("productId", "productIdToCount"), UtilMisc.toList("productId"), findOptions);
+        try {
+            GenericValue value = null;
+            while (productIds.size() < pageSize && (value = eli.next()) != null) {
+                productIds.add(value.getString("productId"));
+            }
+        } finally {
+            eli.close();
+        }
+        return productIds;
+    }
+
+    /**
+     * Dispatches mergeVirtualWithSingleVariant for every virtual read from the iterator that still has exactly one valid variant, on a bounded
+     * pool of threads with each merge in its own transaction. The iterator is read as the workers go: the reader blocks once threads * 2
+     * merges are in flight, so it never gets far ahead of the workers and never runs a merge itself while holding the open cursor.
+     * @return Map with the numMerged, numSkipped and numFailed counts and the errorList of the first MAX_MERGE_ERRORS failed merges
+     */
+    protected static Map<String, Object> mergeSingleVariantVirtualsInParallel(final Delegator delegator, final LocalDispatcher dispatcher, EntityListIterator eli, final boolean removeOld, final GenericValue userLogin, int threads) throws GenericEntityException {
+        final AtomicInteger numMerged = new AtomicInteger();
+        final AtomicInteger numSkipped = new AtomicInteger();
+        final AtomicInteger numFailed = new AtomicInteger();
+        final List<String> errorList = Collections.synchronizedList(new LinkedList<String>());
+
+        // the queue holds all permits, so a task is never rejected and never run by the reader
+        final Semaphore inFlight = new Semaphore(threads * 2);
+        ThreadPoolExecutor executor = ProductScanExecutor.newWorkerPool("mergeVirtualWithSingleVariant", threads, threads * 2);
+        try {
+            GenericValue value = null;
+            while ((value = eli.next()) != null) {
+                final String productId = value.getString("productId");
+                inFlight.acquire();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            if (getValidVariantAssocs(delegator, productId).size() != 1) {
+                                numSkipped.incrementAndGet();
+                                return;
+                            }
+                            Map<String, Object> mergeResult = dispatcher.runSync("mergeVirtualWithSingleVariant", UtilMisc.<String, Object>toMap("productId", productId, "removeOld", Boolean.valueOf(removeOld), "userLogin", userLogin), 0, true);
+                            if (ServiceUtil.isError(mergeResult)) {
+                                addMergeError(numFailed, errorList, productId + ": " + ServiceUtil.getErrorMessage(mergeResult));
+                                return;
+                            }
+                            int merged = numMerged.incrementAndGet();
+                            if (merged % 100 == 0) {
+                                Debug.logInfo("Made " + merged + " virtual products with " + (removeOld ? "only one" : "one valid") + " variant stand-alone products.", module);
+                            }
+                        } catch (GenericEntityException e) {
+                            addMergeError(numFailed, errorList, productId + ": " + e.toString());
+                        } catch (GenericServiceException e) {
+                            addMergeError(numFailed, errorList, productId + ": " + e.toString());
+                        } catch (RuntimeException e) {
+                            Debug.logError(e, "Error merging virtual product [" + productId + "]", module);
+                            addMergeError(numFailed, errorList, productId + ": " + e.toString());
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new GenericEntityException("Interrupted while waiting for the mergeVirtualWithSingleVariant workers", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Debug.logInfo("Merged " + numMerged + " virtual products with " + (removeOld ? "only one" : "one valid") + " variant, skipped " + numSkipped + ", " + numFailed + " failed.", module);
+        for (String error: errorList) {
+            Debug.logWarning("Error merging virtual product " + error, module);
+        }
+        if (numFailed.get() > errorList.size()) {
+            String moreErrors = (numFailed.get() - errorList.size()) + " more failed merges, not listed";
+            Debug.logWarning(moreErrors, module);
+            errorList.add(moreErrors);
+        }
+        return UtilMisc.<String, Object>toMap("numMerged", Integer.valueOf(numMerged.get()), "numSkipped", Integer.valueOf(numSkipped.get()),
+                "numFailed", Integer.valueOf(numFailed.get()), "errorList", errorList);
+    }
+
+    /** Counts a failed merge, keeping its message only while there are fewer than MAX_MERGE_ERRORS */
+    private static void addMergeError(AtomicInteger numFailed, List<String> errorList, String error) {
+        numFailed.incrementAndGet();
+        synchronized (errorList) {
+            if (errorList.size() < MAX_MERGE_ERRORS) {
+                errorList.add(error);
+            }
+        }
+    }
+
+    /** Adds the counts and errors of one parallel merge phase to the service result */
+    @SuppressWarnings("unchecked")
+    private static void addMergeResults(Map<String, Object> result, Map<String, Object> mergeResults) {
+        for (String countName: UtilMisc.toList("numMerged", "numSkipped", "numFailed")) {
+            Integer count = (Integer) result.get(countName);
+            result.put(countName, Integer.valueOf((count == null ? 0 : count.intValue()) + ((Integer) mergeResults.get(countName)).intValue()));
+        }
+        List<String> errorList = (List<String>) result.get("errorList");
+        if (errorList == null) {
+            errorList = FastList.newInstance();
+            result.put("errorList", errorList);
+        }
+        errorList.addAll((List<String>) mergeResults.get("errorList"));
+    }
+
+    /**
+     * Dry run of one makeStandAloneFromSingleVariantVirtuals phase: the candidates are read in chunks, everything the merges of a chunk
+     * read is loaded with a few IN queries per entity and the merges run in test mode against that. A merge that fails is counted in
+     * numFailed, with its message in the errorList while it has fewer than MAX_MERGE_ERRORS, and the run goes on with the next one.
+     * @param mergedProductIds the virtuals merged by an earlier phase, which a real run would have removed by now; added to
+     * @return the number of virtual products that would be merged
+     */
+    protected static int dryRunMerges(Delegator delegator, DynamicViewEntity dve, EntityCondition condition, EntityCondition havingCond, boolean removeOld, Set<String> mergedProductIds, ProductMergeDiff diff, AtomicInteger numFailed, List<String> errorList, Timestamp nowTimestamp, Locale locale) throws GenericEntityException {
+        int numMerged = 0;
+        List<String> productIds = FastList.newInstance();
+        EntityListIterator eli = delegator.findListIteratorByCondition(dve, condition, havingCond, UtilMisc.toList("productId", "productIdToCount"), null, null);
+        try {
+            GenericValue value = null;
+            while ((value = eli.next()) != null) {
+                String productId = value.getString("productId");
+                if (mergedProductIds.contains(productId)) {
+                    continue;
+                }
+                productIds.add(productId);
+                if (productIds.size() >= DEFAULT_CHUNK_SIZE) {
+                    numMerged += dryRunMergeChunk(delegator, productIds, removeOld, mergedProductIds, diff, numFailed, errorList, nowTimestamp, locale);
+                    productIds.clear();
+                }
+            }
+            if (productIds.size() > 0) {
+                numMerged += dryRunMergeChunk(delegator, productIds, removeOld, mergedProductIds, diff, numFailed, errorList, nowTimestamp, locale);
+            }
+        } finally {
+            eli.close();
+        }
+        Debug.logInfo("Test mode, would make " + numMerged + " virtual products with " + (removeOld ? "only one" : "one valid") + " variant stand-alone products.", module);
+        return numMerged;
+    }
+
+    /** Dry runs the merges of the candidates in productIds; returns the number that would be merged */
+    protected static int dryRunMergeChunk(Delegator delegator, List<String> productIds, boolean removeOld, Set<String> mergedProductIds, ProductMergeDiff diff, AtomicInteger numFailed, List<String> errorList, Timestamp nowTimestamp, Locale locale) throws GenericEntityException {
+        ProductMergePrefetch prefetch = prefetchForMerge(delegator, productIds, nowTimestamp);
+        int numMerged = 0;
+        for (String productId: productIds) {
+            List<GenericValue> paList = prefetch.getValidVariantAssocs(productId);
+            if (paList.size() != 1) {
+                Debug.logInfo("Virtual product with ID " + productId + " should have 1 assoc, has " + paList.size(), module);
+                continue;
+            }
+            try {
+                Map<String, Object> mergeResult = mergeVirtualWithSingleVariant(delegator, productId, removeOld, true, prefetch, diff, nowTimestamp, locale);
+                if (ServiceUtil.isError(mergeResult)) {
+                    addMergeError(numFailed, errorList, productId + ": " + ServiceUtil.getErrorMessage(mergeResult));
+                    if (diff != null) {
+                        diff.failed(productId, ServiceUtil.getErrorMessage(mergeResult));
+                    }
+                    continue;
+                }
+            } catch (GenericEntityException e) {
+                Debug.logError(e, "Test mode, error merging virtual product [" + productId + "]", module);
+                addMergeError(numFailed, errorList, productId + ": " + e.toString());
+                if (diff != null) {
+                    diff.failed(productId, e.toString());
+                }
+                continue;
+            }
+            mergedProductIds.add(productId);
+            numMerged++;
+        }
+        return numMerged;
+    }
+
+    /** Loads everything the merges of the virtual products read, including the ProductKeyword rows that are only removed */
+    protected static ProductMergePrefetch prefetchForMerge(Delegator delegator, List<String> productIds, Timestamp nowTimestamp) throws GenericEntityException {
+        ProductMergePrefetch prefetch = ProductMergePrefetch.load(delegator, productIds, MERGE_RELATED_ENTITIES, nowTimestamp);
+        prefetch.loadRelated("ProductKeyword", "productId", productIds);
+        return prefetch;
+    }
+
+    /** Counts the valid variants of the virtual with the variant index, or with a query if there is none */
+    protected static int countValidVariants(Delegator delegator, ProductVariantIndex variantIndex, String productId, Timestamp nowTimestamp) throws GenericEntityException {
+        if (variantIndex != null) {
+            return variantIndex.countValidVariants(productId, nowTimestamp);
+        }
+        return EntityUtil.filterByDate(delegator.findByAnd("ProductAssoc", UtilMisc.toMap("productId", productId, "productAssocTypeId", "PRODUCT_VARIANT"), null, false), nowTimestamp).size();
+    }
+
+    /** Gets the currently valid PRODUCT_VARIANT assocs of the virtual product */
+    protected static List<GenericValue> getValidVariantAssocs(Delegator delegator, String productId) throws GenericEntityException {
+        return EntityUtil.filterByDate(delegator.findByAnd("ProductAssoc", UtilMisc.toMap("productId", productId, "productAssocTypeId", "PRODUCT_VARIANT"), null, false));
+    }
+
+    /** Label of the error the mergeVirtualWithSingleVariant service returns after a successful test run, to roll it back */
+    public static final String TEST_MODE_ROLLBACK_LABEL = "ProductMergeVirtualWithSingleVariant";
+
+    /** Tells whether the result of the mergeVirtualWithSingleVariant service is the error of a successful test run rather than a failure */
+    public static boolean isTestModeRollback(Map<String, ? extends Object> result, Locale locale) {
+        return ServiceUtil.isError(result) && UtilProperties.getMessage(resource, TEST_MODE_ROLLBACK_LABEL, locale).equals(ServiceUtil.getErrorMessage(result));
+    }
+
     public static Map<String, Object> mergeVirtualWithSingleVariant(DispatchContext dctx, Map<String, ? extends Object> context) {
         Delegator delegator = dctx.getDelegator();
         Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
@@ -338,6 +1274,7 @@ public class ProductUtilServices {
         Boolean removeOldBool = (Boolean) context.get("removeOld");
         boolean removeOld = removeOldBool.booleanValue();
         Locale locale = (Locale) context.get("locale");
+        String diffFile = (String) context.get("diffFile");
         String errMsg = null;
 
         Boolean testBool = (Boolean) context.get("test");
@@ -346,142 +1283,268 @@ public class ProductUtilServices {
             test = testBool.booleanValue();
         }
 
+        ProductMergeDiff diff = null;
         try {
-            GenericValue product = delegator.findOne("Product", UtilMisc.toMap("productId", productId), false);
-            Debug.logInfo("Processing virtual product with one variant with ID: " + productId + " and name: " + product.getString("internalName"), module);
-
-            List<GenericValue> paList = EntityUtil.filterByDate(delegator.findByAnd("ProductAssoc", UtilMisc.toMap("productId", productId, "productAssocTypeId", "PRODUCT_VARIANT"), null, false));
-            if (paList.size() > 1) {
-                Map<String, String> messageMap = UtilMisc.toMap("productId", productId);
-                errMsg = UtilProperties.getMessage(resourceError,"productutilservices.found_more_than_one_valid_variant_for_virtual_ID", messageMap, locale);
-                Debug.logInfo(errMsg, module);
-                return ServiceUtil.returnError(errMsg);
+            ProductMergePrefetch prefetch = null;
+            if (test) {
+                prefetch = prefetchForMerge(delegator, UtilMisc.toList(productId), nowTimestamp);
+                if (UtilValidate.isNotEmpty(diffFile)) {
+                    diff = ProductMergeDiff.open(diffFile);
+                }
             }
-
-            if (paList.size() == 0) {
-                Map<String, String> messageMap = UtilMisc.toMap("productId", productId);
-                errMsg = UtilProperties.getMessage(resourceError,"productutilservices.did_not_find_any_valid_variants_for_virtual_ID", messageMap, locale);
-                Debug.logInfo(errMsg, module);
-                return ServiceUtil.returnError(errMsg);
+            Map<String, Object> mergeResult = mergeVirtualWithSingleVariant(delegator, productId, removeOld, test, prefetch, diff, nowTimestamp, locale);
+            if (test && !ServiceUtil.isError(mergeResult)) {
+                // an error so the service transaction is rolled back, as it always was in test mode
+                return ServiceUtil.returnError(UtilProperties.getMessage(resource, TEST_MODE_ROLLBACK_LABEL, locale));
+            }
+            return mergeResult;
+        } catch (GenericEntityException e) {
+            Map<String, String> messageMap = UtilMisc.toMap("errMessage", e.toString());
+            errMsg = UtilProperties.getMessage(resourceError,"productutilservices.entity_error_running_makeStandAloneFromSingleVariantVirtuals", messageMap, locale);
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        } finally {
+            if (diff != null) {
+                diff.close();
             }
+        }
+    }
 
-            GenericValue productAssoc = EntityUtil.getFirst(paList);
-            if (removeOld) {
-                // remove the productAssoc before getting down so it isn't copied over...
-                if (test) {
-                    Debug.logInfo("Test mode, would remove: " + productAssoc, module);
+    /**
+     * Merges the virtual product into its single valid variant. In test mode nothing is changed: the would-be changes go to the diff, or to
+     * the log when there is none, and the reads go to the prefetch when there is one (which is required for the diff to be exact).
+     * Returns success when the virtual would be merged, in test mode too; only the service turns a test run into an error, to roll back.
+     */
+    protected static Map<String, Object> mergeVirtualWithSingleVariant(Delegator delegator, String productId, boolean removeOld, boolean test, ProductMergePrefetch prefetch, ProductMergeDiff diff, Timestamp nowTimestamp, Locale locale) throws GenericEntityException {
+        String errMsg = null;
+        GenericValue product = prefetch != null ? prefetch.getProduct(productId) : delegator.findOne("Product", UtilMisc.toMap("productId", productId), false);
+        Debug.logInfo("Processing virtual product with one variant with ID: " + productId + " and name: " + product.getString("internalName"), module);
+
+        List<GenericValue> paList = prefetch != null ? prefetch.getValidVariantAssocs(productId) : getValidVariantAssocs(delegator, productId);
+        if (paList.size() > 1) {
+            Map<String, String> messageMap = UtilMisc.toMap("productId", productId);
+            errMsg = UtilProperties.getMessage(resourceError,"productutilservices.found_more_than_one_valid_variant_for_virtual_ID", messageMap, locale);
+            Debug.logInfo(errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        }
+
+        if (paList.size() == 0) {
+            Map<String, String> messageMap = UtilMisc.toMap("productId", productId);
+            errMsg = UtilProperties.getMessage(resourceError,"productutilservices.did_not_find_any_valid_variants_for_virtual_ID", messageMap, locale);
+            Debug.logInfo(errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        }
+
+        GenericValue productAssoc = EntityUtil.getFirst(paList);
+        if (removeOld) {
+            // remove the productAssoc before getting down so it isn't copied over...
+            if (test) {
+                if (diff != null) {
+                    diff.remove(productAssoc);
                 } else {
-                    productAssoc.remove();
+                    Debug.logInfo("Test mode, would remove: " + productAssoc, module);
+                }
+                if (prefetch != null) {
+                    prefetch.removeValue(productAssoc);
                 }
             } else {
-                // don't remove, just expire to avoid running again in the future
-                productAssoc.set("thruDate", nowTimestamp);
-                if (test) {
-                    Debug.logInfo("Test mode, would store: " + productAssoc, module);
+                productAssoc.remove();
+            }
+        } else {
+            // don't remove, just expire to avoid running again in the future
+            GenericValue oldProductAssoc = (GenericValue) productAssoc.clone();
+            productAssoc.set("thruDate", nowTimestamp);
+            if (test) {
+                if (diff != null) {
+                    diff.update(oldProductAssoc, productAssoc);
                 } else {
-                    productAssoc.store();
+                    Debug.logInfo("Test mode, would store: " + productAssoc, module);
+                }
+                if (prefetch != null) {
+                    prefetch.storeValue(productAssoc);
                 }
+            } else {
+                productAssoc.store();
             }
-            String variantProductId = productAssoc.getString("productIdTo");
+        }
+        String variantProductId = productAssoc.getString("productIdTo");
 
-            // Product
-            GenericValue variantProduct = delegator.findOne("Product", UtilMisc.toMap("productId", variantProductId), false);
+        // Product
+        GenericValue variantProduct = prefetch != null ? prefetch.getProduct(variantProductId) : delegator.findOne("Product", UtilMisc.toMap("productId", variantProductId), false);
 
-            Debug.logInfo("--variant has ID: " + variantProductId + " and name: " + variantProduct.getString("internalName"), module);
+        Debug.logInfo("--variant has ID: " + variantProductId + " and name: " + variantProduct.getString("internalName"), module);
 
-            // start with the values from the virtual product, override from the variant...
-            GenericValue newVariantProduct = delegator.makeValue("Product", product);
-            newVariantProduct.setAllFields(variantProduct, false, "", null);
-            newVariantProduct.set("isVariant", "N");
-            if (test) {
-                Debug.logInfo("Test mode, would store: " + newVariantProduct, module);
+        // start with the values from the virtual product, override from the variant...
+        GenericValue newVariantProduct = delegator.makeValue("Product", product);
+        newVariantProduct.setAllFields(variantProduct, false, "", null);
+        newVariantProduct.set("isVariant", "N");
+        if (test) {
+            if (diff != null) {
+                diff.update(variantProduct, newVariantProduct);
             } else {
-                newVariantProduct.store();
+                Debug.logInfo("Test mode, would store: " + newVariantProduct, module);
             }
+        } else {
+            newVariantProduct.store();
+        }
 
-            // ProductCategoryMember - always remove these to pull the virtual from any categories it might have been in
-            duplicateRelated(product, "", "ProductCategoryMember", "productId", variantProductId, nowTimestamp, true, delegator, test);
-
-            // ProductFeatureAppl
-            duplicateRelated(product, "", "ProductFeatureAppl", "productId", variantProductId, nowTimestamp, removeOld, delegator, test);
-
-            // ProductContent
-            duplicateRelated(product, "", "ProductContent", "productId", variantProductId, nowTimestamp, removeOld, delegator, test);
-
-            // ProductPrice
-            duplicateRelated(product, "", "ProductPrice", "productId", variantProductId, nowTimestamp, removeOld, delegator, test);
+        // ProductCategoryMember, ProductFeatureAppl, ProductContent, ProductPrice, GoodIdentification, ProductAttribute, ProductAssoc
+        duplicateRelated(product, variantProductId, nowTimestamp, removeOld, delegator, test, prefetch, diff);
 
-            // GoodIdentification
-            duplicateRelated(product, "", "GoodIdentification", "productId", variantProductId, nowTimestamp, removeOld, delegator, test);
+        if (removeOld) {
+            removeRelated(product, "", "ProductKeyword", "productId", test, prefetch, diff);
+            if (test) {
+                if (diff != null) {
+                    diff.remove(product);
+                } else {
+                    Debug.logInfo("Test mode, would remove: " + product, module);
+                }
+            } else {
+                product.remove();
+            }
+        }
 
-            // ProductAttribute
-            duplicateRelated(product, "", "ProductAttribute", "productId", variantProductId, nowTimestamp, removeOld, delegator, test);
+        return ServiceUtil.returnSuccess();
+    }
 
-            // ProductAssoc
-            duplicateRelated(product, "Main", "ProductAssoc", "productId", variantProductId, nowTimestamp, removeOld, delegator, test);
-            duplicateRelated(product, "Assoc", "ProductAssoc", "productIdTo", variantProductId, nowTimestamp, removeOld, delegator, test);
+    /** The relations copied from a virtual to its variant by mergeVirtualWithSingleVariant: relation title, related entity name, field holding the productId */
+    protected static final String[][] MERGE_RELATED_ENTITIES = {
+        {"", "ProductCategoryMember", "productId"},
+        {"", "ProductFeatureAppl", "productId"},
+        {"", "ProductContent", "productId"},
+        {"", "ProductPrice", "productId"},
+        {"", "GoodIdentification", "productId"},
+        {"", "ProductAttribute", "productId"},
+        {"Main", "ProductAssoc", "productId"},
+        {"Assoc", "ProductAssoc", "productIdTo"}
+    };
+
+    /**
+     * Copies all MERGE_RELATED_ENTITIES of the virtual product to the variant: the variant's existing rows are read once per relation and
+     * checked in memory, the missing rows are inserted with one batch per entity, once per primary key, then the virtual's rows are removed if removeOld is set
+     * (ProductCategoryMember always, to pull the virtual from any categories it might have been in).
+     */
+    protected static void duplicateRelated(GenericValue product, String variantProductId, Timestamp nowTimestamp, boolean removeOld, Delegator delegator, boolean test) throws GenericEntityException {
+        duplicateRelated(product, variantProductId, nowTimestamp, removeOld, delegator, test, null, null);
+    }
 
-            if (removeOld) {
-                if (test) {
-                    Debug.logInfo("Test mode, would remove related ProductKeyword with dummy key: " + product.getRelatedDummyPK("ProductKeyword"), module);
-                    Debug.logInfo("Test mode, would remove: " + product, module);
-                } else {
-                    product.removeRelated("ProductKeyword");
-                    product.remove();
+    /** Like duplicateRelated, in test mode writing to the diff (if not null) and reading from the prefetch (if not null) */
+    protected static void duplicateRelated(GenericValue product, String variantProductId, Timestamp nowTimestamp, boolean removeOld, Delegator delegator, boolean test, ProductMergePrefetch prefetch, ProductMergeDiff diff) throws GenericEntityException {
+        Map<String, List<GenericValue>> toCreateByEntityName = FastMap.newInstance();
+        Map<String, Set<GenericPK>> toCreatePksByEntityName = FastMap.newInstance();
+        for (String[] relation: MERGE_RELATED_ENTITIES) {
+            List<GenericValue> toCreateList = toCreateByEntityName.get(relation[1]);
+            Set<GenericPK> toCreatePks = toCreatePksByEntityName.get(relation[1]);
+            if (toCreateList == null) {
+                toCreateList = FastList.newInstance();
+                toCreateByEntityName.put(relation[1], toCreateList);
+                toCreatePks = FastSet.newInstance();
+                toCreatePksByEntityName.put(relation[1], toCreatePks);
+            }
+            // relations of the same entity can make the same row, ex: the Main and Assoc ProductAssocs of the same type between the
+            // virtual and the variant both become variant to variant assocs from now; it is created once, as the one by one creates did
+            for (GenericValue newRelatedValue: getRelatedToDuplicate(product, relation[0], relation[1], relation[2], variantProductId, nowTimestamp, delegator, test, prefetch)) {
+                if (toCreatePks.add(newRelatedValue.getPrimaryKey())) {
+                    toCreateList.add(newRelatedValue);
                 }
             }
-
+        }
+        for (Map.Entry<String, List<GenericValue>> entry: toCreateByEntityName.entrySet()) {
             if (test) {
-                return ServiceUtil.returnError(UtilProperties.getMessage(resource, 
-                        "ProductMergeVirtualWithSingleVariant", locale));
+                for (GenericValue newRelatedValue: entry.getValue()) {
+                    if (diff != null) {
+                        diff.create(newRelatedValue);
+                    } else {
+                        Debug.logInfo("Test mode, would create: " + newRelatedValue, module);
+                    }
+                }
+            } else {
+                ProductBatchWriter.createAll(delegator, entry.getValue(), DEFAULT_CHUNK_SIZE);
+            }
+        }
+        for (String[] relation: MERGE_RELATED_ENTITIES) {
+            if (removeOld || "ProductCategoryMember".equals(relation[1])) {
+                removeRelated(product, relation[0], relation[1], relation[2], test, prefetch, diff);
             }
-        } catch (GenericEntityException e) {
-            Map<String, String> messageMap = UtilMisc.toMap("errMessage", e.toString());
-            errMsg = UtilProperties.getMessage(resourceError,"productutilservices.entity_error_running_makeStandAloneFromSingleVariantVirtuals", messageMap, locale);
-            Debug.logError(e, errMsg, module);
-            return ServiceUtil.returnError(errMsg);
         }
-
-        return ServiceUtil.returnSuccess();
     }
 
     protected static void duplicateRelated(GenericValue product, String title, String relatedEntityName, String productIdField, String variantProductId, Timestamp nowTimestamp, boolean removeOld, Delegator delegator, boolean test) throws GenericEntityException {
-        List<GenericValue> relatedList = EntityUtil.filterByDate(product.getRelated(title + relatedEntityName, null, null, false), nowTimestamp);
+        List<GenericValue> toCreateList = getRelatedToDuplicate(product, title, relatedEntityName, productIdField, variantProductId, nowTimestamp, delegator, test, null);
+        if (test) {
+            for (GenericValue newRelatedValue: toCreateList) {
+                Debug.logInfo("Test mode, would create: " + newRelatedValue, module);
+            }
+        } else {
+            ProductBatchWriter.createAll(delegator, toCreateList, DEFAULT_CHUNK_SIZE);
+        }
+        if (removeOld) {
+            removeRelated(product, title, relatedEntityName, productIdField, test, null, null);
+        }
+    }
+
+    /**
+     * Gets the copies for the variant of the currently valid related values of the virtual that the variant doesn't have yet; when the entity
+     * has a fromDate a valid variant row with the same key but other dates also counts as existing, and the copies start now. Both sides are
+     * read from the prefetch if there is one.
+     */
+    private static List<GenericValue> getRelatedToDuplicate(GenericValue product, String title, String relatedEntityName, String productIdField, String variantProductId, Timestamp nowTimestamp, Delegator delegator, boolean test, ProductMergePrefetch prefetch) throws GenericEntityException {
+        List<GenericValue> toCreateList = FastList.newInstance();
+        List<GenericValue> relatedList = prefetch != null ? prefetch.getRelated(relatedEntityName, productIdField, product.getString("productId")) : product.getRelated(title + relatedEntityName, null, null, false);
+        relatedList = EntityUtil.filterByDate(relatedList, nowTimestamp);
+        if (relatedList.size() == 0) {
+            return toCreateList;
+        }
+
+        // all of the variant's rows in one query; the primary keys of all of them, and of the valid ones without the fromDate
+        ModelEntity modelEntity = delegator.getModelEntity(relatedEntityName);
+        boolean hasFromDate = modelEntity.isField("fromDate");
+        Set<GenericPK> existingPks = FastSet.newInstance();
+        Set<GenericPK> validPksWithoutFromDate = FastSet.newInstance();
+        List<GenericValue> existingList = prefetch != null ? prefetch.getRelated(relatedEntityName, productIdField, variantProductId) : delegator.findByAnd(relatedEntityName, UtilMisc.toMap(productIdField, variantProductId), null, false);
+        for (GenericValue existingValue: existingList) {
+            existingPks.add(existingValue.getPrimaryKey());
+            if (hasFromDate && EntityUtil.isValueActive(existingValue, nowTimestamp)) {
+                GenericPK findValue = existingValue.getPrimaryKey();
+                findValue.remove("fromDate");
+                validPksWithoutFromDate.add(findValue);
+            }
+        }
+
         for (GenericValue relatedValue: relatedList) {
             GenericValue newRelatedValue = (GenericValue) relatedValue.clone();
             newRelatedValue.set(productIdField, variantProductId);
 
             // create a new one? see if one already exists with different from/thru dates
-            ModelEntity modelEntity = relatedValue.getModelEntity();
-            if (modelEntity.isField("fromDate")) {
+            if (hasFromDate) {
                 GenericPK findValue = newRelatedValue.getPrimaryKey();
-                // can't just set to null, need to remove the value so it isn't a constraint in the query
-                //findValue.set("fromDate", null);
                 findValue.remove("fromDate");
-                List<GenericValue> existingValueList = EntityUtil.filterByDate(delegator.findByAnd(relatedEntityName, findValue, null, false), nowTimestamp);
-                if (existingValueList.size() > 0) {
+                if (validPksWithoutFromDate.contains(findValue)) {
                     if (test) {
-                        Debug.logInfo("Found " + existingValueList.size() + " existing values for related entity name: " + relatedEntityName + ", not copying, findValue is: " + findValue, module);
+                        Debug.logInfo("Found existing values for related entity name: " + relatedEntityName + ", not copying, findValue is: " + findValue, module);
                     }
                     continue;
                 }
                 newRelatedValue.set("fromDate", nowTimestamp);
+                validPksWithoutFromDate.add(findValue);
             }
 
-            if (delegator.findCountByCondition(relatedEntityName, EntityCondition.makeCondition(newRelatedValue.getPrimaryKey(), EntityOperator.AND), null, null) == 0) {
-                if (test) {
-                    Debug.logInfo("Test mode, would create: " + newRelatedValue, module);
-                } else {
-                    newRelatedValue.create();
-                }
+            if (existingPks.add(newRelatedValue.getPrimaryKey())) {
+                toCreateList.add(newRelatedValue);
             }
         }
-        if (removeOld) {
-            if (test) {
-                Debug.logInfo("Test mode, would remove related " + title + relatedEntityName + " with dummy key: " + product.getRelatedDummyPK(title + relatedEntityName), module);
-            } else {
-                product.removeRelated(title + relatedEntityName);
-            }
+        return toCreateList;
+    }
+
+    /** Removes the related values; in test mode each of them is written to the diff if there is one, otherwise the relation is logged */
+    private static void removeRelated(GenericValue product, String title, String relatedEntityName, String productIdField, boolean test, ProductMergePrefetch prefetch, ProductMergeDiff diff) throws GenericEntityException {
+        String relationName = title + relatedEntityName;
+        if (!test) {
+            product.removeRelated(relationName);
+        } else if (diff != null) {
+            diff.removeAll(prefetch != null ? prefetch.getRelated(relatedEntityName, productIdField, product.getString("productId")) : product.getRelated(relationName, null, null, false));
+        } else {
+            Debug.logInfo("Test mode, would remove related " + relationName + " with dummy key: " + product.getRelatedDummyPK(relationName), module);
         }
     }
 
@@ -490,7 +1553,12 @@ public class ProductUtilServices {
      * NOTE: only works on fields of Product right now
      */
     public static Map<String, Object> setAllProductImageNames(DispatchContext dctx, Map<String, ? extends Object> context) {
-        Delegator delegator = dctx.getDelegator();
+        ProductUtilMetrics metrics = ProductUtilMetrics.start("setAllProductImageNames");
+        return metrics.finish(setAllProductImageNames(dctx, context, metrics));
+    }
+
+    private static Map<String, Object> setAllProductImageNames(DispatchContext dctx, Map<String, ? extends Object> context, ProductUtilMetrics metrics) {
+        final Delegator delegator = metrics.meter(dctx.getDelegator());
         String pattern = (String) context.get("pattern");
         Locale locale = (Locale) context.get("locale");
         String errMsg = null;
@@ -504,48 +1572,62 @@ public class ProductUtilServices {
             imageUrlPrefix = imageUrlPrefix.endsWith("/") ? imageUrlPrefix.substring(0, imageUrlPrefix.length()-1) : imageUrlPrefix;
             pattern = imageUrlPrefix + "/" + imageFilenameFormat;
         }
+        final ProductImageUrlTemplate imageUrlTemplate = ProductImageUrlTemplate.compile(pattern);
+        final int writeBatchSize = getWriteBatchSize(context);
+        final Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
 
         try {
+            final ProductVariantIndex variantIndex = loadVariantIndex(delegator, context);
+            // the rows of the phase are the products that needed an update
+            ProductUtilMetrics.Phase imageNamesPhase = metrics.startPhase("imageNames");
+            ProductScanExecutor.ChunkHandler imageNamesHandler = imageNamesPhase.meter(new ProductScanExecutor.ChunkHandler() {
+                public int handleChunk(List<GenericValue> chunk) throws GenericEntityException {
+                    Map<String, String> firstVariantIds = getFirstVariantIds(delegator, variantIndex, chunk, nowTimestamp);
+                    List<GenericValue> changedList = FastList.newInstance();
+                    for (GenericValue product: chunk) {
+                        if (setProductImageNames(product, firstVariantIds.get(product.getString("productId")), imageUrlTemplate)) {
+                            changedList.add(product);
+                        }
+                    }
+                    return ProductBatchWriter.updateFields(delegator, changedList, IMAGE_URL_FIELDS, writeBatchSize);
+                }
+            });
+            if (getCommitSize(context) > 0) {
+                int numChanged = makeScanCheckpoint(delegator, "setAllProductImageNames", "Product", null, null, context).run(imageNamesHandler);
+                imageNamesPhase.end(numChanged);
+                Debug.logInfo("Completed - Image URLs updated for " + numChanged + " products.", module);
+                return ServiceUtil.returnSuccess();
+            }
+            if (getThreads(context) > 1) {
+                ProductScanExecutor scanExecutor = makeScanExecutor(delegator, "Product", null, null, context);
+                int numChanged = ProductScanExecutor.getRowsProcessed(scanExecutor.run("setAllProductImageNames", imageNamesHandler));
+                imageNamesPhase.end(numChanged);
+                Debug.logInfo("Completed - Image URLs updated for " + numChanged + " products.", module);
+                return ServiceUtil.returnSuccess();
+            }
+
+            // read in chunks so the first variants of the virtuals can be looked up for the whole chunk at once
+            int chunkSize = getChunkSize(context);
             EntityListIterator eli = delegator.find("Product", null, null, null, null, null);
             GenericValue product = null;
+            List<GenericValue> chunk = FastList.newInstance();
             int numSoFar = 0;
+            int numChanged = 0;
             while ((product = eli.next()) != null) {
-                String productId = (String) product.get("productId");
-                Map<String, String> smallMap = UtilMisc.toMap("size", "small", "productId", productId);
-                Map<String, String> mediumMap = UtilMisc.toMap("size", "medium", "productId", productId);
-                Map<String, String> largeMap = UtilMisc.toMap("size", "large", "productId", productId);
-                Map<String, String> detailMap = UtilMisc.toMap("size", "detail", "productId", productId);
-
-                if ("Y".equals(product.getString("isVirtual"))) {
-                    // find the first variant, use it's ID for the names...
-                    List<GenericValue> productAssocList = EntityUtil.filterByDate(delegator.findByAnd("ProductAssoc", UtilMisc.toMap("productId", productId, "productAssocTypeId", "PRODUCT_VARIANT"), null, false));
-                    if (productAssocList.size() > 0) {
-                        GenericValue productAssoc = EntityUtil.getFirst(productAssocList);
-                        smallMap.put("productId", productAssoc.getString("productIdTo"));
-                        mediumMap.put("productId", productAssoc.getString("productIdTo"));
-                        product.set("smallImageUrl", FlexibleStringExpander.expandString(pattern, smallMap));
-                        product.set("mediumImageUrl", FlexibleStringExpander.expandString(pattern, mediumMap));
-                    } else {
-                        product.set("smallImageUrl", null);
-                        product.set("mediumImageUrl", null);
-                    }
-                    product.set("largeImageUrl", null);
-                    product.set("detailImageUrl", null);
-                } else {
-                    product.set("smallImageUrl", FlexibleStringExpander.expandString(pattern, smallMap));
-                    product.set("mediumImageUrl", FlexibleStringExpander.expandString(pattern, mediumMap));
-                    product.set("largeImageUrl", FlexibleStringExpander.expandString(pattern, largeMap));
-                    product.set("detailImageUrl", FlexibleStringExpander.expandString(pattern, detailMap));
+                chunk.add(product);
+                if (chunk.size() >= chunkSize) {
+                    numChanged += imageNamesHandler.handleChunk(chunk);
+                    chunk.clear();
                 }
-
-                product.store();
                 numSoFar++;
                 if (numSoFar % 500 == 0) {
                     Debug.logInfo("Image URLs set for " + numSoFar + " products.", module);
                 }
             }
             eli.close();
-            Debug.logInfo("Completed - Image URLs set for " + numSoFar + " products.", module);
+            numChanged += imageNamesHandler.handleChunk(chunk);
+            imageNamesPhase.end(numChanged);
+            Debug.logInfo("Completed - Image URLs set for " + numSoFar + " products, " + numChanged + " of them needed an update.", module);
         } catch (GenericEntityException e) {
             Map<String, String> messageMap = UtilMisc.toMap("errMessage", e.toString());
             errMsg = UtilProperties.getMessage(resourceError,"productutilservices.entity_error_running_setAllProductImageNames", messageMap, locale);
@@ -556,21 +1638,113 @@ public class ProductUtilServices {
         return ServiceUtil.returnSuccess();
     }
 
+    /** Sets the four image URLs of the product from the template, without storing it; virtuals get the small and medium images of their first variant
+     * @param firstVariantProductId the first valid variant of a virtual product, null if it has none
+     * @return true if any of the URLs changed, false if the product already had the computed values
+     */
+    private static boolean setProductImageNames(GenericValue product, String firstVariantProductId, ProductImageUrlTemplate imageUrlTemplate) {
+        String productId = (String) product.get("productId");
+        String smallImageUrl = null;
+        String mediumImageUrl = null;
+        String largeImageUrl = null;
+        String detailImageUrl = null;
+        if ("Y".equals(product.getString("isVirtual"))) {
+            // use the ID of the first variant for the names...
+            if (firstVariantProductId != null) {
+                smallImageUrl = imageUrlTemplate.expand(firstVariantProductId, "small");
+                mediumImageUrl = imageUrlTemplate.expand(firstVariantProductId, "medium");
+            }
+        } else {
+            smallImageUrl = imageUrlTemplate.expand(productId, "small");
+            mediumImageUrl = imageUrlTemplate.expand(productId, "medium");
+            largeImageUrl = imageUrlTemplate.expand(productId, "large");
+            detailImageUrl = imageUrlTemplate.expand(productId, "detail");
+        }
+
+        if (UtilValidate.areEqual(smallImageUrl, product.getString("smallImageUrl")) && UtilValidate.areEqual(mediumImageUrl, product.getString("mediumImageUrl"))
+                && UtilValidate.areEqual(largeImageUrl, product.getString("largeImageUrl")) && UtilValidate.areEqual(detailImageUrl, product.getString("detailImageUrl"))) {
+            return false;
+        }
+        product.set("smallImageUrl", smallImageUrl);
+        product.set("mediumImageUrl", mediumImageUrl);
+        product.set("largeImageUrl", largeImageUrl);
+        product.set("detailImageUrl", detailImageUrl);
+        return true;
+    }
+
+    /** Gets the first valid variant of each virtual product in the list with one query per DEFAULT_CHUNK_SIZE virtuals, or from the variant index if there is one, variants ordered by sequenceNum and then productIdTo
+     * @return Map of virtual productId to the productId of its first variant, virtuals without valid variants are left out
+     */
+    protected static Map<String, String> getFirstVariantIds(Delegator delegator, ProductVariantIndex variantIndex, List<GenericValue> productList, Timestamp nowTimestamp) throws GenericEntityException {
+        Map<String, String> firstVariantIds = FastMap.newInstance();
+        List<String> virtualProductIds = FastList.newInstance();
+        for (GenericValue product: productList) {
+            if ("Y".equals(product.getString("isVirtual"))) {
+                virtualProductIds.add(product.getString("productId"));
+            }
+        }
+        if (variantIndex != null) {
+            for (String virtualProductId: virtualProductIds) {
+                String firstVariantProductId = variantIndex.getFirstValidVariantId(virtualProductId, nowTimestamp);
+                if (firstVariantProductId != null) {
+                    firstVariantIds.put(virtualProductId, firstVariantProductId);
+                }
+            }
+            return firstVariantIds;
+        }
+        for (int i = 0; i < virtualProductIds.size(); i += DEFAULT_CHUNK_SIZE) {
+            List<String> idChunk = virtualProductIds.subList(i, Math.min(i + DEFAULT_CHUNK_SIZE, virtualProductIds.size()));
+            EntityCondition condition = EntityCondition.makeCondition(UtilMisc.toList(
+                    EntityCondition.makeCondition("productId", EntityOperator.IN, idChunk),
+                    EntityCondition.makeCondition("productAssocTypeId", EntityOperator.EQUALS, "PRODUCT_VARIANT"),
+                    EntityUtil.getFilterByDateExpr(nowTimestamp)
+                   ), EntityOperator.AND);
+            List<GenericValue> productAssocList = delegator.findList("ProductAssoc", condition, UtilMisc.toSet("productId", "productIdTo", "sequenceNum"), UtilMisc.toList("productId", "sequenceNum", "productIdTo"), null, false);
+            for (GenericValue productAssoc: productAssocList) {
+                String productId = productAssoc.getString("productId");
+                if (!firstVariantIds.containsKey(productId)) {
+                    firstVariantIds.put(productId, productAssoc.getString("productIdTo"));
+                }
+            }
+        }
+        return firstVariantIds;
+    }
+
+    /** Gets the writeBatchSize service parameter, the number of rows sent per JDBC batch, DEFAULT_CHUNK_SIZE if it is missing */
+    protected static int getWriteBatchSize(Map<String, ? extends Object> context) {
+        Integer writeBatchSize = (Integer) context.get("writeBatchSize");
+        if (writeBatchSize == null || writeBatchSize.intValue() <= 0) {
+            return DEFAULT_CHUNK_SIZE;
+        }
+        return writeBatchSize.intValue();
+    }
+
     public static Map<String, Object> clearAllVirtualProductImageNames(DispatchContext dctx, Map<String, ? extends Object> context) {
         Delegator delegator = dctx.getDelegator();
         Locale locale = (Locale) context.get("locale");
         String errMsg = null;
 
         try {
-            EntityListIterator eli = delegator.find("Product", EntityCondition.makeCondition("isVirtual", EntityOperator.EQUALS, "Y"), null, null, null, null);
+            EntityCondition condition = EntityCondition.makeCondition("isVirtual", EntityOperator.EQUALS, "Y");
+            if (getThreads(context) > 1) {
+                ProductScanExecutor scanExecutor = makeScanExecutor(delegator, "Product", condition, null, context);
+                int numSoFar = ProductScanExecutor.getRowsProcessed(scanExecutor.run("clearAllVirtualProductImageNames", new ProductScanExecutor.ChunkHandler() {
+                    public int handleChunk(List<GenericValue> chunk) throws GenericEntityException {
+                        for (GenericValue product: chunk) {
+                            clearProductImageNames(product);
+                        }
+                        return chunk.size();
+                    }
+                }));
+                Debug.logInfo("Completed - Image URLs cleared for " + numSoFar + " products.", module);
+                return ServiceUtil.returnSuccess();
+            }
+
+            EntityListIterator eli = delegator.find("Product", condition, null, null, null, null);
             GenericValue product = null;
             int numSoFar = 0;
             while ((product = eli.next()) != null) {
-                product.set("smallImageUrl", null);
-                product.set("mediumImageUrl", null);
-                product.set("largeImageUrl", null);
-                product.set("detailImageUrl", null);
-                product.store();
+                clearProductImageNames(product);
                 numSoFar++;
                 if (numSoFar % 500 == 0) {
                     Debug.logInfo("Image URLs cleared for " + numSoFar + " products.", module);
@@ -588,6 +1762,14 @@ public class ProductUtilServices {
         return ServiceUtil.returnSuccess();
     }
 
+    private static void clearProductImageNames(GenericValue product) throws GenericEntityException {
+        product.set("smallImageUrl", null);
+        product.set("mediumImageUrl", null);
+        product.set("largeImageUrl", null);
+        product.set("detailImageUrl", null);
+        product.store();
+    }
+
     // set category descriptions from longDescriptions
     /*
 allCategories = delegator.findList("ProductCategory", null, null, null, null, false);
@@ -612,7 +1794,12 @@ while (allCatIter.hasNext()) {
 
 
     public static Map<String, Object> attachProductFeaturesToCategory(DispatchContext dctx, Map<String, ? extends Object> context) {
-        Delegator delegator = dctx.getDelegator();
+        ProductUtilMetrics metrics = ProductUtilMetrics.start("attachProductFeaturesToCategory");
+        return metrics.finish(attachProductFeaturesToCategory(dctx, context, metrics));
+    }
+
+    private static Map<String, Object> attachProductFeaturesToCategory(DispatchContext dctx, Map<String, ? extends Object> context, ProductUtilMetrics metrics) {
+        Delegator delegator = metrics.meter(dctx.getDelegator());
         String productCategoryId = (String) context.get("productCategoryId");
         String doSubCategoriesStr = (String) context.get("doSubCategories");
         Locale locale = (Locale) context.get("locale");
@@ -622,13 +1809,69 @@ while (allCatIter.hasNext()) {
         boolean doSubCategories = !"N".equals(doSubCategoriesStr);
         Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
 
+        Set<String> productFeatureTypeIdsToExclude = getFeatureTypeIdsToExclude();
+        Set<String> productFeatureTypeIdsToInclude = getFeatureTypeIdsToInclude();
+
+        try {
+            attachProductFeaturesToCategory(productCategoryId, productFeatureTypeIdsToInclude, productFeatureTypeIdsToExclude, delegator, doSubCategories, nowTimestamp, getThreads(context), metrics);
+        } catch (GenericEntityException e) {
+            Map<String, String> messageMap = UtilMisc.toMap("errMessage", e.toString());
+            errMsg = UtilProperties.getMessage(resourceError,"productutilservices.error_in_attachProductFeaturesToCategory", messageMap, locale);
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        }
+
+        return ServiceUtil.returnSuccess();
+    }
+
+    /**
+     * Keeps the feature groups current for changed products, without redoing whole sub-trees: the categories of the products (and the
+     * productCategoryIds passed, for products that were taken out of a category) get their feature groups made again from all their
+     * members, and all their ancestors only associate the groups of the changed sub-categories, children before parents.
+     */
+    public static Map<String, Object> updateCategoryFeatureGroupsForProducts(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        List<String> productIds = UtilGenerics.checkList(context.get("productIds"));
+        List<String> productCategoryIds = UtilGenerics.checkList(context.get("productCategoryIds"));
+        Locale locale = (Locale) context.get("locale");
+        String errMsg = null;
+
+        if (productIds == null) {
+            productIds = FastList.newInstance();
+        }
+        if (productCategoryIds == null) {
+            productCategoryIds = FastList.newInstance();
+        }
+        ProductFeatureGroupWorker worker = new ProductFeatureGroupWorker(delegator, getFeatureTypeIdsToInclude(), getFeatureTypeIdsToExclude(), UtilDateTime.nowTimestamp());
+        try {
+            worker.loadForProducts(productIds, productCategoryIds);
+            worker.applyIncremental();
+        } catch (GenericEntityException e) {
+            Map<String, String> messageMap = UtilMisc.toMap("errMessage", e.toString());
+            errMsg = UtilProperties.getMessage(resourceError,"productutilservices.error_in_updateCategoryFeatureGroupsForProducts", messageMap, locale);
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        }
+
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("numCategories", Integer.valueOf(worker.getCategoryIds().size()));
+        result.put("numAncestors", Integer.valueOf(worker.getAncestorIds().size()));
+        return result;
+    }
+
+    /** The feature types never to make groups for, from the attach.feature.type.exclude property in prodsearch.properties */
+    protected static Set<String> getFeatureTypeIdsToExclude() {
         Set<String> productFeatureTypeIdsToExclude = FastSet.newInstance();
         String excludeProp = UtilProperties.getPropertyValue("prodsearch", "attach.feature.type.exclude");
         if (UtilValidate.isNotEmpty(excludeProp)) {
             List<String> typeList = StringUtil.split(excludeProp, ",");
             productFeatureTypeIdsToExclude.addAll(typeList);
         }
+        return productFeatureTypeIdsToExclude;
+    }
 
+    /** The only feature types to make groups for, from the attach.feature.type.include property; null for all types */
+    protected static Set<String> getFeatureTypeIdsToInclude() {
         Set<String> productFeatureTypeIdsToInclude = null;
         String includeProp = UtilProperties.getPropertyValue("prodsearch", "attach.feature.type.include");
         if (UtilValidate.isNotEmpty(includeProp)) {
@@ -637,172 +1880,105 @@ while (allCatIter.hasNext()) {
                 productFeatureTypeIdsToInclude = UtilMisc.makeSetWritable(typeList);
             }
         }
-
-        try {
-            attachProductFeaturesToCategory(productCategoryId, productFeatureTypeIdsToInclude, productFeatureTypeIdsToExclude, delegator, doSubCategories, nowTimestamp);
-        } catch (GenericEntityException e) {
-            Map<String, String> messageMap = UtilMisc.toMap("errMessage", e.toString());
-            errMsg = UtilProperties.getMessage(resourceError,"productutilservices.error_in_attachProductFeaturesToCategory", messageMap, locale);
-            Debug.logError(e, errMsg, module);
-            return ServiceUtil.returnError(errMsg);
-        }
-
-        return ServiceUtil.returnSuccess();
+        return productFeatureTypeIdsToInclude;
     }
 
     /** Get all features associated with products and associate them with a feature group attached to the category for each feature type;
      * includes products associated with this category only, but will also associate all feature groups of sub-categories with this category, optionally calls this method for all sub-categories too
+     * NOTE: the sub-category tree, the members and their features are loaded up front with a few queries per level and per chunk of products,
+     * see ProductFeatureGroupWorker
      */
     public static void attachProductFeaturesToCategory(String productCategoryId, Set<String> productFeatureTypeIdsToInclude, Set<String> productFeatureTypeIdsToExclude, Delegator delegator, boolean doSubCategories, Timestamp nowTimestamp) throws GenericEntityException {
+        attachProductFeaturesToCategory(productCategoryId, productFeatureTypeIdsToInclude, productFeatureTypeIdsToExclude, delegator, doSubCategories, nowTimestamp, 1);
+    }
+
+    /** With threads > 1 sibling sub-categories are done in parallel, each category in its own transaction */
+    public static void attachProductFeaturesToCategory(String productCategoryId, Set<String> productFeatureTypeIdsToInclude, Set<String> productFeatureTypeIdsToExclude, Delegator delegator, boolean doSubCategories, Timestamp nowTimestamp, int threads) throws GenericEntityException {
+        attachProductFeaturesToCategory(productCategoryId, productFeatureTypeIdsToInclude, productFeatureTypeIdsToExclude, delegator, doSubCategories, nowTimestamp, threads, null);
+    }
+
+    /** With metrics the loading and applying are timed as the load and apply phases, with the number of categories and the depth of the tree */
+    protected static void attachProductFeaturesToCategory(String productCategoryId, Set<String> productFeatureTypeIdsToInclude, Set<String> productFeatureTypeIdsToExclude, Delegator delegator, boolean doSubCategories, Timestamp nowTimestamp, int threads, ProductUtilMetrics metrics) throws GenericEntityException {
         if (nowTimestamp == null) {
             nowTimestamp = UtilDateTime.nowTimestamp();
         }
 
+        ProductFeatureGroupWorker worker = new ProductFeatureGroupWorker(delegator, productFeatureTypeIdsToInclude, productFeatureTypeIdsToExclude, nowTimestamp);
+        ProductUtilMetrics.Phase loadPhase = metrics == null ? null : metrics.startPhase("load");
+        worker.load(productCategoryId, doSubCategories);
+        if (metrics != null) {
+            loadPhase.end(worker.getCategoryIds().size());
+            metrics.setValue("numCategories", worker.getCategoryIds().size());
+            metrics.setValue("maxCategoryDepth", worker.getMaxDepth());
+        }
+        ProductUtilMetrics.Phase applyPhase = metrics == null ? null : metrics.startPhase("apply");
         // do sub-categories first so all feature groups will be in place
-        //查找这个分类的所有的直接子分类
-        List<GenericValue> subCategoryList = delegator.findByAnd("ProductCategoryRollup", UtilMisc.toMap("parentProductCategoryId", productCategoryId), null, false);
-        //默认查找子分类下的产品的特征，true
-        if (doSubCategories) {
-        	//1暂时假设无直接子分类，则跳过递归subCategoryList[]
-        	//2（多数）递归查找，直到当前分类没有子分类
-            for (GenericValue productCategoryRollup: subCategoryList) {
-                attachProductFeaturesToCategory(productCategoryRollup.getString("productCategoryId"), productFeatureTypeIdsToInclude, productFeatureTypeIdsToExclude, delegator, true, nowTimestamp);
-            }
+        if (threads > 1 && doSubCategories) {
+            worker.applyInParallel(threads);
+        } else {
+            worker.apply();
         }
+        if (metrics != null) {
+            applyPhase.end(worker.getCategoryIds().size());
+        }
+    }
 
-        // now get all features for this category and make associated feature groups
-        Map<String, Set<String>> productFeatureIdByTypeIdSetMap = FastMap.newInstance();
-        //获取当前分类下的产品
-        List<GenericValue> productCategoryMemberList = delegator.findByAnd("ProductCategoryMember", UtilMisc.toMap("productCategoryId", productCategoryId), null, false);
-        for (GenericValue productCategoryMember: productCategoryMemberList) {
-            //条件 prouductid,fromdate>now,thrudate>now||truedate is null
-        	String productId = productCategoryMember.getString("productId");
-            EntityCondition condition = EntityCondition.makeCondition(UtilMisc.toList(
-                    EntityCondition.makeCondition("productId", EntityOperator.EQUALS, productId),
-                    EntityCondition.makeCondition("fromDate", EntityOperator.LESS_THAN_EQUAL_TO, nowTimestamp),
-                    EntityCondition.makeCondition(EntityCondition.makeCondition("thruDate", EntityOperator.EQUALS, null), EntityOperator.OR, EntityCondition.makeCondition("thruDate", EntityOperator.GREATER_THAN_EQUAL_TO, nowTimestamp))
-           ), EntityOperator.AND);
-          //查找产品和特征的关系表
-            EntityListIterator productFeatureAndApplEli = delegator.find("ProductFeatureAndAppl", condition, null, null, null, null);
-            GenericValue productFeatureAndAppl = null;
-            //遍历此产品上的特征
-            while ((productFeatureAndAppl = productFeatureAndApplEli.next()) != null) {
-                String productFeatureId = productFeatureAndAppl.getString("productFeatureId");
-                String productFeatureTypeId = productFeatureAndAppl.getString("productFeatureTypeId");
-                //特征类型不符合的直接跳过
-                if (UtilValidate.isNotEmpty(productFeatureTypeIdsToInclude) && !productFeatureTypeIdsToInclude.contains(productFeatureTypeId)) {
-                    continue;
-                }
-                if (productFeatureTypeIdsToExclude != null && productFeatureTypeIdsToExclude.contains(productFeatureTypeId)) {
-                    continue;
-                }
-                //对特征通过type类型归类
-                Set<String> productFeatureIdSet = productFeatureIdByTypeIdSetMap.get(productFeatureTypeId);
-                if (productFeatureIdSet == null) {
-                	//若还没有出现过这个type的，就建立set对象用来存放，key为type
-                    productFeatureIdSet = FastSet.newInstance();
-                    productFeatureIdByTypeIdSetMap.put(productFeatureTypeId, productFeatureIdSet);
-                }
-                //否则的话，直接把这个值放入set中,map可以识别！！
-                productFeatureIdSet.add(productFeatureId);
-            }
-            productFeatureAndApplEli.close();
+    /**
+     * Makes the feature groups of one category from the features of its products by type, removes the groups of types no longer there and
+     * associates all feature groups of the sub-categories with the category; the sub-categories must already be done.
+     */
+    protected static void applyCategoryFeatureGroups(String productCategoryId, Map<String, Set<String>> productFeatureIdByTypeIdSetMap, List<String> subProductCategoryIds, Delegator delegator, Timestamp nowTimestamp) throws GenericEntityException {
+        // the groups made for this category before, found through its ProductFeatureCatGrpAppls
+        Map<String, Set<String>> legacyGroupIdsByCategoryId = FastMap.newInstance();
+        Map<String, String> ownedGroupIdByTypeId = getOwnedFeatureGroupIds(UtilMisc.toList(productCategoryId), legacyGroupIdsByCategoryId, delegator).get(productCategoryId);
+        if (ownedGroupIdByTypeId == null) {
+            ownedGroupIdByTypeId = FastMap.newInstance();
         }
-        //遍历刚才生成的map，生成特征组
+        //遍历按type归类的特征map，生成特征组
         for (Map.Entry<String, Set<String>> entry: productFeatureIdByTypeIdSetMap.entrySet()) {
             String productFeatureTypeId = entry.getKey();
             Set<String> productFeatureIdSet = entry.getValue();
-            //特征组的命名：分类id_类型id
-            String productFeatureGroupId = productCategoryId + "_" + productFeatureTypeId;
-            if (productFeatureGroupId.length() > 20) {
-            	//这里超过20就截取，这样会导致又可能出现手动生成的特征组重名，尤其是当一个分类下又多个特征类型，而特征类型的前几个字母相同时。。
-                Debug.logWarning("Manufactured productFeatureGroupId was greater than 20 characters, means that we had some long productCategoryId and/or productFeatureTypeId values, at the category part should be unique since it is first, so if the feature type isn't unique it just means more than one type of feature will go into the category...", module);
-                productFeatureGroupId = productFeatureGroupId.substring(0, 20);
-            }
-            //首先查找上面生成的特征组id是否已经存在
-            GenericValue productFeatureGroup = delegator.findOne("ProductFeatureGroup", UtilMisc.toMap("productFeatureGroupId", productFeatureGroupId), false);
-            //不存在可以安全插入
-            if (productFeatureGroup == null) {
-                // auto-create the group
-            	//生成特征组
-                String description = "Feature Group for type [" + productFeatureTypeId + "] features in category [" + productCategoryId + "]";
-                productFeatureGroup = delegator.makeValue("ProductFeatureGroup", UtilMisc.toMap("productFeatureGroupId", productFeatureGroupId, "description", description));
-                productFeatureGroup.create();
-                //生成特征组和当前分类的关系数据
+            String productFeatureGroupId = ownedGroupIdByTypeId.get(productFeatureTypeId);
+            if (productFeatureGroupId == null) {
+                // not there, or no longer associated with the category: find or auto-create the group and associate it
+                productFeatureGroupId = makeGeneratedFeatureGroup(productCategoryId, productFeatureTypeId, delegator);
                 GenericValue productFeatureCatGrpAppl = delegator.makeValue("ProductFeatureCatGrpAppl", UtilMisc.toMap("productFeatureGroupId", productFeatureGroupId, "productCategoryId", productCategoryId, "fromDate", nowTimestamp));
                 productFeatureCatGrpAppl.create();
-            }else{
-            	//lsx:改动3
-            	//特征组存在，但是特征组和当前的分类关系可能通过令外接口被删除了，所以此时还应检查关系是否还在，如果不在了，就重新添加上
-            	//delegator.findCountByCondition("ProductFeatureCatGrpAppl", whereEntityCondition, havingEntityCondition, findOptions)
-				List<GenericValue> gvs = delegator.findByAnd("ProductFeatureCatGrpAppl", UtilMisc.toMap("productFeatureGroupId", productFeatureGroupId, "productCategoryId", productCategoryId),null,false);
-				if(UtilValidate.isEmpty(gvs)){
-					GenericValue productFeatureCatGrpAppl = delegator.makeValue("ProductFeatureCatGrpAppl", UtilMisc.toMap("productFeatureGroupId", productFeatureGroupId, "productCategoryId", productCategoryId, "fromDate", nowTimestamp));
-	                productFeatureCatGrpAppl.create();
-				}
             }
              //不论是之前已有这个特征组和关系数据，下面要做的就是操作这个特征组的特征
-            // now put all of the features in the group, if there is not already a valid feature placement there...
-            //遍历刚才从当前分类下的产品那里获取到的所有特征
-            for (String productFeatureId: productFeatureIdSet) {
-            	//查找这个特征和当前的特征组之间是否已经建立关系
-                EntityCondition condition = EntityCondition.makeCondition(UtilMisc.toList(
-                        EntityCondition.makeCondition("productFeatureId", EntityOperator.EQUALS, productFeatureId),
-                        EntityCondition.makeCondition("productFeatureGroupId", EntityOperator.EQUALS, productFeatureGroupId),
-                        EntityCondition.makeCondition("fromDate", EntityOperator.LESS_THAN_EQUAL_TO, nowTimestamp),
-                        EntityCondition.makeCondition(EntityCondition.makeCondition("thruDate", EntityOperator.EQUALS, null), EntityOperator.OR, EntityCondition.makeCondition("thruDate", EntityOperator.GREATER_THAN_EQUAL_TO, nowTimestamp))
-               ), EntityOperator.AND);
-                //没有就插入
-                if (delegator.findCountByCondition("ProductFeatureGroupAppl", condition, null, null) == 0) {
-                    // if no valid ones, create one
-                    GenericValue productFeatureGroupAppl = delegator.makeValue("ProductFeatureGroupAppl", UtilMisc.toMap("productFeatureGroupId", productFeatureGroupId, "productFeatureId", productFeatureId, "fromDate", nowTimestamp));
-                    productFeatureGroupAppl.create();
-                }
-                //这里有漏洞：如果之前没有的特征可以加入，但是如果现在的情况是，之前特征组的特征多于现有的实际的，就需要删除，我的建议是最后做一次删除
+            // now make the valid features of the group the features found, adding the missing ones and removing the ones no longer there
+            syncFeatureGroupAppls(productFeatureGroupId, productFeatureIdSet, delegator, nowTimestamp);
+        }
+
+        //如果产品连这个特征组都不存在了，这时就需要把特征组和这个分类的关系去掉
+        // the groups of this category for types its products no longer have: empty them and remove all their category associations, this
+        // category's included so the group is no longer offered; only groups generated for this category are ever touched
+        for (Map.Entry<String, String> ownedEntry: ownedGroupIdByTypeId.entrySet()) {
+            if (!productFeatureIdByTypeIdSetMap.containsKey(ownedEntry.getKey())) {
+                String productFeatureGroupId = ownedEntry.getValue();
+                delegator.removeByAnd("ProductFeatureGroupAppl", UtilMisc.toMap("productFeatureGroupId", productFeatureGroupId));
+                delegator.removeByAnd("ProductFeatureCatGrpAppl", UtilMisc.toMap("productFeatureGroupId", productFeatureGroupId));
+                Debug.logInfo("Emptied feature group [" + productFeatureGroupId + "] of category [" + productCategoryId + "], no product has features of type [" + ownedEntry.getKey() + "] any more", module);
             }
-            //lsx:改动2
-            //在遍历添加之前没有的特征后，做一次删除已经不应再存在于该特征组的特征，因为本身这个特征组就是由产品上的特征而来，若产品上都没有了， 那这个特征组中也不该有了
-            EntityCondition delcondition = EntityCondition.makeCondition(UtilMisc.toList(
-                    EntityCondition.makeCondition("productFeatureId", EntityOperator.NOT_IN,productFeatureIdSet),
-                    EntityCondition.makeCondition("productFeatureGroupId", EntityOperator.EQUALS, productFeatureGroupId),
-                    EntityCondition.makeCondition("fromDate", EntityOperator.LESS_THAN_EQUAL_TO, nowTimestamp),
-                    EntityCondition.makeCondition(EntityCondition.makeCondition("thruDate", EntityOperator.EQUALS, null), EntityOperator.OR, EntityCondition.makeCondition("thruDate", EntityOperator.GREATER_THAN_EQUAL_TO, nowTimestamp))
-           ), EntityOperator.AND);
-            delegator.removeByCondition("ProductFeatureGroupAppl", delcondition);
-          //这个还只是考虑某个特征组中少了特征
-        }
-        //上面遍历的时候找到了产品的所有type，现在又有当前分类，最简单的做法是还保留这个特征组，而且保留这个特征组和多级分类的关系，而只是找到这个特征组并且清空它里面的内容 
-      //更近一步，如果产品连这个特征组都不存在了，这时就需要把特征组和这个分类的关系去掉，这个关系要去掉，首先要找到这个特征组是针对哪个具体分类而建的
-        //lsx改动3
-        Set<String> types = productFeatureIdByTypeIdSetMap.keySet();
-        //此分类下产品特征 ，处理某一类型的特征组在这次操作中“不存在”的情况，这种操作只是针对当前分类下有产品有特征的情况
-        if(UtilValidate.isNotEmpty(types)){
-        	//直接查找特征组，有指定特征的
-            List<EntityCondition> groupcons = FastList.newInstance();
-            //String pcidlike=(productCategoryId+"_").substring(0,20);
-            groupcons.add(EntityCondition.makeCondition("productFeatureGroupId", EntityOperator.LIKE,"%"+productCategoryId+"_%"));
-            groupcons.add(EntityCondition.makeCondition("productFeatureTypeId",EntityOperator.NOT_IN, types));
-            EntityFindOptions options = new EntityFindOptions();
-            options.setDistinct(true);
-            List<GenericValue> groups = delegator.findList("ProductFeatureGroupAndAppl", EntityCondition.makeCondition(groupcons), UtilMisc.toSet("productFeatureGroupId"),null,options,false);
-            if(UtilValidate.isNotEmpty(groups)){
-            	//若存在这样的
-            	for(GenericValue g:groups){
-            		//例如：groupid=cid_color
-            		String groupid = g.getString("productFeatureGroupId");
-            		//移除这个分类组下的特征
-            		delegator.removeByAnd("ProductFeatureGroupAppl", UtilMisc.toMap("productFeatureGroupId", groupid));
-            		//移除这个特征组和所有分类的关系，注意不仅仅限于当前分类的
-            		//这里保留这个特征组，只是清除了它的所有上下级关系
-            		delegator.removeByAnd("ProductFeatureCatGrpAppl", UtilMisc.toMap("productFeatureGroupId", groupid));
-            	}
-            }
-        }
-        
+        }
+        // the old categoryId_typeId groups not taken over, cut ones and ones a generated group replaced: empty and unlink them the same way
+        Set<String> legacyGroupIds = legacyGroupIdsByCategoryId.get(productCategoryId);
+        if (legacyGroupIds != null) {
+            for (String productFeatureGroupId: legacyGroupIds) {
+                delegator.removeByAnd("ProductFeatureGroupAppl", UtilMisc.toMap("productFeatureGroupId", productFeatureGroupId));
+                delegator.removeByAnd("ProductFeatureCatGrpAppl", UtilMisc.toMap("productFeatureGroupId", productFeatureGroupId));
+                Debug.logInfo("Emptied old feature group [" + productFeatureGroupId + "] of category [" + productCategoryId + "], its features are in the generated groups now", module);
+            }
+        }
+
         //这里是将当前分类的子分类的特征组和当前分类建立关系
         // now get all feature groups associated with sub-categories and associate them with this category
-        for (GenericValue productCategoryRollup: subCategoryList) {
-            String subProductCategoryId = productCategoryRollup.getString("productCategoryId");
+        linkSubCategoryFeatureGroups(productCategoryId, subProductCategoryIds, delegator, nowTimestamp);
+    }
+
+    /** Associates all feature groups associated with the sub-categories with the category too, if not already */
+    protected static void linkSubCategoryFeatureGroups(String productCategoryId, List<String> subProductCategoryIds, Delegator delegator, Timestamp nowTimestamp) throws GenericEntityException {
+        for (String subProductCategoryId: subProductCategoryIds) {
             EntityCondition condition = EntityCondition.makeCondition(UtilMisc.toList(
                     EntityCondition.makeCondition("productCategoryId", EntityOperator.EQUALS, subProductCategoryId),
                     EntityCondition.makeCondition("fromDate", EntityOperator.LESS_THAN_EQUAL_TO, nowTimestamp),
@@ -830,12 +2006,310 @@ while (allCatIter.hasNext()) {
         }
     }
 
+    /**
+     * Gets the feature groups generated for each of the categories, as productFeatureTypeId to productFeatureGroupId, with IN queries of
+     * DEFAULT_CHUNK_SIZE ids: the groups associated with the category (any dates) whose id is the generated id of the category and a feature
+     * type, see makeGeneratedFeatureGroupId; the groups of sub-categories associated with it and categories without any are left out.
+     * Groups made before the ids were generated that way have the categoryId_typeId id, cut to 20 characters (see makeLegacyFeatureGroupId);
+     * such a group is owned by the longest category associated with it whose id and '_' start it, as groups were only ever associated
+     * upwards, and the groups of no known type are left alone. A full categoryId_typeId group of a type the category has no generated group for is taken over as the group of the type;
+     * the others, cut ones (which can hold the features of more than one type) and ones a generated group replaced, are added to
+     * legacyGroupIdsByCategoryId, when given, to be emptied and unlinked.
+     */
+    protected static Map<String, Map<String, String>> getOwnedFeatureGroupIds(Collection<String> productCategoryIds, Map<String, Set<String>> legacyGroupIdsByCategoryId, Delegator delegator) throws GenericEntityException {
+        Map<String, Map<String, String>> ownedGroupIdsByCategoryId = FastMap.newInstance();
+        Set<String> productCategoryIdSet = FastSet.newInstance();
+        productCategoryIdSet.addAll(productCategoryIds);
+        List<String> productCategoryIdList = FastList.newInstance();
+        productCategoryIdList.addAll(productCategoryIdSet);
+        Set<String> productFeatureTypeIds = null;
+        // the hashed generated ids of each category, only made for the categories that have a group with such an id associated
+        Map<String, Map<String, String>> typeIdByHashedGroupIdByCategoryId = FastMap.newInstance();
+        // the groups that may have been made with the old categoryId_typeId ids, by category
+        Map<String, Set<String>> legacyCandidateIdsByCategoryId = FastMap.newInstance();
+        Set<String> legacyCandidateIds = FastSet.newInstance();
+        for (int i = 0; i < productCategoryIdList.size(); i += DEFAULT_CHUNK_SIZE) {
+            List<String> idChunk = productCategoryIdList.subList(i, Math.min(i + DEFAULT_CHUNK_SIZE, productCategoryIdList.size()));
+            EntityCondition condition = EntityCondition.makeCondition("productCategoryId", EntityOperator.IN, idChunk);
+            EntityFindOptions findOptions = new EntityFindOptions();
+            findOptions.setDistinct(true);
+            List<GenericValue> catGrpApplList = delegator.findList("ProductFeatureCatGrpAppl", condition, UtilMisc.toSet("productCategoryId", "productFeatureGroupId"), null, findOptions, false);
+            for (GenericValue productFeatureCatGrpAppl: catGrpApplList) {
+                String productCategoryId = productFeatureCatGrpAppl.getString("productCategoryId");
+                String productFeatureGroupId = productFeatureCatGrpAppl.getString("productFeatureGroupId");
+                String productFeatureTypeId = null;
+                if (isLegacyFeatureGroupIdOf(productFeatureGroupId, productCategoryId)) {
+                    if (productFeatureGroupId.length() > productCategoryId.length() + 1) {
+                        productFeatureTypeId = productFeatureGroupId.substring(productCategoryId.length() + 1);
+                    }
+                    if (productFeatureTypeId == null || !productFeatureGroupId.equals(makeGeneratedFeatureGroupId(productCategoryId, productFeatureTypeId))) {
+                        productFeatureTypeId = null;
+                        addToSetMap(legacyCandidateIdsByCategoryId, productCategoryId, productFeatureGroupId);
+                        legacyCandidateIds.add(productFeatureGroupId);
+                    }
+                } else if (productFeatureGroupId.startsWith(GENERATED_GROUP_ID_PREFIX)) {
+                    Map<String, String> typeIdByHashedGroupId = typeIdByHashedGroupIdByCategoryId.get(productCategoryId);
+                    if (typeIdByHashedGroupId == null) {
+                        if (productFeatureTypeIds == null) {
+                            productFeatureTypeIds = getProductFeatureTypeIds(delegator);
+                        }
+                        typeIdByHashedGroupId = FastMap.newInstance();
+                        for (String typeId: productFeatureTypeIds) {
+                            typeIdByHashedGroupId.put(makeGeneratedFeatureGroupId(productCategoryId, typeId), typeId);
+                        }
+                        typeIdByHashedGroupIdByCategoryId.put(productCategoryId, typeIdByHashedGroupId);
+                    }
+                    productFeatureTypeId = typeIdByHashedGroupId.get(productFeatureGroupId);
+                }
+                // the groups of other categories associated with these are left out
+                if (productFeatureTypeId == null) {
+                    continue;
+                }
+                getOwnedGroupIdByTypeId(ownedGroupIdsByCategoryId, productCategoryId).put(productFeatureTypeId, productFeatureGroupId);
+            }
+        }
+        if (legacyCandidateIds.size() == 0) {
+            return ownedGroupIdsByCategoryId;
+        }
+
+        // the owner of an old group is the longest of all categories associated with it whose old group ids it can be
+        Map<String, String> ownerIdByLegacyGroupId = FastMap.newInstance();
+        List<String> legacyCandidateIdList = FastList.newInstance();
+        legacyCandidateIdList.addAll(legacyCandidateIds);
+        for (int i = 0; i < legacyCandidateIdList.size(); i += DEFAULT_CHUNK_SIZE) {
+            List<String> idChunk = legacyCandidateIdList.subList(i, Math.min(i + DEFAULT_CHUNK_SIZE, legacyCandidateIdList.size()));
+            EntityFindOptions findOptions = new EntityFindOptions();
+            findOptions.setDistinct(true);
+            List<GenericValue> catGrpApplList = delegator.findList("ProductFeatureCatGrpAppl", EntityCondition.makeCondition("productFeatureGroupId", EntityOperator.IN, idChunk),
+                    UtilMisc.toSet("productCategoryId", "productFeatureGroupId"), null, findOptions, false);
+            for (GenericValue productFeatureCatGrpAppl: catGrpApplList) {
+                String productCategoryId = productFeatureCatGrpAppl.getString("productCategoryId");
+                String productFeatureGroupId = productFeatureCatGrpAppl.getString("productFeatureGroupId");
+                String ownerId = ownerIdByLegacyGroupId.get(productFeatureGroupId);
+                if (isLegacyFeatureGroupIdOf(productFeatureGroupId, productCategoryId) && (ownerId == null || productCategoryId.length() > ownerId.length())) {
+                    ownerIdByLegacyGroupId.put(productFeatureGroupId, productCategoryId);
+                }
+            }
+        }
+        if (productFeatureTypeIds == null) {
+            productFeatureTypeIds = getProductFeatureTypeIds(delegator);
+        }
+        for (Map.Entry<String, Set<String>> entry: legacyCandidateIdsByCategoryId.entrySet()) {
+            String productCategoryId = entry.getKey();
+            for (String productFeatureGroupId: entry.getValue()) {
+                if (!productCategoryId.equals(ownerIdByLegacyGroupId.get(productFeatureGroupId))) {
+                    continue;
+                }
+                // the types whose old id this is: one for a full id, possibly more for a cut one, none for a group made some other way
+                List<String> legacyTypeIds = FastList.newInstance();
+                for (String productFeatureTypeId: productFeatureTypeIds) {
+                    if (productFeatureGroupId.equals(makeLegacyFeatureGroupId(productCategoryId, productFeatureTypeId))) {
+                        legacyTypeIds.add(productFeatureTypeId);
+                    }
+                }
+                if (legacyTypeIds.size() == 0) {
+                    continue;
+                }
+                String productFeatureTypeId = legacyTypeIds.get(0);
+                Map<String, String> ownedGroupIdByTypeId = ownedGroupIdsByCategoryId.get(productCategoryId);
+                if (legacyTypeIds.size() == 1 && (ownedGroupIdByTypeId == null || !ownedGroupIdByTypeId.containsKey(productFeatureTypeId))) {
+                    getOwnedGroupIdByTypeId(ownedGroupIdsByCategoryId, productCategoryId).put(productFeatureTypeId, productFeatureGroupId);
+                } else if (legacyGroupIdsByCategoryId != null) {
+                    addToSetMap(legacyGroupIdsByCategoryId, productCategoryId, productFeatureGroupId);
+                }
+            }
+        }
+        return ownedGroupIdsByCategoryId;
+    }
+
+    /** Makes the id feature groups were made with before makeGeneratedFeatureGroupId: categoryId_typeId, cut to 20 characters */
+    protected static String makeLegacyFeatureGroupId(String productCategoryId, String productFeatureTypeId) {
+        String productFeatureGroupId = productCategoryId + "_" + productFeatureTypeId;
+        if (productFeatureGroupId.length() > 20) {
+            productFeatureGroupId = productFeatureGroupId.substring(0, 20);
+        }
+        return productFeatureGroupId;
+    }
+
+    /** Tells if the group id can be an id makeLegacyFeatureGroupId made for the category and some type */
+    protected static boolean isLegacyFeatureGroupIdOf(String productFeatureGroupId, String productCategoryId) {
+        if (productCategoryId.length() >= 20) {
+            return productFeatureGroupId.equals(productCategoryId.substring(0, 20));
+        }
+        return productFeatureGroupId.startsWith(productCategoryId + "_");
+    }
+
+    private static Map<String, String> getOwnedGroupIdByTypeId(Map<String, Map<String, String>> ownedGroupIdsByCategoryId, String productCategoryId) {
+        Map<String, String> ownedGroupIdByTypeId = ownedGroupIdsByCategoryId.get(productCategoryId);
+        if (ownedGroupIdByTypeId == null) {
+            ownedGroupIdByTypeId = FastMap.newInstance();
+            ownedGroupIdsByCategoryId.put(productCategoryId, ownedGroupIdByTypeId);
+        }
+        return ownedGroupIdByTypeId;
+    }
+
+    private static void addToSetMap(Map<String, Set<String>> setMap, String key, String value) {
+        Set<String> set = setMap.get(key);
+        if (set == null) {
+            set = FastSet.newInstance();
+            setMap.put(key, set);
+        }
+        set.add(value);
+    }
+
+    private static Set<String> getProductFeatureTypeIds(Delegator delegator) throws GenericEntityException {
+        Set<String> productFeatureTypeIds = FastSet.newInstance();
+        productFeatureTypeIds.addAll(EntityUtil.getFieldListFromEntityList(delegator.findList("ProductFeatureType", null, UtilMisc.toSet("productFeatureTypeId"), null, null, true), "productFeatureTypeId", true));
+        return productFeatureTypeIds;
+    }
+
+    /** Finds the group for the features of the type in the category by its generated id, creating it if it doesn't exist yet */
+    protected static String makeGeneratedFeatureGroup(String productCategoryId, String productFeatureTypeId, Delegator delegator) throws GenericEntityException {
+        //特征组的命名：分类id_类型id
+        String productFeatureGroupId = makeGeneratedFeatureGroupId(productCategoryId, productFeatureTypeId);
+        GenericValue productFeatureGroup = delegator.findOne("ProductFeatureGroup", UtilMisc.toMap("productFeatureGroupId", productFeatureGroupId), false);
+        if (productFeatureGroup == null) {
+            delegator.create("ProductFeatureGroup", UtilMisc.toMap("productFeatureGroupId", productFeatureGroupId, "description", "Feature Group for type [" + productFeatureTypeId + "] features in category [" + productCategoryId + "]"));
+        }
+        return productFeatureGroupId;
+    }
+
+    /**
+     * Gets the id of the group generated for the features of the type in the category, which is what makes a group generated: categoryId_typeId
+     * when neither id has an underscore and it fits in 20 characters, so it can only be read one way, otherwise GENERATED_GROUP_ID_PREFIX and
+     * the first 18 hex digits of the SHA-1 of both ids, which has no underscore so it can't be taken for the other form.
+     */
+    protected static String makeGeneratedFeatureGroupId(String productCategoryId, String productFeatureTypeId) {
+        String productFeatureGroupId = productCategoryId + "_" + productFeatureTypeId;
+        if (productFeatureGroupId.length() <= 20 && productCategoryId.indexOf('_') < 0 && productFeatureTypeId.indexOf('_') < 0) {
+            return productFeatureGroupId;
+        }
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
+            byte[] digest = messageDigest.digest((productCategoryId + '\0' + productFeatureTypeId).getBytes("UTF-8"));
+            return GENERATED_GROUP_ID_PREFIX + StringUtil.toHexString(digest).substring(0, 18).toUpperCase();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not available", e);
+        }
+    }
+
+    /**
+     * Makes the currently valid features of the feature group the given set: the valid ProductFeatureGroupAppls of the group are read once,
+     * the missing ones are inserted in batches and all valid ones of features no longer in the set are removed with one delete per chunk of
+     * DEFAULT_CHUNK_SIZE features, which keeps the IN lists short where a NOT IN of the whole set could not be.
+     */
+    protected static void syncFeatureGroupAppls(String productFeatureGroupId, Set<String> productFeatureIdSet, Delegator delegator, Timestamp nowTimestamp) throws GenericEntityException {
+        EntityCondition validCondition = EntityCondition.makeCondition(UtilMisc.toList(
+                EntityCondition.makeCondition("productFeatureGroupId", EntityOperator.EQUALS, productFeatureGroupId),
+                EntityCondition.makeCondition("fromDate", EntityOperator.LESS_THAN_EQUAL_TO, nowTimestamp),
+                EntityCondition.makeCondition(EntityCondition.makeCondition("thruDate", EntityOperator.EQUALS, null), EntityOperator.OR, EntityCondition.makeCondition("thruDate", EntityOperator.GREATER_THAN_EQUAL_TO, nowTimestamp))
+               ), EntityOperator.AND);
+        List<GenericValue> existingList = delegator.findList("ProductFeatureGroupAppl", validCondition, UtilMisc.toSet("productFeatureId"), null, null, false);
+        Set<String> existingFeatureIds = FastSet.newInstance();
+        existingFeatureIds.addAll(EntityUtil.<String>getFieldListFromEntityList(existingList, "productFeatureId", true));
+
+        List<GenericValue> toCreateList = FastList.newInstance();
+        for (String productFeatureId: productFeatureIdSet) {
+            if (!existingFeatureIds.contains(productFeatureId)) {
+                toCreateList.add(delegator.makeValue("ProductFeatureGroupAppl", UtilMisc.toMap("productFeatureGroupId", productFeatureGroupId, "productFeatureId", productFeatureId, "fromDate", nowTimestamp)));
+            }
+        }
+        ProductBatchWriter.createAll(delegator, toCreateList, DEFAULT_CHUNK_SIZE);
+
+        List<String> toRemoveFeatureIds = FastList.newInstance();
+        int numRemoved = 0;
+        for (String productFeatureId: existingFeatureIds) {
+            if (!productFeatureIdSet.contains(productFeatureId)) {
+                toRemoveFeatureIds.add(productFeatureId);
+                if (toRemoveFeatureIds.size() >= DEFAULT_CHUNK_SIZE) {
+                    numRemoved += removeFeatureGroupAppls(productFeatureGroupId, toRemoveFeatureIds, validCondition, delegator);
+                }
+            }
+        }
+        numRemoved += removeFeatureGroupAppls(productFeatureGroupId, toRemoveFeatureIds, validCondition, delegator);
+        if (toCreateList.size() > 0 || numRemoved > 0) {
+            Debug.logInfo("Feature group [" + productFeatureGroupId + "]: added " + toCreateList.size() + " features, removed " + numRemoved, module);
+        }
+    }
+
+    /** Removes the valid appls of the features of the group and clears the list */
+    private static int removeFeatureGroupAppls(String productFeatureGroupId, List<String> productFeatureIds, EntityCondition validCondition, Delegator delegator) throws GenericEntityException {
+        if (productFeatureIds.size() == 0) {
+            return 0;
+        }
+        EntityCondition condition = EntityCondition.makeCondition(validCondition, EntityOperator.AND, EntityCondition.makeCondition("productFeatureId", EntityOperator.IN, productFeatureIds));
+        int numRemoved = delegator.removeByCondition("ProductFeatureGroupAppl", condition);
+        productFeatureIds.clear();
+        return numRemoved;
+    }
+
+    /**
+     * Removes the feature groups generated by attachProductFeaturesToCategory for the category, and for all categories under it unless
+     * doSubCategories is N: all ProductFeatureGroupAppls and ProductFeatureCatGrpAppls of the groups are removed, DEFAULT_CHUNK_SIZE groups
+     * per statement; the ProductFeatureGroups themselves are kept, to be used again by attachProductFeaturesToCategory.
+     */
     public static Map<String, Object> removeAllFeatureGroupsForCategory(DispatchContext dctx, Map<String, ? extends Object> context) {
-        return ServiceUtil.returnSuccess();
+        Delegator delegator = dctx.getDelegator();
+        String productCategoryId = (String) context.get("productCategoryId");
+        String doSubCategoriesStr = (String) context.get("doSubCategories");
+        Locale locale = (Locale) context.get("locale");
+        String errMsg = null;
+
+        // default to true
+        boolean doSubCategories = !"N".equals(doSubCategoriesStr);
+        Timestamp nowTimestamp = UtilDateTime.nowTimestamp();
+
+        int numFeatureGroupAppls = 0;
+        int numCatGrpAppls = 0;
+        Set<String> productFeatureGroupIdsToRemove = FastSet.newInstance();
+        try {
+            getFeatureGroupsForCategory(productCategoryId, productFeatureGroupIdsToRemove, delegator, doSubCategories, nowTimestamp);
+            List<String> idChunk = FastList.newInstance();
+            for (String productFeatureGroupId: productFeatureGroupIdsToRemove) {
+                idChunk.add(productFeatureGroupId);
+                if (idChunk.size() >= DEFAULT_CHUNK_SIZE) {
+                    EntityCondition condition = EntityCondition.makeCondition("productFeatureGroupId", EntityOperator.IN, idChunk);
+                    numFeatureGroupAppls += delegator.removeByCondition("ProductFeatureGroupAppl", condition);
+                    numCatGrpAppls += delegator.removeByCondition("ProductFeatureCatGrpAppl", condition);
+                    idChunk.clear();
+                }
+            }
+            if (idChunk.size() > 0) {
+                EntityCondition condition = EntityCondition.makeCondition("productFeatureGroupId", EntityOperator.IN, idChunk);
+                numFeatureGroupAppls += delegator.removeByCondition("ProductFeatureGroupAppl", condition);
+                numCatGrpAppls += delegator.removeByCondition("ProductFeatureCatGrpAppl", condition);
+            }
+        } catch (GenericEntityException e) {
+            Map<String, String> messageMap = UtilMisc.toMap("errMessage", e.toString());
+            errMsg = UtilProperties.getMessage(resourceError,"productutilservices.error_in_removeAllFeatureGroupsForCategory", messageMap, locale);
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        }
+
+        Debug.logInfo("Removed the " + productFeatureGroupIdsToRemove.size() + " feature groups of category [" + productCategoryId + "]" + (doSubCategories ? " and its sub-categories" : "") + ": " + numFeatureGroupAppls + " feature appls, " + numCatGrpAppls + " category appls", module);
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        result.put("numFeatureGroups", Integer.valueOf(productFeatureGroupIdsToRemove.size()));
+        result.put("numFeatureGroupAppls", Integer.valueOf(numFeatureGroupAppls));
+        result.put("numCatGrpAppls", Integer.valueOf(numCatGrpAppls));
+        return result;
     }
 
+    /** Adds the ids of the feature groups generated for the category, and for all categories under it if doSubCategories is set, to the Set; old categoryId_typeId groups included */
     public static void getFeatureGroupsForCategory(String productCategoryId, Set<String> productFeatureGroupIdsToRemove, Delegator delegator, boolean doSubCategories, Timestamp nowTimestamp) throws GenericEntityException {
-
+        if (nowTimestamp == null) {
+            nowTimestamp = UtilDateTime.nowTimestamp();
+        }
+        ProductFeatureGroupWorker worker = new ProductFeatureGroupWorker(delegator, null, null, nowTimestamp);
+        worker.loadCategoryTree(productCategoryId, doSubCategories);
+        Map<String, Set<String>> legacyGroupIdsByCategoryId = FastMap.newInstance();
+        for (Map<String, String> ownedGroupIdByTypeId: getOwnedFeatureGroupIds(worker.getCategoryIds(), legacyGroupIdsByCategoryId, delegator).values()) {
+            productFeatureGroupIdsToRemove.addAll(ownedGroupIdByTypeId.values());
+        }
+        for (Set<String> legacyGroupIds: legacyGroupIdsByCategoryId.values()) {
+            productFeatureGroupIdsToRemove.addAll(legacyGroupIds);
+        }
     }
 }
 
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.product.product;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javolution.util.FastList;
+import javolution.util.FastSet;
+
+import org.ofbiz.base.util.UtilDateTime;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.service.testtools.OFBizTestCase;
+
+/**
+ * Tests of the ProductUtilServices dry run merges against the database of the test delegator; the products are seeded per test and
+ * removed again.
+ */
+public class ProductUtilServicesTests extends OFBizTestCase {
+
+    private static final String VIRTUAL_ID = "PUTEST_V";
+    private static final String VARIANT_ID = "PUTEST_A";
+
+    public ProductUtilServicesTests(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        tearDown();
+        Timestamp fromDate = UtilDateTime.addDaysToTimestamp(UtilDateTime.nowTimestamp(), -1);
+        delegator.create("Product", UtilMisc.toMap("productId", VIRTUAL_ID, "productTypeId", "FINISHED_GOOD", "internalName", "Test virtual", "isVirtual", "Y", "isVariant", "N"));
+        delegator.create("Product", UtilMisc.toMap("productId", VARIANT_ID, "productTypeId", "FINISHED_GOOD", "internalName", "Test variant", "isVirtual", "N", "isVariant", "Y"));
+        delegator.create("ProductAssoc", UtilMisc.toMap("productId", VIRTUAL_ID, "productIdTo", VARIANT_ID, "productAssocTypeId", "PRODUCT_VARIANT", "fromDate", fromDate));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delegator.removeByAnd("ProductAssoc", UtilMisc.toMap("productId", VIRTUAL_ID));
+        delegator.removeByAnd("Product", UtilMisc.toMap("productId", VARIANT_ID));
+        delegator.removeByAnd("Product", UtilMisc.toMap("productId", VIRTUAL_ID));
+    }
+
+    public void testDryRunCountsSingleVariantMerge() throws Exception {
+        for (boolean removeOld: new boolean[] {true, false}) {
+            Set<String> mergedProductIds = FastSet.newInstance();
+            AtomicInteger numFailed = new AtomicInteger();
+            List<String> errorList = FastList.newInstance();
+            int numMerged = ProductUtilServices.dryRunMergeChunk(delegator, UtilMisc.toList(VIRTUAL_ID), removeOld, mergedProductIds, null, numFailed, errorList, UtilDateTime.nowTimestamp(), Locale.getDefault());
+            assertEquals("merges with removeOld " + removeOld + " " + errorList, 1, numMerged);
+            assertEquals("failed merges with removeOld " + removeOld, 0, numFailed.get());
+            assertTrue("merged virtual recorded", mergedProductIds.contains(VIRTUAL_ID));
+        }
+        // a dry run changes nothing
+        List<GenericValue> productAssocs = delegator.findByAnd("ProductAssoc", UtilMisc.toMap("productId", VIRTUAL_ID), null, false);
+        assertEquals("assocs kept", 1, productAssocs.size());
+        GenericValue productAssoc = productAssocs.get(0);
+        assertNotNull("assoc kept", productAssoc);
+        assertNull("assoc not expired", productAssoc.get("thruDate"));
+    }
+}
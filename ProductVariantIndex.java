@@ -0,0 +1,494 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.product.product;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+
+import javolution.util.FastList;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityOperator;
+import org.ofbiz.entity.util.EntityFindOptions;
+import org.ofbiz.entity.util.EntityListIterator;
+
+/**
+ * Snapshot of the virtual/variant graph of all PRODUCT_VARIANT ProductAssocs with their date ranges, kept in direct (off heap) buffers:
+ * the productIds sorted in one char buffer, found by binary search, and the assocs as compressed sparse rows by virtual (variant,
+ * fromDate, thruDate) and by variant (virtual, assoc). Answers the valid variants of a virtual, or virtuals of a variant, at a moment
+ * without creating any GenericValue; the variants of a virtual keep the sequenceNum, productIdTo order. About 28 bytes per assoc plus 2
+ * bytes per productId char and 8 bytes per productId, next to nothing on the heap once loaded.
+ * The index does not see changes made by others after it was loaded, assocs expired by the run itself are reported with
+ * expireVariantAssocs. Reads, and expires of different assocs, can run concurrently.
+ */
+public class ProductVariantIndex {
+
+    public static final String module = ProductVariantIndex.class.getName();
+
+    private static final long NO_FROM_DATE = Long.MIN_VALUE;
+    private static final long NO_THRU_DATE = Long.MAX_VALUE;
+    /** virtual index, variant index, fromDate, thruDate */
+    private static final int RAW_RECORD_SIZE = 4 + 4 + 8 + 8;
+
+    /** the productIds in String order, the chars of id i are keyChars[keyOffsets[i], keyOffsets[i + 1]) */
+    protected final CharBuffer keyChars;
+    protected final IntBuffer keyOffsets;
+    protected final int productCount;
+    protected final int assocCount;
+
+    /** the assocs of virtual i are [variantOffsets[i], variantOffsets[i + 1]) */
+    protected final IntBuffer variantOffsets;
+    protected final IntBuffer variantIndexes;
+    protected final LongBuffer fromDates;
+    protected final LongBuffer thruDates;
+
+    /** the assocs to variant i are [virtualOffsets[i], virtualOffsets[i + 1]), each with its virtual and its position in the rows by virtual */
+    protected final IntBuffer virtualOffsets;
+    protected final IntBuffer virtualIndexes;
+    protected final IntBuffer virtualAssocPositions;
+
+    /** Makes the rows by virtual and by variant from the raw assocs, records of RAW_RECORD_SIZE bytes in load order */
+    protected ProductVariantIndex(CharBuffer keyChars, IntBuffer keyOffsets, int productCount, ByteBuffer rawAssocs, int assocCount) {
+        this.keyChars = keyChars;
+        this.keyOffsets = keyOffsets;
+        this.productCount = productCount;
+        this.assocCount = assocCount;
+
+        // rows by virtual: count, then place in load order so each virtual keeps the sequenceNum order
+        variantOffsets = allocateInts(productCount + 1);
+        variantIndexes = allocateInts(assocCount);
+        fromDates = allocateLongs(assocCount);
+        thruDates = allocateLongs(assocCount);
+        for (int r = 0; r < assocCount; r++) {
+            int virtual = rawAssocs.getInt(r * RAW_RECORD_SIZE);
+            variantOffsets.put(virtual, variantOffsets.get(virtual) + 1);
+        }
+        toStartOffsets(variantOffsets);
+        for (int r = 0; r < assocCount; r++) {
+            int base = r * RAW_RECORD_SIZE;
+            int virtual = rawAssocs.getInt(base);
+            int pos = variantOffsets.get(virtual);
+            variantOffsets.put(virtual, pos + 1);
+            variantIndexes.put(pos, rawAssocs.getInt(base + 4));
+            fromDates.put(pos, rawAssocs.getLong(base + 8));
+            thruDates.put(pos, rawAssocs.getLong(base + 16));
+        }
+        shiftEndOffsets(variantOffsets);
+
+        // rows by variant, made from the rows by virtual
+        virtualOffsets = allocateInts(productCount + 1);
+        virtualIndexes = allocateInts(assocCount);
+        virtualAssocPositions = allocateInts(assocCount);
+        for (int pos = 0; pos < assocCount; pos++) {
+            int variant = variantIndexes.get(pos);
+            virtualOffsets.put(variant, virtualOffsets.get(variant) + 1);
+        }
+        toStartOffsets(virtualOffsets);
+        for (int virtual = 0; virtual < productCount; virtual++) {
+            for (int pos = variantOffsets.get(virtual); pos < variantOffsets.get(virtual + 1); pos++) {
+                int variant = variantIndexes.get(pos);
+                int reversePos = virtualOffsets.get(variant);
+                virtualOffsets.put(variant, reversePos + 1);
+                virtualIndexes.put(reversePos, virtual);
+                virtualAssocPositions.put(reversePos, pos);
+            }
+        }
+        shiftEndOffsets(virtualOffsets);
+    }
+
+    /**
+     * Loads the index from all PRODUCT_VARIANT ProductAssocs, whatever their dates. The distinct productIds are read first and sorted
+     * into the key buffers, then the assocs are counted and read into a raw buffer of that size with their ids looked up in the keys,
+     * so the heap holds a few primitive arrays while loading rather than an object per product, and no direct buffer is grown. Assocs
+     * created between those queries are left out.
+     */
+    public static ProductVariantIndex load(Delegator delegator) throws GenericEntityException {
+        long startTime = System.currentTimeMillis();
+        EntityCondition condition = EntityCondition.makeCondition("productAssocTypeId", EntityOperator.EQUALS, "PRODUCT_VARIANT");
+        Builder builder = new Builder();
+        addDistinctProductIds(delegator, condition, "productId", builder);
+        addDistinctProductIds(delegator, condition, "productIdTo", builder);
+        builder.sortProductIds();
+
+        builder.allocateAssocs((int) delegator.findCountByCondition("ProductAssoc", condition, null, null));
+        int numLeftOut = 0;
+        EntityListIterator eli = delegator.find("ProductAssoc", condition, null, UtilMisc.toSet("productId", "productIdTo", "fromDate", "thruDate"), UtilMisc.toList("productId", "sequenceNum", "productIdTo"), null);
+        try {
+            GenericValue productAssoc = null;
+            while ((productAssoc = eli.next()) != null) {
+                if (!builder.addAssoc(productAssoc.getString("productId"), productAssoc.getString("productIdTo"), productAssoc.getTimestamp("fromDate"), productAssoc.getTimestamp("thruDate"))) {
+                    numLeftOut++;
+                }
+            }
+        } finally {
+            eli.close();
+        }
+        if (numLeftOut > 0) {
+            Debug.logWarning("Left " + numLeftOut + " PRODUCT_VARIANT ProductAssocs created while loading out of the variant index", module);
+        }
+
+        ProductVariantIndex variantIndex = builder.build();
+        Debug.logInfo("Loaded " + variantIndex + " in " + (System.currentTimeMillis() - startTime) + "ms", module);
+        return variantIndex;
+    }
+
+    private static void addDistinctProductIds(Delegator delegator, EntityCondition condition, String fieldName, Builder builder) throws GenericEntityException {
+        EntityFindOptions findOptions = new EntityFindOptions();
+        findOptions.setDistinct(true);
+        EntityListIterator eli = delegator.find("ProductAssoc", condition, null, UtilMisc.toSet(fieldName), null, findOptions);
+        try {
+            GenericValue productAssoc = null;
+            while ((productAssoc = eli.next()) != null) {
+                builder.addProductId(productAssoc.getString(fieldName));
+            }
+        } finally {
+            eli.close();
+        }
+    }
+
+    public int getProductCount() {
+        return productCount;
+    }
+
+    public int getAssocCount() {
+        return assocCount;
+    }
+
+    /** Gets the size of the direct buffers of the index in bytes */
+    public long getOffHeapBytes() {
+        return keyChars.capacity() * 2L + (keyOffsets.capacity() + variantOffsets.capacity() + variantIndexes.capacity()
+                + virtualOffsets.capacity() + virtualIndexes.capacity() + virtualAssocPositions.capacity()) * 4L
+                + (fromDates.capacity() + thruDates.capacity()) * 8L;
+    }
+
+    /** Gets the number of variants of the virtual valid at the moment, 0 if it has none or isn't in the index */
+    public int countValidVariants(String virtualProductId, Timestamp moment) {
+        int virtual = indexOf(virtualProductId);
+        if (virtual < 0) {
+            return 0;
+        }
+        long time = moment.getTime();
+        int count = 0;
+        for (int pos = variantOffsets.get(virtual); pos < variantOffsets.get(virtual + 1); pos++) {
+            if (isValid(pos, time)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Gets the variants of the virtual valid at the moment, in sequenceNum order */
+    public List<String> getValidVariantIds(String virtualProductId, Timestamp moment) {
+        List<String> variantProductIds = FastList.newInstance();
+        int virtual = indexOf(virtualProductId);
+        if (virtual < 0) {
+            return variantProductIds;
+        }
+        long time = moment.getTime();
+        for (int pos = variantOffsets.get(virtual); pos < variantOffsets.get(virtual + 1); pos++) {
+            if (isValid(pos, time)) {
+                variantProductIds.add(getProductId(variantIndexes.get(pos)));
+            }
+        }
+        return variantProductIds;
+    }
+
+    /** Gets the first variant of the virtual valid at the moment by sequenceNum, null if there is none */
+    public String getFirstValidVariantId(String virtualProductId, Timestamp moment) {
+        int virtual = indexOf(virtualProductId);
+        if (virtual < 0) {
+            return null;
+        }
+        long time = moment.getTime();
+        for (int pos = variantOffsets.get(virtual); pos < variantOffsets.get(virtual + 1); pos++) {
+            if (isValid(pos, time)) {
+                return getProductId(variantIndexes.get(pos));
+            }
+        }
+        return null;
+    }
+
+    /** Gets a virtual the variant is a valid variant of at the moment, like ProductWorker.getVariantVirtualId; null if there is none */
+    public String getFirstValidVirtualId(String variantProductId, Timestamp moment) {
+        int variant = indexOf(variantProductId);
+        if (variant < 0) {
+            return null;
+        }
+        long time = moment.getTime();
+        for (int reversePos = virtualOffsets.get(variant); reversePos < virtualOffsets.get(variant + 1); reversePos++) {
+            if (isValid(virtualAssocPositions.get(reversePos), time)) {
+                return getProductId(virtualIndexes.get(reversePos));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records that the assocs from the virtual to the variant valid at the thruDate were expired at it
+     * @return the number of assocs changed in the index
+     */
+    public int expireVariantAssocs(String virtualProductId, String variantProductId, Timestamp thruDate) {
+        int virtual = indexOf(virtualProductId);
+        int variant = indexOf(variantProductId);
+        if (virtual < 0 || variant < 0) {
+            return 0;
+        }
+        long time = thruDate.getTime();
+        int numExpired = 0;
+        for (int pos = variantOffsets.get(virtual); pos < variantOffsets.get(virtual + 1); pos++) {
+            if (variantIndexes.get(pos) == variant && isValid(pos, time)) {
+                thruDates.put(pos, time);
+                numExpired++;
+            }
+        }
+        return numExpired;
+    }
+
+    @Override
+    public String toString() {
+        return "ProductVariantIndex[products=" + productCount + ", assocs=" + assocCount + ", offHeapBytes=" + getOffHeapBytes() + "]";
+    }
+
+    /** Same test as EntityUtil.filterByDate: fromDate at or before the moment and thruDate after it */
+    protected boolean isValid(int pos, long time) {
+        return fromDates.get(pos) <= time && thruDates.get(pos) > time;
+    }
+
+    /** Finds the index of the productId with a binary search over the sorted productIds, -1 if it isn't in the index */
+    protected int indexOf(String productId) {
+        return indexOf(keyChars, keyOffsets, productCount, productId);
+    }
+
+    private static int indexOf(CharBuffer keyChars, IntBuffer keyOffsets, int productCount, String productId) {
+        if (productId == null) {
+            return -1;
+        }
+        int low = 0;
+        int high = productCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareKey(keyChars, keyOffsets, mid, productId);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Compares the productId at the index with the given one the way String.compareTo does, without decoding it */
+    private static int compareKey(CharBuffer keyChars, IntBuffer keyOffsets, int index, String productId) {
+        int start = keyOffsets.get(index);
+        int length = keyOffsets.get(index + 1) - start;
+        int minLength = Math.min(length, productId.length());
+        for (int c = 0; c < minLength; c++) {
+            int diff = keyChars.get(start + c) - productId.charAt(c);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - productId.length();
+    }
+
+    protected String getProductId(int index) {
+        int start = keyOffsets.get(index);
+        char[] chars = new char[keyOffsets.get(index + 1) - start];
+        for (int c = 0; c < chars.length; c++) {
+            chars[c] = keyChars.get(start + c);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Builds an index without the database, load uses it: add all productIds in any order, duplicates allowed, sort them, allocate room
+     * for the assocs and add them in the order the variants of each virtual should keep. The ids are collected in one StringBuilder and
+     * sorted as int positions into it, so there is no object per product.
+     */
+    static class Builder {
+        private StringBuilder idChars = new StringBuilder();
+        private int[] idStarts = new int[1024];
+        private int idCount = 0;
+
+        private CharBuffer keyChars;
+        private IntBuffer keyOffsets;
+        private int productCount;
+
+        private ByteBuffer rawAssocs;
+        private int assocCapacity;
+        private int assocCount = 0;
+        private int lastVirtual = -1;
+        private String lastVirtualProductId = null;
+
+        void addProductId(String productId) {
+            if (idCount + 1 >= idStarts.length) {
+                idStarts = Arrays.copyOf(idStarts, idStarts.length * 2);
+            }
+            idStarts[idCount] = idChars.length();
+            idChars.append(productId);
+            idCount++;
+            idStarts[idCount] = idChars.length();
+        }
+
+        /** Sorts the productIds added into the key buffers, dropping duplicates; no more productIds can be added after this */
+        void sortProductIds() {
+            int[] order = new int[idCount];
+            for (int i = 0; i < idCount; i++) {
+                order[i] = i;
+            }
+            mergeSort(order, new int[idCount], 0, idCount);
+            int charCount = 0;
+            int distinctCount = 0;
+            for (int i = 0; i < idCount; i++) {
+                if (i == 0 || compareIds(order[i - 1], order[i]) != 0) {
+                    charCount += idStarts[order[i] + 1] - idStarts[order[i]];
+                    distinctCount++;
+                }
+            }
+            keyChars = ByteBuffer.allocateDirect(Math.max(charCount, 1) * 2).order(ByteOrder.nativeOrder()).asCharBuffer();
+            keyOffsets = allocateInts(distinctCount + 1);
+            int charPos = 0;
+            productCount = 0;
+            for (int i = 0; i < idCount; i++) {
+                if (i > 0 && compareIds(order[i - 1], order[i]) == 0) {
+                    continue;
+                }
+                keyOffsets.put(productCount++, charPos);
+                for (int c = idStarts[order[i]]; c < idStarts[order[i] + 1]; c++) {
+                    keyChars.put(charPos++, idChars.charAt(c));
+                }
+            }
+            keyOffsets.put(productCount, charPos);
+            idChars = null;
+            idStarts = null;
+        }
+
+        void allocateAssocs(int assocCapacity) {
+            this.assocCapacity = Math.max(assocCapacity, 0);
+            rawAssocs = ByteBuffer.allocateDirect(Math.max(this.assocCapacity, 1) * RAW_RECORD_SIZE).order(ByteOrder.nativeOrder());
+        }
+
+        /** Adds the assoc; returns false, leaving it out, if either productId wasn't added or there is no room left */
+        boolean addAssoc(String productId, String productIdTo, Timestamp fromDate, Timestamp thruDate) {
+            if (assocCount >= assocCapacity) {
+                return false;
+            }
+            // the assocs come by virtual, so look it up only when it changes
+            if (!productId.equals(lastVirtualProductId)) {
+                lastVirtual = indexOf(keyChars, keyOffsets, productCount, productId);
+                lastVirtualProductId = productId;
+            }
+            int variant = indexOf(keyChars, keyOffsets, productCount, productIdTo);
+            if (lastVirtual < 0 || variant < 0) {
+                return false;
+            }
+            int base = assocCount * RAW_RECORD_SIZE;
+            rawAssocs.putInt(base, lastVirtual);
+            rawAssocs.putInt(base + 4, variant);
+            rawAssocs.putLong(base + 8, fromDate == null ? NO_FROM_DATE : fromDate.getTime());
+            rawAssocs.putLong(base + 16, thruDate == null ? NO_THRU_DATE : thruDate.getTime());
+            assocCount++;
+            return true;
+        }
+
+        ProductVariantIndex build() {
+            ProductVariantIndex variantIndex = new ProductVariantIndex(keyChars, keyOffsets, productCount, rawAssocs, assocCount);
+            rawAssocs = null;
+            return variantIndex;
+        }
+
+        /** Compares two added productIds the way String.compareTo does */
+        private int compareIds(int a, int b) {
+            int aStart = idStarts[a];
+            int aLength = idStarts[a + 1] - aStart;
+            int bStart = idStarts[b];
+            int bLength = idStarts[b + 1] - bStart;
+            int minLength = Math.min(aLength, bLength);
+            for (int c = 0; c < minLength; c++) {
+                int diff = idChars.charAt(aStart + c) - idChars.charAt(bStart + c);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return aLength - bLength;
+        }
+
+        /** Sorts order[from, to) by the productIds they point to */
+        private void mergeSort(int[] order, int[] temp, int from, int to) {
+            if (to - from < 2) {
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            mergeSort(order, temp, from, mid);
+            mergeSort(order, temp, mid, to);
+            if (compareIds(order[mid - 1], order[mid]) <= 0) {
+                return;
+            }
+            System.arraycopy(order, from, temp, from, to - from);
+            int left = from;
+            int right = mid;
+            for (int i = from; i < to; i++) {
+                if (right >= to || (left < mid && compareIds(temp[left], temp[right]) <= 0)) {
+                    order[i] = temp[left++];
+                } else {
+                    order[i] = temp[right++];
+                }
+            }
+        }
+    }
+
+    /** Turns the counts in offsets[0, n) into the start offsets */
+    private static void toStartOffsets(IntBuffer offsets) {
+        int start = 0;
+        for (int i = 0; i < offsets.capacity(); i++) {
+            int count = offsets.get(i);
+            offsets.put(i, start);
+            start += count;
+        }
+    }
+
+    /** After placing, offsets[i] is the end of i, the start of i + 1; shifts them back to the start offsets */
+    private static void shiftEndOffsets(IntBuffer offsets) {
+        for (int i = offsets.capacity() - 1; i > 0; i--) {
+            offsets.put(i, offsets.get(i - 1));
+        }
+        offsets.put(0, 0);
+    }
+
+    private static IntBuffer allocateInts(int size) {
+        return ByteBuffer.allocateDirect(Math.max(size, 1) * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    private static LongBuffer allocateLongs(int size) {
+        return ByteBuffer.allocateDirect(Math.max(size, 1) * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+}
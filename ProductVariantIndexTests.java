@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.product.product;
+
+import java.sql.Timestamp;
+
+import junit.framework.TestCase;
+
+import org.ofbiz.base.util.UtilMisc;
+
+/**
+ * Tests of the ProductVariantIndex key sorting and compressed sparse rows, built without the database.
+ */
+public class ProductVariantIndexTests extends TestCase {
+
+    private static final Timestamp NOW = new Timestamp(1000000L);
+    private static final Timestamp BEFORE = new Timestamp(NOW.getTime() - 1000L);
+    private static final Timestamp AFTER = new Timestamp(NOW.getTime() + 1000L);
+
+    public ProductVariantIndexTests(String name) {
+        super(name);
+    }
+
+    /** Builds an index of the productIds and the assocs, each {virtual, variant}, open-ended from BEFORE */
+    private static ProductVariantIndex build(String[] productIds, String[][] assocs) {
+        ProductVariantIndex.Builder builder = new ProductVariantIndex.Builder();
+        for (String productId: productIds) {
+            builder.addProductId(productId);
+        }
+        builder.sortProductIds();
+        builder.allocateAssocs(assocs.length);
+        for (String[] assoc: assocs) {
+            assertTrue("assoc " + assoc[0] + " > " + assoc[1] + " added", builder.addAssoc(assoc[0], assoc[1], BEFORE, null));
+        }
+        return builder.build();
+    }
+
+    public void testEmpty() {
+        ProductVariantIndex variantIndex = build(new String[0], new String[0][]);
+        assertEquals("products", 0, variantIndex.getProductCount());
+        assertEquals("assocs", 0, variantIndex.getAssocCount());
+        assertEquals("count of unknown virtual", 0, variantIndex.countValidVariants("V1", NOW));
+        assertNull("virtual of unknown variant", variantIndex.getFirstValidVirtualId("A1", NOW));
+        assertEquals("variants of unknown virtual", 0, variantIndex.getValidVariantIds("V1", NOW).size());
+    }
+
+    public void testSingleProduct() {
+        ProductVariantIndex variantIndex = build(new String[] {"V1"}, new String[0][]);
+        assertEquals("products", 1, variantIndex.getProductCount());
+        assertEquals("index of the product", 0, variantIndex.indexOf("V1"));
+        assertEquals("productId of the index", "V1", variantIndex.getProductId(0));
+        assertEquals("index of unknown product", -1, variantIndex.indexOf("V2"));
+        assertEquals("count of variants", 0, variantIndex.countValidVariants("V1", NOW));
+        assertNull("first variant", variantIndex.getFirstValidVariantId("V1", NOW));
+        assertNull("virtual", variantIndex.getFirstValidVirtualId("V1", NOW));
+    }
+
+    public void testKeysSortedAndDistinct() {
+        ProductVariantIndex variantIndex = build(new String[] {"B", "A", "AB", "B", "A", "", "AA"}, new String[0][]);
+        assertEquals("products", 5, variantIndex.getProductCount());
+        String[] sorted = {"", "A", "AA", "AB", "B"};
+        for (int i = 0; i < sorted.length; i++) {
+            assertEquals("productId " + i, sorted[i], variantIndex.getProductId(i));
+            assertEquals("index of " + sorted[i], i, variantIndex.indexOf(sorted[i]));
+        }
+    }
+
+    public void testProductsWithoutVariants() {
+        // V1 has two variants kept in assoc order, V2 and the variants themselves have none
+        ProductVariantIndex variantIndex = build(new String[] {"V2", "V1", "A2", "A1"}, new String[][] {{"V1", "A2"}, {"V1", "A1"}});
+        assertEquals("products", 4, variantIndex.getProductCount());
+        assertEquals("assocs", 2, variantIndex.getAssocCount());
+        assertEquals("variants of V1", UtilMisc.toList("A2", "A1"), variantIndex.getValidVariantIds("V1", NOW));
+        assertEquals("first variant of V1", "A2", variantIndex.getFirstValidVariantId("V1", NOW));
+        assertEquals("count of V2", 0, variantIndex.countValidVariants("V2", NOW));
+        assertEquals("count of A1", 0, variantIndex.countValidVariants("A1", NOW));
+        assertEquals("virtual of A1", "V1", variantIndex.getFirstValidVirtualId("A1", NOW));
+        assertEquals("virtual of A2", "V1", variantIndex.getFirstValidVirtualId("A2", NOW));
+        assertNull("virtual of V2", variantIndex.getFirstValidVirtualId("V2", NOW));
+        // the offsets of every product without variants are empty ranges
+        for (int i = 0; i < variantIndex.getProductCount(); i++) {
+            assertTrue("variant offsets of " + i, variantIndex.variantOffsets.get(i) <= variantIndex.variantOffsets.get(i + 1));
+            assertTrue("virtual offsets of " + i, variantIndex.virtualOffsets.get(i) <= variantIndex.virtualOffsets.get(i + 1));
+        }
+        assertEquals("last variant offset", 2, variantIndex.variantOffsets.get(variantIndex.getProductCount()));
+        assertEquals("last virtual offset", 2, variantIndex.virtualOffsets.get(variantIndex.getProductCount()));
+    }
+
+    public void testDatesAndExpire() {
+        ProductVariantIndex.Builder builder = new ProductVariantIndex.Builder();
+        for (String productId: new String[] {"V1", "A1", "A2", "A3"}) {
+            builder.addProductId(productId);
+        }
+        builder.sortProductIds();
+        builder.allocateAssocs(3);
+        assertTrue(builder.addAssoc("V1", "A1", AFTER, null));
+        assertTrue(builder.addAssoc("V1", "A2", BEFORE, NOW));
+        assertTrue(builder.addAssoc("V1", "A3", null, null));
+        ProductVariantIndex variantIndex = builder.build();
+        assertEquals("valid variants of V1", UtilMisc.toList("A3"), variantIndex.getValidVariantIds("V1", NOW));
+        assertEquals("valid variants of V1 before", UtilMisc.toList("A2", "A3"), variantIndex.getValidVariantIds("V1", BEFORE));
+        assertEquals("expired", 1, variantIndex.expireVariantAssocs("V1", "A3", NOW));
+        assertEquals("count of V1 after expire", 0, variantIndex.countValidVariants("V1", NOW));
+        assertNull("virtual of A3 after expire", variantIndex.getFirstValidVirtualId("A3", NOW));
+    }
+
+    public void testAssocsLeftOut() {
+        ProductVariantIndex.Builder builder = new ProductVariantIndex.Builder();
+        builder.addProductId("V1");
+        builder.addProductId("A1");
+        builder.sortProductIds();
+        builder.allocateAssocs(1);
+        assertFalse("unknown variant", builder.addAssoc("V1", "A9", BEFORE, null));
+        assertTrue("known assoc", builder.addAssoc("V1", "A1", BEFORE, null));
+        assertFalse("no room left", builder.addAssoc("V1", "A1", NOW, null));
+        assertEquals("assocs", 1, builder.build().getAssocCount());
+    }
+}
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.test1;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.StringUtil;
+import org.ofbiz.base.util.UtilGenerics;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.base.util.UtilProperties;
+import org.ofbiz.base.util.UtilValidate;
+import org.ofbiz.base.util.cache.UtilCache;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityOperator;
+import org.ofbiz.service.DispatchContext;
+import org.ofbiz.service.ServiceUtil;
+
+/**
+ * Services for the recommendation (ids) screen
+ */
+public class RecommendServices {
+
+    public static final String module = RecommendServices.class.getName();
+    public static final String resourceError = "ProductErrorUiLabels";
+
+    /** Number of productIds per IN query, below common database parameter limits */
+    public static final int IN_BATCH_SIZE = 500;
+
+    /**
+     * The resolved Product lists by recommendation list (the productIds joined with commas, and the page if paged); expires after 10 minutes
+     * by default, the size limit and expireTime can be changed with practice.RecommendedProducts.* in cache.properties. Product changes are not seen before the
+     * list expires. The lists and their Products are immutable.
+     */
+    private static final UtilCache<String, List<GenericValue>> recommendedProductCache = UtilCache.createUtilCache("practice.RecommendedProducts", 1000, 10 * 60 * 1000);
+
+    /**
+     * Resolves a recommendation list of productIds to the Products, in the order of the list with duplicates and unknown ids left out.
+     * An empty list gives an empty productList without a query; other lists are read with IN queries of at most IN_BATCH_SIZE ids and
+     * cached by the list. With a viewSize only the page viewIndex (from 0) of viewSize ids is read, so a page costs the same however long
+     * the list is; listSize is the number of distinct ids in the list, for the pagination.
+     * Service definition (services.xml of the practice component): engine java, location org.ofbiz.test1.RecommendServices, invoke
+     * resolveRecommendedProducts; IN productIds (java.util.List, optional), viewIndex (Integer, optional), viewSize (Integer, optional);
+     * OUT productList (java.util.List), listSize (Integer).
+     */
+    public static Map<String, Object> resolveRecommendedProducts(DispatchContext dctx, Map<String, ? extends Object> context) {
+        Delegator delegator = dctx.getDelegator();
+        List<String> productIds = UtilGenerics.checkList(context.get("productIds"));
+        Integer viewIndex = (Integer) context.get("viewIndex");
+        Integer viewSize = (Integer) context.get("viewSize");
+        Locale locale = (Locale) context.get("locale");
+
+        Map<String, Object> result = ServiceUtil.returnSuccess();
+        if (UtilValidate.isEmpty(productIds)) {
+            result.put("productList", Collections.<GenericValue>emptyList());
+            result.put("listSize", Integer.valueOf(0));
+            return result;
+        }
+
+        String cacheKey = StringUtil.join(productIds, ",");
+        List<String> uniqueProductIds = FastList.newInstance();
+        uniqueProductIds.addAll(new LinkedHashSet<String>(productIds));
+        result.put("listSize", Integer.valueOf(uniqueProductIds.size()));
+        if (viewSize != null && viewSize.intValue() > 0) {
+            int lowIndex = Math.max(viewIndex == null ? 0 : viewIndex.intValue(), 0) * viewSize.intValue();
+            int highIndex = Math.min(lowIndex + viewSize.intValue(), uniqueProductIds.size());
+            if (lowIndex >= highIndex) {
+                result.put("productList", Collections.<GenericValue>emptyList());
+                return result;
+            }
+            uniqueProductIds = uniqueProductIds.subList(lowIndex, highIndex);
+            cacheKey = cacheKey + "|" + lowIndex + "|" + viewSize;
+        }
+
+        List<GenericValue> productList = recommendedProductCache.get(cacheKey);
+        if (productList == null) {
+            try {
+                productList = findProductsInOrder(delegator, uniqueProductIds);
+                // shared by every caller of the list until it expires, so neither it nor its values may be changed
+                for (GenericValue product: productList) {
+                    product.setImmutable();
+                }
+                productList = Collections.unmodifiableList(productList);
+            } catch (GenericEntityException e) {
+                Map<String, String> messageMap = UtilMisc.toMap("errMessage", e.toString());
+                String errMsg = UtilProperties.getMessage(resourceError, "recommendservices.entity_error_running_resolveRecommendedProducts", messageMap, locale);
+                Debug.logError(e, errMsg, module);
+                return ServiceUtil.returnError(errMsg);
+            }
+            recommendedProductCache.put(cacheKey, productList);
+        }
+        result.put("productList", productList);
+        return result;
+    }
+
+    /** Reads the Products with IN queries of at most IN_BATCH_SIZE ids, returning them in the order of the ids */
+    protected static List<GenericValue> findProductsInOrder(Delegator delegator, Collection<String> productIds) throws GenericEntityException {
+        Map<String, GenericValue> productById = FastMap.newInstance();
+        List<String> batch = FastList.newInstance();
+        for (String productId: productIds) {
+            batch.add(productId);
+            if (batch.size() >= IN_BATCH_SIZE) {
+                findProductBatch(delegator, batch, productById);
+                batch.clear();
+            }
+        }
+        findProductBatch(delegator, batch, productById);
+
+        List<GenericValue> productList = FastList.newInstance();
+        for (String productId: productIds) {
+            GenericValue product = productById.get(productId);
+            if (product != null) {
+                productList.add(product);
+            }
+        }
+        return productList;
+    }
+
+    private static void findProductBatch(Delegator delegator, List<String> batch, Map<String, GenericValue> productById) throws GenericEntityException {
+        if (batch.size() == 0) {
+            return;
+        }
+        List<GenericValue> products = delegator.findList("Product", EntityCondition.makeCondition("productId", EntityOperator.IN, batch), null, null, null, false);
+        for (GenericValue product: products) {
+            productById.put(product.getString("productId"), product);
+        }
+    }
+}